@@ -0,0 +1,68 @@
+/*
+ * Copyright 2017 Ekumen, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ekumen.base_driver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Odometry updated by one thread, as the serial reading thread does, while other threads take
+ * snapshots of it, as publishers do.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class OdometrySnapshotBenchmark {
+    private final AbstractOdometryStatus odometryStatus = new AbstractOdometryStatus(0.23);
+    private int leftTravel = 0;
+    private int rightTravel = 0;
+
+    @State(Scope.Thread)
+    public static class Reader {
+        final OdometrySnapshot snapshot = new OdometrySnapshot();
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public void update() {
+        leftTravel += 5;
+        rightTravel += 7;
+        odometryStatus.calculateAndUpdate(leftTravel, rightTravel, 250.0, 350.0);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(2)
+    public double snapshot(Reader reader) {
+        return odometryStatus.getSnapshot(reader.snapshot).getPoseTheta();
+    }
+}
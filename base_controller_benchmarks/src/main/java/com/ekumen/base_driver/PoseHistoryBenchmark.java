@@ -0,0 +1,76 @@
+/*
+ * Copyright 2017 Ekumen, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ekumen.base_driver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pose lookups at past times, as done for every scan, on a full history of Kobuki updates.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PoseHistoryBenchmark {
+    private static final int SAMPLE_PERIOD_MS = 20;
+
+    private final PoseHistory history = new PoseHistory(AbstractOdometryStatus.DEFAULT_HISTORY_SIZE);
+    private final OdometrySnapshot snapshot = new OdometrySnapshot();
+    private final Pose2D relative = new Pose2D();
+    private long newestMs;
+    private long query = 0;
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < history.getCapacity() * 2; i++) {
+            newestMs = i * SAMPLE_PERIOD_MS;
+            history.add(newestMs, i * 0.004, i * 0.001, i * 0.002, 0.2, 0.1, i);
+        }
+    }
+
+    // Scans are usually a few tens of milliseconds old
+    private long nextTime() {
+        query = (query + 7) % 200;
+        return newestMs - 3 - query;
+    }
+
+    @Benchmark
+    public double poseAt() {
+        history.getPoseAt(nextTime(), snapshot);
+        return snapshot.getPoseX();
+    }
+
+    @Benchmark
+    public double relativePose() {
+        long to = nextTime();
+        history.getRelativePose(to - 100, to, snapshot, relative);
+        return relative.getX();
+    }
+}
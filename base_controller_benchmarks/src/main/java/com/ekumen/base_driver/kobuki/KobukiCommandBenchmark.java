@@ -0,0 +1,78 @@
+/*
+ * Copyright 2017 Ekumen, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ekumen.base_driver.kobuki;
+
+import com.ekumen.base_driver.simulation.SimulatedKobuki;
+import com.ekumen.base_driver.simulation.SimulatedSerialPort;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding of a Kobuki base control command. The device runs on a simulated port. move() hands the
+ * encoded frame to the command writer, so it also measures the copy into the writer slot; with
+ * a repeated twist, the cached frame is reused.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class KobukiCommandBenchmark {
+    private SimulatedSerialPort port;
+    private KobukiBaseDevice device;
+    private int count = 0;
+    private final byte[] baseControl = new byte[] {0x01, 0x04, 0x2C, 0x01, (byte) 0xF4, 0x01};
+
+    @Setup
+    public void setUp() throws Exception {
+        port = new SimulatedSerialPort(new SimulatedKobuki());
+        device = new KobukiBaseDevice(port, null);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        device.close();
+    }
+
+    @Benchmark
+    public byte[] buildPackage() {
+        return device.buildPackage(baseControl);
+    }
+
+    @Benchmark
+    public void moveRepeated() {
+        device.move(0.3, 0.1);
+    }
+
+    @Benchmark
+    public void moveChanging() {
+        device.move(0.3, (count++ & 7) * 0.1);
+    }
+}
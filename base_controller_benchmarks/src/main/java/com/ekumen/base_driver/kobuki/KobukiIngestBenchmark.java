@@ -0,0 +1,95 @@
+/*
+ * Copyright 2017 Ekumen, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ekumen.base_driver.kobuki;
+
+import com.ekumen.base_driver.BaseStatus;
+import com.ekumen.base_driver.simulation.FeedbackRecordings;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Kobuki ingest path: framing a recorded feedback stream delivered in chunks of different
+ * sizes, and parsing basic sensor data. Stream scores are per feedback frame.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class KobukiIngestBenchmark {
+    private static final int FRAMES = 1000;
+
+    private byte[] stream;
+    private KobukiPacketReader reader;
+    private KobukiPacketParser parser;
+    private KobukiFeedback.BasicSensorData sensorData;
+
+    @Setup
+    public void setUp(final Blackhole blackhole) {
+        stream = FeedbackRecordings.kobuki(FRAMES);
+        reader = new KobukiPacketReader();
+        reader.addListener(KobukiFeedback.BASIC_SENSOR_DATA,
+                new KobukiFeedbackListener<KobukiFeedback.BasicSensorData>() {
+                    @Override
+                    public void onFeedback(KobukiFeedback.BasicSensorData feedback) {
+                        blackhole.consume(feedback.getLeftEncoder());
+                    }
+                });
+        parser = new KobukiPacketParser();
+        // Frames start with the basic sensor data sub-payload, right after its header
+        sensorData = KobukiFeedback.BASIC_SENSOR_DATA.newView();
+        sensorData.wrap(stream, 5, 15);
+    }
+
+    /**
+     * Size of the chunks the stream is delivered in. Only the stream benchmark depends on it.
+     */
+    @State(Scope.Thread)
+    public static class Chunking {
+        // 1: byte by byte, 13: frames always split, 64: typical USB packet, 4096: whole reads
+        @Param({"1", "13", "64", "4096"})
+        int chunkSize;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void newPacket(Chunking chunking) {
+        for (int offset = 0; offset < stream.length; offset += chunking.chunkSize) {
+            reader.newPacket(stream, offset, Math.min(chunking.chunkSize, stream.length - offset));
+        }
+    }
+
+    @Benchmark
+    public BaseStatus parseBaseStatus() {
+        return parser.parseBaseStatus(sensorData);
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2017 Ekumen, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ekumen.base_driver.simulation;
+
+/**
+ * Kinematic model of a differential drive base. Wheel velocities are applied instantly and
+ * integrated exactly over each step, assuming they stay constant during it.
+ */
+public class DifferentialDriveModel {
+    private final double wheelSeparation;
+
+    // In m and rad
+    private double x = 0;
+    private double y = 0;
+    private double theta = 0;
+    // Accumulated travel of each wheel, in m
+    private double leftTravel = 0;
+    private double rightTravel = 0;
+    // In m/s
+    private double leftVelocity = 0;
+    private double rightVelocity = 0;
+
+    /**
+     * @param wheelSeparation: Distance between the wheels in m.
+     */
+    public DifferentialDriveModel(double wheelSeparation) {
+        this.wheelSeparation = wheelSeparation;
+    }
+
+    public double getWheelSeparation() {
+        return wheelSeparation;
+    }
+
+    public void setWheelVelocities(double leftVelocity, double rightVelocity) {
+        this.leftVelocity = leftVelocity;
+        this.rightVelocity = rightVelocity;
+    }
+
+    /**
+     * @param linear: Linear velocity in m/s.
+     * @param angular: Angular velocity in rad/s, positive counterclockwise.
+     */
+    public void setVelocity(double linear, double angular) {
+        leftVelocity = linear - angular * wheelSeparation / 2;
+        rightVelocity = linear + angular * wheelSeparation / 2;
+    }
+
+    /**
+     * Advances the model by the given time.
+     * @param dt: Time step in s.
+     */
+    public void step(double dt) {
+        double linear = getLinearVelocity();
+        double angular = getAngularVelocity();
+        if (Math.abs(angular) < 1e-9) {
+            x += linear * dt * Math.cos(theta);
+            y += linear * dt * Math.sin(theta);
+        } else {
+            // Exact integration along the arc
+            double radius = linear / angular;
+            double newTheta = theta + angular * dt;
+            x += radius * (Math.sin(newTheta) - Math.sin(theta));
+            y -= radius * (Math.cos(newTheta) - Math.cos(theta));
+            theta = newTheta;
+        }
+        leftTravel += leftVelocity * dt;
+        rightTravel += rightVelocity * dt;
+    }
+
+    public double getX() {
+        return x;
+    }
+
+    public double getY() {
+        return y;
+    }
+
+    /**
+     * @return: Heading in rad, not normalized.
+     */
+    public double getTheta() {
+        return theta;
+    }
+
+    public double getLeftTravel() {
+        return leftTravel;
+    }
+
+    public double getRightTravel() {
+        return rightTravel;
+    }
+
+    public double getLeftVelocity() {
+        return leftVelocity;
+    }
+
+    public double getRightVelocity() {
+        return rightVelocity;
+    }
+
+    public double getLinearVelocity() {
+        return (leftVelocity + rightVelocity) / 2;
+    }
+
+    public double getAngularVelocity() {
+        return (rightVelocity - leftVelocity) / wheelSeparation;
+    }
+}
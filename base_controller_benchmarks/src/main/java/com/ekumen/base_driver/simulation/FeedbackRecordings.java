@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017 Ekumen, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ekumen.base_driver.simulation;
+
+import com.ekumen.base_driver.husky.Crc16;
+
+/**
+ * Feedback streams recorded from the simulated firmware, for benchmarks. The base follows a
+ * circle, so every field changes from frame to frame like in a real capture.
+ */
+public final class FeedbackRecordings {
+    private static final double LINEAR_VELOCITY = 0.3;
+    private static final double ANGULAR_VELOCITY = 0.4;
+
+    private FeedbackRecordings() {
+    }
+
+    public static byte[] kobuki(int frames) {
+        return record(new SimulatedKobuki(), frames);
+    }
+
+    public static byte[] husky(int frames) {
+        SimulatedHusky husky = new SimulatedHusky();
+        // Request encoder data, as the device does on initialization
+        byte[] request = new byte[] {
+                (byte) 0xAA, 13, (byte) ~13, 1, 0, 0, 0, 0, 1, 0x00, 0x48, 0x55, 0x0A, 0x00, 0, 0
+        };
+        char crc = Crc16.compute(request, 0, request.length - 2);
+        request[request.length - 2] = (byte) crc;
+        request[request.length - 1] = (byte) (crc >> 8);
+        husky.onCommandBytes(request, 0, request.length);
+        return record(husky, frames);
+    }
+
+    public static byte[] create(int frames) {
+        SimulatedCreate create = new SimulatedCreate();
+        byte[] stream = new byte[] {(byte) 128, (byte) 148, 9, 7, 9, 10, 11, 12, 19, 20, 21, 22};
+        create.onCommandBytes(stream, 0, stream.length);
+        return record(create, frames);
+    }
+
+    private static byte[] record(SimulatedFirmware firmware, int frames) {
+        DifferentialDriveModel model = firmware.getModel();
+        model.setVelocity(LINEAR_VELOCITY, ANGULAR_VELOCITY);
+        long period = (long) (1e9 / firmware.getFeedbackRate());
+        long now = System.nanoTime();
+        byte[] frame = new byte[4096];
+        byte[] recording = new byte[0];
+        int length = 0;
+        for (int i = 0; i < frames; i++) {
+            now += period;
+            model.step(period / 1e9);
+            int frameLength = firmware.writeFeedback(frame, now);
+            if (length + frameLength > recording.length) {
+                byte[] grown = new byte[Math.max(2 * recording.length, length + frameLength)];
+                System.arraycopy(recording, 0, grown, 0, length);
+                recording = grown;
+            }
+            System.arraycopy(frame, 0, recording, length, frameLength);
+            length += frameLength;
+        }
+        if (length == 0) {
+            throw new IllegalStateException("The firmware sent no feedback");
+        }
+        byte[] result = new byte[length];
+        System.arraycopy(recording, 0, result, 0, length);
+        return result;
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2017 Ekumen, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ekumen.base_driver.simulation;
+
+import com.ekumen.base_driver.create.CreateSensorData;
+
+/**
+ * Simulated iRobot Create firmware. Decodes Open Interface commands and, once a sensor
+ * stream is requested, sends a stream frame every 15 ms by default.
+ */
+public class SimulatedCreate extends SimulatedFirmware {
+    public static final double DEFAULT_FEEDBACK_RATE = 1000.0 / 15;
+    private static final double WHEEL_SEPARATION = 0.258; // in m
+    private static final int MAX_VELOCITY = 500; // in mm/s
+
+    // Open Interface opcodes
+    private static final int START = 128;
+    private static final int BAUD = 129;
+    private static final int SAFE = 131;
+    private static final int FULL = 132;
+    private static final int DRIVE = 137;
+    private static final int DIRECT_DRIVE = 145;
+    private static final int STREAM = 148;
+    private static final int PAUSE_RESUME_STREAM = 150;
+    private static final byte STREAM_HEADER = 19;
+
+    // Command being received: opcode and its data bytes
+    private final byte[] command = new byte[256];
+    private int commandLength = 0;
+    private int expectedLength = 0;
+
+    private final byte[] streamedPackets = new byte[255];
+    private int streamedPacketCount = 0;
+    private boolean streaming = false;
+    private int mode = 0;
+
+    // Travel already reported, in mm and degrees, so rounding errors don't accumulate
+    private long reportedDistance = 0;
+    private long reportedAngle = 0;
+
+    public SimulatedCreate() {
+        this(DEFAULT_FEEDBACK_RATE);
+    }
+
+    public SimulatedCreate(double feedbackRate) {
+        super(new DifferentialDriveModel(WHEEL_SEPARATION), feedbackRate);
+    }
+
+    /**
+     * @return: 0 off, 1 passive, 2 safe, 3 full.
+     */
+    public synchronized int getMode() {
+        return mode;
+    }
+
+    @Override
+    protected void onCommandBytes(byte[] data, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            int b = data[i] & 0xFF;
+            if (commandLength == 0) {
+                expectedLength = 1 + dataLength(b);
+                if (expectedLength == 0) {
+                    continue; // Not an opcode
+                }
+            }
+            command[commandLength++] = (byte) b;
+            // The stream command carries its packet count in its first data byte
+            if (commandLength == 2 && (command[0] & 0xFF) == STREAM) {
+                expectedLength = 2 + b;
+            }
+            if (commandLength == expectedLength) {
+                onCommand();
+                commandLength = 0;
+            }
+        }
+    }
+
+    /**
+     * @return: Number of data bytes that follow an opcode, or -1 for unknown opcodes.
+     */
+    private static int dataLength(int opcode) {
+        switch (opcode) {
+            case START:
+            case SAFE:
+            case FULL:
+                return 0;
+            case BAUD:
+            case PAUSE_RESUME_STREAM:
+            case STREAM:
+                return 1;
+            case DRIVE:
+            case DIRECT_DRIVE:
+                return 4;
+            default:
+                return -1;
+        }
+    }
+
+    private void onCommand() {
+        switch (command[0] & 0xFF) {
+            case START:
+                mode = 1;
+                break;
+            case SAFE:
+                mode = 2;
+                break;
+            case FULL:
+                mode = 3;
+                break;
+            case DRIVE:
+                if (mode >= 2) {
+                    drive(s16(command, 1), s16(command, 3));
+                }
+                break;
+            case DIRECT_DRIVE:
+                // Right wheel first, big-endian
+                if (mode >= 2) {
+                    model.setWheelVelocities(clampVelocity(s16(command, 3)) / 1000.0,
+                            clampVelocity(s16(command, 1)) / 1000.0);
+                }
+                break;
+            case STREAM:
+                streamedPacketCount = command[1] & 0xFF;
+                System.arraycopy(command, 2, streamedPackets, 0, streamedPacketCount);
+                streaming = streamedPacketCount > 0;
+                break;
+            case PAUSE_RESUME_STREAM:
+                streaming = command[1] != 0 && streamedPacketCount > 0;
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Velocity and radius as defined by the Open Interface: radius 0x8000 or 0x7FFF drives
+     * straight, -1 and 1 turn in place clockwise and counterclockwise.
+     */
+    private void drive(int velocity, int radius) {
+        double speed = clampVelocity(velocity) / 1000.0;
+        if (radius == (short) 0x8000 || radius == 0x7FFF) {
+            model.setVelocity(speed, 0);
+        } else if (radius == 1 || radius == -1) {
+            model.setWheelVelocities(-radius * speed, radius * speed);
+        } else {
+            model.setVelocity(speed, speed / (radius / 1000.0));
+        }
+    }
+
+    private static int clampVelocity(int velocity) {
+        return Math.max(-MAX_VELOCITY, Math.min(MAX_VELOCITY, velocity));
+    }
+
+    @Override
+    protected int writeFeedback(byte[] out, long nowNanos) {
+        if (!streaming) {
+            return 0;
+        }
+        int index = 0;
+        out[index++] = STREAM_HEADER;
+        index++; // Length, filled below
+        for (int i = 0; i < streamedPacketCount; i++) {
+            int packetId = streamedPackets[i] & 0xFF;
+            out[index++] = (byte) packetId;
+            index = writePacket(out, index, packetId);
+        }
+        out[1] = (byte) (index - 2);
+        int sum = 0;
+        for (int i = 0; i < index; i++) {
+            sum += out[i];
+        }
+        out[index++] = (byte) -sum;
+        return index;
+    }
+
+    private int writePacket(byte[] out, int index, int packetId) {
+        switch (packetId) {
+            case CreateSensorData.DISTANCE: {
+                // Distance since the last report in mm
+                long distance = Math.round((model.getLeftTravel() + model.getRightTravel()) * 500.0);
+                int delta = (int) (distance - reportedDistance);
+                reportedDistance = distance;
+                return s16(out, index, delta);
+            }
+            case CreateSensorData.ANGLE: {
+                // Angle since the last report in degrees
+                long angle = Math.round(Math.toDegrees(model.getTheta()));
+                int delta = (int) (angle - reportedAngle);
+                reportedAngle = angle;
+                return s16(out, index, delta);
+            }
+            case CreateSensorData.CHARGING_STATE:
+                out[index] = 0; // Not charging
+                return index + 1;
+            case CreateSensorData.VOLTAGE:
+                return s16(out, index, 15000); // mV
+            case CreateSensorData.CURRENT:
+                return s16(out, index, -500); // mA
+            case CreateSensorData.BATTERY_TEMPERATURE:
+                out[index] = 25; // Degrees Celsius
+                return index + 1;
+            case CreateSensorData.BATTERY_CHARGE:
+                return s16(out, index, 2500); // mAh
+            case CreateSensorData.BATTERY_CAPACITY:
+                return s16(out, index, 2700); // mAh
+            default:
+                // Sensors that never trigger in the simulation
+                int size = CreateSensorData.packetSize(packetId);
+                for (int i = 0; i < size; i++) {
+                    out[index + i] = 0;
+                }
+                return index + size;
+        }
+    }
+
+    private static int s16(byte[] out, int index, int value) {
+        out[index] = (byte) (value >> 8);
+        out[index + 1] = (byte) value;
+        return index + 2;
+    }
+
+    private static int s16(byte[] data, int index) {
+        return (short) (((data[index] & 0xFF) << 8) | (data[index + 1] & 0xFF));
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2017 Ekumen, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ekumen.base_driver.simulation;
+
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Firmware of a simulated base. It decodes the command bytes written to a
+ * {@link SimulatedSerialPort}, drives a {@link DifferentialDriveModel} with them and sends
+ * feedback frames back through the port, from its own thread, at a configurable rate.
+ *
+ * Feedback is scheduled at a fixed rate. A random delay up to the configured jitter can be
+ * added to each frame without shifting the schedule, so frames arrive unevenly spaced like
+ * they do from a real USB adapter. The model and the firmware state are only accessed while
+ * holding the firmware lock.
+ */
+public abstract class SimulatedFirmware {
+    private static final int MAX_FEEDBACK_SIZE = 4096;
+    // Ticks missed by more than this many periods are skipped instead of sent in a burst
+    private static final int MAX_CATCH_UP_PERIODS = 10;
+
+    protected final DifferentialDriveModel model;
+    private final Random random = new Random();
+    private final byte[] feedback = new byte[MAX_FEEDBACK_SIZE];
+    private volatile double feedbackRate;
+    private volatile long maxJitterNanos = 0;
+
+    private SimulatedSerialPort port;
+    private Thread thread;
+    private volatile boolean running = false;
+    private final long startNanos = System.nanoTime();
+    private long lastStepNanos = startNanos;
+    private long tickCount = 0;
+    private long skippedTicks = 0;
+
+    /**
+     * @param model: Model driven by the commands.
+     * @param feedbackRate: Feedback frames per second.
+     */
+    protected SimulatedFirmware(DifferentialDriveModel model, double feedbackRate) {
+        this.model = model;
+        setFeedbackRate(feedbackRate);
+    }
+
+    public DifferentialDriveModel getModel() {
+        return model;
+    }
+
+    public void setFeedbackRate(double feedbackRate) {
+        if (feedbackRate <= 0) {
+            throw new IllegalArgumentException("Invalid feedback rate: " + feedbackRate);
+        }
+        this.feedbackRate = feedbackRate;
+    }
+
+    public double getFeedbackRate() {
+        return feedbackRate;
+    }
+
+    /**
+     * @param maxJitterNanos: Maximum random delay added to each feedback frame.
+     */
+    public void setJitter(long maxJitterNanos) {
+        this.maxJitterNanos = maxJitterNanos;
+    }
+
+    public void setSeed(long seed) {
+        random.setSeed(seed);
+    }
+
+    /**
+     * @return: Number of feedback ticks run, and skipped because the thread fell behind.
+     */
+    public synchronized long getTickCount() {
+        return tickCount;
+    }
+
+    public synchronized long getSkippedTickCount() {
+        return skippedTicks;
+    }
+
+    /**
+     * @return: Milliseconds since the firmware was created, the clock of its timestamps.
+     */
+    protected long uptimeMs(long nowNanos) {
+        return (nowNanos - startNanos) / 1000000L;
+    }
+
+    synchronized void start(SimulatedSerialPort port) {
+        if (running) {
+            return;
+        }
+        this.port = port;
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runFeedbackLoop();
+            }
+        }, getClass().getSimpleName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void stop() {
+        Thread current;
+        synchronized (this) {
+            running = false;
+            current = thread;
+            thread = null;
+        }
+        if (current != null) {
+            LockSupport.unpark(current);
+            try {
+                current.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void runFeedbackLoop() {
+        long next = System.nanoTime();
+        while (running) {
+            long period = (long) (1e9 / feedbackRate);
+            next += period;
+            long jitter = maxJitterNanos;
+            long deadline = jitter > 0 ? next + (long) (random.nextDouble() * jitter) : next;
+            long now;
+            while (running && (now = System.nanoTime()) < deadline) {
+                LockSupport.parkNanos(deadline - now);
+            }
+            now = System.nanoTime();
+            int length;
+            synchronized (this) {
+                if (now - next > MAX_CATCH_UP_PERIODS * period) {
+                    skippedTicks += (now - next) / period;
+                    next = now;
+                }
+                advance(now);
+                tickCount++;
+                length = writeFeedback(feedback, now);
+            }
+            if (length > 0) {
+                port.deliver(feedback, 0, length);
+            }
+        }
+    }
+
+    /**
+     * Called with command bytes written to the port, in any chunking.
+     */
+    synchronized void receive(byte[] data, int offset, int length) {
+        advance(System.nanoTime());
+        onCommandBytes(data, offset, length);
+    }
+
+    /**
+     * Brings the model up to the given time, so velocity changes apply from the moment
+     * they are received.
+     */
+    private void advance(long nowNanos) {
+        model.step((nowNanos - lastStepNanos) / 1e9);
+        lastStepNanos = nowNanos;
+    }
+
+    /**
+     * Sends bytes to the host right away, such as a reply to a command.
+     */
+    protected void reply(byte[] data, int offset, int length) {
+        port.deliver(data, offset, length);
+    }
+
+    /**
+     * Decodes command bytes. Called while holding the firmware lock.
+     */
+    protected abstract void onCommandBytes(byte[] data, int offset, int length);
+
+    /**
+     * Writes the feedback due at a tick. Called while holding the firmware lock.
+     * @return: Number of bytes written to out, possibly several frames, or 0 to send nothing.
+     */
+    protected abstract int writeFeedback(byte[] out, long nowNanos);
+}
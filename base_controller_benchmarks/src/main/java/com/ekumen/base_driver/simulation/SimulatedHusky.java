@@ -0,0 +1,198 @@
+/*
+ * Copyright 2017 Ekumen, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ekumen.base_driver.simulation;
+
+import com.ekumen.base_driver.husky.Crc16;
+import com.ekumen.base_driver.husky.HuskyPacket;
+import com.ekumen.base_driver.husky.HuskyPacketReader;
+
+/**
+ * Simulated Husky firmware, speaking the Clearpath protocol. Decodes velocity commands and
+ * data requests, and acknowledges commands that ask for it.
+ *
+ * Once requested, encoder data is sent at every feedback tick, so the simulated rate can go
+ * well beyond what the base allows. Status messages are sent at their requested rates.
+ */
+public class SimulatedHusky extends SimulatedFirmware {
+    public static final double DEFAULT_FEEDBACK_RATE = 10;
+    private static final double WHEEL_SEPARATION = 0.55; // in m
+
+    private static final char TYPE_SET_VELOCITIES = (char) 0x0204;
+    private static final byte SOH = (byte) 0xAA;
+    private static final byte STX = (byte) 0x55;
+    private static final byte PROTOCOL_VERSION = 1;
+    private static final byte FLAG_ACK_SUPPRESSED = 0x01;
+    private static final int MAX_STATUS_FREQUENCY = 1000;
+
+    private final HuskyPacketReader commandReader = new HuskyPacketReader();
+    private final byte[] reply = new byte[32];
+    private final byte[] payload = new byte[64];
+
+    private boolean encoderDataRequested = false;
+    // Requested period and next due time of each status message, indexed like STATUS_TYPES
+    private static final char[] STATUS_TYPES = new char[] {
+            HuskyPacket.TYPE_SYSTEM_STATUS, HuskyPacket.TYPE_POWER_STATUS, HuskyPacket.TYPE_SAFETY_STATUS
+    };
+    private final long[] statusPeriodNanos = new long[STATUS_TYPES.length];
+    private final long[] statusDueNanos = new long[STATUS_TYPES.length];
+    private long acknowledgedCommands = 0;
+
+    public SimulatedHusky() {
+        this(DEFAULT_FEEDBACK_RATE);
+    }
+
+    public SimulatedHusky(double feedbackRate) {
+        super(new DifferentialDriveModel(WHEEL_SEPARATION), feedbackRate);
+        commandReader.setPacketListener(new HuskyPacketReader.PacketListener() {
+            @Override
+            public void onPacket(HuskyPacket packet) {
+                onCommand(packet);
+            }
+        });
+    }
+
+    public synchronized long getAcknowledgedCommandCount() {
+        return acknowledgedCommands;
+    }
+
+    @Override
+    protected void onCommandBytes(byte[] data, int offset, int length) {
+        commandReader.parse(data, offset, length);
+    }
+
+    private void onCommand(HuskyPacket packet) {
+        char type = packet.getMessageType();
+        if (type == TYPE_SET_VELOCITIES && packet.getPayloadLength() >= 4) {
+            model.setVelocity(packet.getPayloadShort(0) / 100.0, packet.getPayloadShort(2) / 100.0);
+        } else if (type >= HuskyPacket.REQUEST_TYPE_OFFSET && type < HuskyPacket.TYPE_DATA_MIN
+                && packet.getPayloadLength() >= 2) {
+            requestData((char) (type + HuskyPacket.REQUEST_TYPE_OFFSET), packet.getPayloadShort(0) & 0xFFFF);
+        }
+        if ((packet.getFlags() & FLAG_ACK_SUPPRESSED) == 0) {
+            acknowledgedCommands++;
+            payload[0] = 0;
+            payload[1] = 0;
+            int length = writeFrame(reply, 0, type, packet.getTimestamp(), payload, 2);
+            reply(reply, 0, length);
+        }
+    }
+
+    private void requestData(char dataType, int frequency) {
+        if (dataType == HuskyPacket.TYPE_ENCODER_DATA) {
+            encoderDataRequested = frequency > 0;
+            return;
+        }
+        for (int i = 0; i < STATUS_TYPES.length; i++) {
+            if (STATUS_TYPES[i] == dataType) {
+                statusPeriodNanos[i] = frequency > 0
+                        ? 1000000000L / Math.min(frequency, MAX_STATUS_FREQUENCY) : 0;
+                statusDueNanos[i] = System.nanoTime();
+            }
+        }
+    }
+
+    @Override
+    protected int writeFeedback(byte[] out, long nowNanos) {
+        int index = 0;
+        int timestamp = (int) uptimeMs(nowNanos);
+        if (encoderDataRequested) {
+            int length = 0;
+            payload[length++] = 2;
+            length = s32(payload, length, (int) Math.round(model.getLeftTravel() * 1000.0));
+            length = s32(payload, length, (int) Math.round(model.getRightTravel() * 1000.0));
+            length = s16(payload, length, (int) Math.round(model.getLeftVelocity() * 1000.0));
+            length = s16(payload, length, (int) Math.round(model.getRightVelocity() * 1000.0));
+            index = writeFrame(out, index, HuskyPacket.TYPE_ENCODER_DATA, timestamp, payload, length);
+        }
+        for (int i = 0; i < STATUS_TYPES.length; i++) {
+            if (statusPeriodNanos[i] > 0 && nowNanos - statusDueNanos[i] >= 0) {
+                statusDueNanos[i] += statusPeriodNanos[i];
+                int length = writeStatus(STATUS_TYPES[i], nowNanos);
+                index = writeFrame(out, index, STATUS_TYPES[i], timestamp, payload, length);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * @return: Length of the status payload written to the payload buffer.
+     */
+    private int writeStatus(char type, long nowNanos) {
+        int length = 0;
+        switch (type) {
+            case HuskyPacket.TYPE_SYSTEM_STATUS:
+                length = s32(payload, length, (int) uptimeMs(nowNanos));
+                // Voltages: battery and both motor drivers, in V x 100
+                payload[length++] = 3;
+                length = s16(payload, length, 2650);
+                length = s16(payload, length, 2640);
+                length = s16(payload, length, 2640);
+                // Motor currents in A x 100
+                payload[length++] = 2;
+                length = s16(payload, length, (int) Math.round(Math.abs(model.getLeftVelocity()) * 500));
+                length = s16(payload, length, (int) Math.round(Math.abs(model.getRightVelocity()) * 500));
+                // Temperatures in degrees C x 100
+                payload[length++] = 2;
+                length = s16(payload, length, 3500);
+                length = s16(payload, length, 3500);
+                break;
+            case HuskyPacket.TYPE_POWER_STATUS:
+                payload[length++] = 1;
+                length = s16(payload, length, 900); // Charge x 1000
+                length = s16(payload, length, 400); // Capacity in Wh
+                payload[length++] = (byte) 0xC1; // Present, in use, lead acid
+                break;
+            case HuskyPacket.TYPE_SAFETY_STATUS:
+                length = s16(payload, length, 0);
+                break;
+            default:
+                break;
+        }
+        return length;
+    }
+
+    /**
+     * Writes a complete frame at the given index of out.
+     * @return: Index right after the frame.
+     */
+    private static int writeFrame(byte[] out, int index, char type, int timestamp, byte[] payload, int length) {
+        int start = index;
+        out[index++] = SOH;
+        out[index++] = (byte) (length + 11);
+        out[index++] = (byte) ~(length + 11);
+        out[index++] = PROTOCOL_VERSION;
+        index = s32(out, index, timestamp);
+        out[index++] = 0; // Flags
+        index = s16(out, index, type);
+        out[index++] = STX;
+        System.arraycopy(payload, 0, out, index, length);
+        index += length;
+        char crc = Crc16.compute(out, start, index - start);
+        return s16(out, index, crc);
+    }
+
+    private static int s16(byte[] out, int index, int value) {
+        out[index] = (byte) value;
+        out[index + 1] = (byte) (value >> 8);
+        return index + 2;
+    }
+
+    private static int s32(byte[] out, int index, int value) {
+        index = s16(out, index, value);
+        return s16(out, index, value >> 16);
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2017 Ekumen, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ekumen.base_driver.simulation;
+
+/**
+ * Simulated Kobuki firmware. Decodes base control commands and sends basic sensor data and
+ * inertial sensor data in every feedback frame, 50 times per second by default.
+ */
+public class SimulatedKobuki extends SimulatedFirmware {
+    public static final double DEFAULT_FEEDBACK_RATE = 50;
+    private static final double WHEEL_SEPARATION = 0.230; // in m
+    private static final double TICKS_PER_MM = 11.7;
+    // Battery voltage in 0.1 V
+    private static final int BATTERY = 165;
+
+    private static final byte HEADER_0 = (byte) 0xAA;
+    private static final byte HEADER_1 = (byte) 0x55;
+    private static final int BASE_CONTROL = 1;
+    private static final int BASIC_SENSOR_DATA = 1;
+    private static final int INERTIAL_SENSOR_DATA = 4;
+
+    // Command frame being received
+    private final byte[] command = new byte[256 + 4];
+    private int commandLength = 0;
+    private long commandErrors = 0;
+
+    public SimulatedKobuki() {
+        this(DEFAULT_FEEDBACK_RATE);
+    }
+
+    public SimulatedKobuki(double feedbackRate) {
+        super(new DifferentialDriveModel(WHEEL_SEPARATION), feedbackRate);
+    }
+
+    /**
+     * @return: Number of command frames discarded because of a bad checksum.
+     */
+    public synchronized long getCommandErrorCount() {
+        return commandErrors;
+    }
+
+    @Override
+    protected void onCommandBytes(byte[] data, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            byte b = data[i];
+            // Resync on anything that isn't a header
+            if ((commandLength == 0 && b != HEADER_0) || (commandLength == 1 && b != HEADER_1)) {
+                commandLength = b == HEADER_0 ? 1 : 0;
+                continue;
+            }
+            command[commandLength++] = b;
+            if (commandLength > 3 && commandLength == (command[2] & 0xFF) + 4) {
+                byte checksum = 0;
+                for (int j = 2; j < commandLength - 1; j++) {
+                    checksum ^= command[j];
+                }
+                if (checksum == command[commandLength - 1]) {
+                    onCommand(command[2] & 0xFF);
+                } else {
+                    commandErrors++;
+                }
+                commandLength = 0;
+            }
+        }
+    }
+
+    private void onCommand(int payloadLength) {
+        int index = 3;
+        int end = 3 + payloadLength;
+        while (index + 2 <= end) {
+            int id = command[index] & 0xFF;
+            int length = command[index + 1] & 0xFF;
+            if (index + 2 + length > end) {
+                return;
+            }
+            if (id == BASE_CONTROL && length == 4) {
+                baseControl(s16(command, index + 2), s16(command, index + 4));
+            }
+            index += 2 + length;
+        }
+    }
+
+    /**
+     * Speed and radius as defined by the Kobuki protocol: radius 0 drives straight, radius 1
+     * turns in place at the given wheel speed, anything else follows an arc of that radius
+     * measured to the center of the base, with speed measured at the outer wheel.
+     */
+    private void baseControl(int speed, int radius) {
+        double b = WHEEL_SEPARATION * 1000.0;
+        if (radius == 0) {
+            model.setVelocity(speed / 1000.0, 0);
+        } else if (radius == 1) {
+            model.setVelocity(0, 2.0 * speed / b);
+        } else {
+            double angular = speed / (radius > 0 ? radius + b / 2 : radius - b / 2);
+            model.setVelocity(radius * angular / 1000.0, angular);
+        }
+    }
+
+    @Override
+    protected int writeFeedback(byte[] out, long nowNanos) {
+        int index = 0;
+        out[index++] = HEADER_0;
+        out[index++] = HEADER_1;
+        out[index++] = (byte) (2 + 15 + 2 + 7);
+
+        out[index++] = BASIC_SENSOR_DATA;
+        out[index++] = 15;
+        index = u16(out, index, (int) uptimeMs(nowNanos));
+        out[index++] = 0; // Bumper
+        out[index++] = 0; // Wheel drop
+        out[index++] = 0; // Cliff
+        index = u16(out, index, (int) Math.round(model.getLeftTravel() * 1000.0 * TICKS_PER_MM));
+        index = u16(out, index, (int) Math.round(model.getRightTravel() * 1000.0 * TICKS_PER_MM));
+        out[index++] = 0; // Left PWM
+        out[index++] = 0; // Right PWM
+        out[index++] = 0; // Button
+        out[index++] = 0; // Charger
+        out[index++] = (byte) BATTERY;
+        out[index++] = 0; // Overcurrent flags
+
+        out[index++] = INERTIAL_SENSOR_DATA;
+        out[index++] = 7;
+        double heading = Math.IEEEremainder(model.getTheta(), 2 * Math.PI);
+        index = u16(out, index, (int) Math.round(Math.toDegrees(heading) * 100));
+        index = u16(out, index, (int) Math.round(Math.toDegrees(model.getAngularVelocity()) * 100));
+        out[index++] = 0;
+        out[index++] = 0;
+        out[index++] = 0;
+
+        byte checksum = 0;
+        for (int i = 2; i < index; i++) {
+            checksum ^= out[i];
+        }
+        out[index++] = checksum;
+        return index;
+    }
+
+    private static int u16(byte[] out, int index, int value) {
+        out[index] = (byte) value;
+        out[index + 1] = (byte) (value >> 8);
+        return index + 2;
+    }
+
+    private static int s16(byte[] data, int index) {
+        return (short) ((data[index] & 0xFF) | ((data[index + 1] & 0xFF) << 8));
+    }
+}
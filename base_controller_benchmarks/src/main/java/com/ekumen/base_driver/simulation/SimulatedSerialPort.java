@@ -0,0 +1,292 @@
+/*
+ * Copyright 2017 Ekumen, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ekumen.base_driver.simulation;
+
+import android.hardware.usb.UsbDeviceConnection;
+
+import com.ekumen.base_driver.ByteRingBuffer;
+import com.hoho.android.usbserial.driver.UsbSerialDriver;
+import com.hoho.android.usbserial.driver.UsbSerialPort;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * In-memory stand-in for a USB serial port, with a {@link SimulatedFirmware} on the other
+ * end. Commands written to the port go straight to the firmware; feedback from the firmware is
+ * buffered until read. Reads return random chunk sizes within the configured bounds, so
+ * frames get split between reads like they do on real adapters.
+ *
+ * Opening the port starts the firmware and closing it stops it. No USB connection is needed.
+ */
+public class SimulatedSerialPort implements UsbSerialPort {
+    // Feedback not read yet. Bytes that don't fit are dropped, like in a UART overflow.
+    private final ByteRingBuffer output = new ByteRingBuffer(64 * 1024);
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition dataAvailable = lock.newCondition();
+    private final Random random = new Random();
+    private final SimulatedFirmware firmware;
+
+    private volatile int minChunkSize = Integer.MAX_VALUE;
+    private volatile int maxChunkSize = Integer.MAX_VALUE;
+    private boolean open = false;
+    private int baudRate;
+    private boolean dtr;
+    private boolean rts;
+
+    private long bytesDelivered = 0;
+    private long bytesRead = 0;
+    private long bytesDropped = 0;
+    private long bytesWritten = 0;
+
+    public SimulatedSerialPort(SimulatedFirmware firmware) {
+        this.firmware = firmware;
+    }
+
+    public SimulatedFirmware getFirmware() {
+        return firmware;
+    }
+
+    /**
+     * Each read returns between minChunkSize and maxChunkSize bytes, or fewer if fewer are
+     * available. By default reads return everything available.
+     */
+    public void setChunkSizes(int minChunkSize, int maxChunkSize) {
+        if (minChunkSize < 1 || maxChunkSize < minChunkSize) {
+            throw new IllegalArgumentException("Invalid chunk sizes: " + minChunkSize + ", " + maxChunkSize);
+        }
+        this.minChunkSize = minChunkSize;
+        this.maxChunkSize = maxChunkSize;
+    }
+
+    public void setSeed(long seed) {
+        random.setSeed(seed);
+    }
+
+    /**
+     * Queues bytes from the firmware to be read by the host.
+     */
+    void deliver(byte[] data, int offset, int length) {
+        lock.lock();
+        try {
+            int written = output.write(data, offset, length);
+            bytesDelivered += written;
+            bytesDropped += length - written;
+            if (written > 0) {
+                dataAvailable.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void open(UsbDeviceConnection connection) throws IOException {
+        lock.lock();
+        try {
+            if (open) {
+                throw new IOException("Already open");
+            }
+            open = true;
+        } finally {
+            lock.unlock();
+        }
+        firmware.start(this);
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (!open) {
+                throw new IOException("Already closed");
+            }
+            open = false;
+            dataAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        firmware.stop();
+    }
+
+    @Override
+    public int read(byte[] dest, int timeoutMillis) throws IOException {
+        lock.lock();
+        try {
+            long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (open && output.available() == 0 && remaining > 0) {
+                remaining = dataAvailable.awaitNanos(remaining);
+            }
+            if (!open) {
+                throw new IOException("Port closed");
+            }
+            int count = Math.min(output.available(), Math.min(dest.length, nextChunkSize()));
+            output.copyTo(0, dest, 0, count);
+            output.skip(count);
+            bytesRead += count;
+            return count;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int nextChunkSize() {
+        int min = minChunkSize;
+        int max = maxChunkSize;
+        if (max == Integer.MAX_VALUE) {
+            return max;
+        }
+        return min + random.nextInt(max - min + 1);
+    }
+
+    @Override
+    public int write(byte[] src, int timeoutMillis) throws IOException {
+        lock.lock();
+        try {
+            if (!open) {
+                throw new IOException("Port closed");
+            }
+            bytesWritten += src.length;
+        } finally {
+            lock.unlock();
+        }
+        firmware.receive(src, 0, src.length);
+        return src.length;
+    }
+
+    public long getBytesDelivered() {
+        lock.lock();
+        try {
+            return bytesDelivered;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getBytesRead() {
+        lock.lock();
+        try {
+            return bytesRead;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return: Number of feedback bytes lost because the host didn't read them fast enough.
+     */
+    public long getBytesDropped() {
+        lock.lock();
+        try {
+            return bytesDropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getBytesWritten() {
+        lock.lock();
+        try {
+            return bytesWritten;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getBaudRate() {
+        return baudRate;
+    }
+
+    @Override
+    public void setParameters(int baudRate, int dataBits, int stopBits, int parity) throws IOException {
+        this.baudRate = baudRate;
+    }
+
+    @Override
+    public UsbSerialDriver getDriver() {
+        return null;
+    }
+
+    @Override
+    public int getPortNumber() {
+        return 0;
+    }
+
+    @Override
+    public String getSerial() {
+        return "simulated";
+    }
+
+    @Override
+    public boolean getCD() throws IOException {
+        return false;
+    }
+
+    @Override
+    public boolean getCTS() throws IOException {
+        return false;
+    }
+
+    @Override
+    public boolean getDSR() throws IOException {
+        return false;
+    }
+
+    @Override
+    public boolean getDTR() throws IOException {
+        return dtr;
+    }
+
+    @Override
+    public void setDTR(boolean value) throws IOException {
+        dtr = value;
+    }
+
+    @Override
+    public boolean getRI() throws IOException {
+        return false;
+    }
+
+    @Override
+    public boolean getRTS() throws IOException {
+        return rts;
+    }
+
+    @Override
+    public void setRTS(boolean value) throws IOException {
+        rts = value;
+    }
+
+    @Override
+    public boolean purgeHwBuffers(boolean flushRX, boolean flushTX) throws IOException {
+        if (flushRX) {
+            lock.lock();
+            try {
+                output.clear();
+            } finally {
+                lock.unlock();
+            }
+        }
+        return true;
+    }
+}
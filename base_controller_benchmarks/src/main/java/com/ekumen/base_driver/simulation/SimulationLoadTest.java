@@ -0,0 +1,112 @@
+/*
+ * Copyright 2017 Ekumen, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ekumen.base_driver.simulation;
+
+import com.ekumen.base_driver.BaseDevice;
+import com.ekumen.base_driver.OdometryStatus;
+import com.ekumen.base_driver.create.CreateBaseDevice;
+import com.ekumen.base_driver.husky.HuskyBaseDevice;
+import com.ekumen.base_driver.kobuki.KobukiBaseDevice;
+
+/**
+ * Drives a real base device against simulated firmware, on a plain JVM, and reports how the
+ * ingest path keeps up. Commands are sent at a fixed rate to follow a circle while the
+ * firmware streams feedback at the given rate.
+ *
+ * Arguments: base (kobuki, husky or create), feedback rate in Hz, duration in s, maximum
+ * jitter in us, and minimum and maximum read chunk sizes in bytes. All but the base are
+ * optional.
+ */
+public class SimulationLoadTest {
+    private static final double COMMAND_RATE = 20;
+    private static final double LINEAR_VELOCITY = 0.2;
+    private static final double ANGULAR_VELOCITY = 0.5;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: SimulationLoadTest <kobuki|husky|create> [rate Hz] [duration s] "
+                    + "[jitter us] [min chunk] [max chunk]");
+            System.exit(1);
+        }
+        String base = args[0];
+        double rate = args.length > 1 ? Double.parseDouble(args[1]) : 1000;
+        double duration = args.length > 2 ? Double.parseDouble(args[2]) : 10;
+        long jitterNanos = args.length > 3 ? Long.parseLong(args[3]) * 1000 : 0;
+        int minChunk = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+        int maxChunk = args.length > 5 ? Integer.parseInt(args[5]) : 64;
+
+        SimulatedFirmware firmware;
+        if (base.equals("kobuki")) {
+            firmware = new SimulatedKobuki(rate);
+        } else if (base.equals("husky")) {
+            firmware = new SimulatedHusky(rate);
+        } else if (base.equals("create")) {
+            firmware = new SimulatedCreate(rate);
+        } else {
+            throw new IllegalArgumentException("Unknown base: " + base);
+        }
+        firmware.setJitter(jitterNanos);
+        SimulatedSerialPort port = new SimulatedSerialPort(firmware);
+        port.setChunkSizes(minChunk, maxChunk);
+
+        BaseDevice device;
+        if (base.equals("kobuki")) {
+            device = new KobukiBaseDevice(port, null);
+        } else if (base.equals("husky")) {
+            device = new HuskyBaseDevice(port, null);
+        } else {
+            device = new CreateBaseDevice(port, null);
+        }
+        device.initialize();
+
+        long start = System.nanoTime();
+        long end = start + (long) (duration * 1e9);
+        long period = (long) (1e9 / COMMAND_RATE);
+        long next = start;
+        while (System.nanoTime() < end) {
+            device.move(LINEAR_VELOCITY, ANGULAR_VELOCITY);
+            next += period;
+            long sleep = next - System.nanoTime();
+            if (sleep > 0) {
+                Thread.sleep(sleep / 1000000, (int) (sleep % 1000000));
+            }
+        }
+        device.move(0, 0);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        // Let the last feedback arrive
+        Thread.sleep(100);
+
+        DifferentialDriveModel model = firmware.getModel();
+        OdometryStatus odometry = device.getOdometryStatus();
+        System.out.println(String.format("Base: %s, feedback rate: %.0f Hz, %.1f s", base, rate, elapsed));
+        System.out.println(String.format("Feedback ticks: %d (%.0f/s), skipped: %d",
+                firmware.getTickCount(), firmware.getTickCount() / elapsed, firmware.getSkippedTickCount()));
+        System.out.println(String.format("Bytes delivered: %d, read: %d, dropped: %d, commands: %d",
+                port.getBytesDelivered(), port.getBytesRead(), port.getBytesDropped(), port.getBytesWritten()));
+        System.out.println(String.format("Model pose:    x %.3f y %.3f theta %.3f",
+                model.getX(), model.getY(), model.getTheta()));
+        System.out.println(String.format("Odometry pose: x %.3f y %.3f theta %.3f",
+                odometry.getPoseX(), odometry.getPoseY(), odometry.getPoseTheta()));
+        if (device instanceof KobukiBaseDevice) {
+            System.out.println("Dropped samples: " + ((KobukiBaseDevice) device).getDroppedSampleCount());
+        } else if (device instanceof CreateBaseDevice) {
+            System.out.println("Dropped samples: " + ((CreateBaseDevice) device).getDroppedSampleCount());
+        }
+        device.close();
+        System.exit(0);
+    }
+}
@@ -35,14 +35,15 @@ import geometry_msgs.Twist;
 
 public class BaseControllerNode extends AbstractNodeMain implements MessageListener<Twist> {
     private final BaseDevice baseDevice;
-    private double linearVelX = 0.0;
-    private double angVelZ = 0.0;
     private String CMD_VEL_TOPIC;
-    private long lastUpdateTimeMs = 0;
 
     private static final Log log = LogFactory.getLog(BaseControllerNode.class);
     private static final long MAX_TIME_BETWEEN_UPDATES_MS = 1000;
-    Thread baseControllerThread;
+    private static final long SHUTDOWN_TIMEOUT_MS = 1000;
+    private CommandScheduler commandScheduler;
+    private CommandWatchdog commandWatchdog;
+    private final long commandTimeoutMs;
+    private final VelocityRamp velocityRamp;
 
     @Override
     public GraphName getDefaultNodeName() {
@@ -56,9 +57,29 @@ public class BaseControllerNode extends AbstractNodeMain implements MessageListe
      * @param baseDevice: The base device that wants to be used (Kobuki, Create or Husky for now)
      */
     public BaseControllerNode(BaseDevice baseDevice, String vel_topic) {
+        this(baseDevice, vel_topic, MAX_TIME_BETWEEN_UPDATES_MS);
+    }
+
+    /**
+     * @param commandTimeoutMs: Time without twists after which the base is stopped.
+     */
+    public BaseControllerNode(BaseDevice baseDevice, String vel_topic, long commandTimeoutMs) {
+        this(baseDevice, vel_topic, commandTimeoutMs, null);
+    }
+
+    /**
+     * @param commandTimeoutMs: Time without twists after which the base is stopped.
+     * @param velocityRamp: Limits the acceleration and jerk of the commands sent to the base,
+     *                    which are then sent at its command rate. Can be <code>null</code> to
+     *                    send twists as they are.
+     */
+    public BaseControllerNode(BaseDevice baseDevice, String vel_topic, long commandTimeoutMs,
+                              VelocityRamp velocityRamp) {
         // TODO: Use ROS params to configure topic names
         CMD_VEL_TOPIC = vel_topic;
         this.baseDevice = baseDevice;
+        this.commandTimeoutMs = commandTimeoutMs;
+        this.velocityRamp = velocityRamp;
     }
 
     /**
@@ -72,43 +93,24 @@ public class BaseControllerNode extends AbstractNodeMain implements MessageListe
         log.info("Base controller starting.");
 
         /**
-         * This thread decouples the receiving of messages via ROS Topics from the sending of messages
-         * to the base. Most bases require a continuous stream of messages to be sent. This code
-         * makes sure to keep sending messages to the base, repeating the previously received message
-         * if necessary, to keep a continuous stream going.
+         * The scheduler decouples the receiving of messages via ROS Topics from the sending of messages
+         * to the base. Each twist is sent as soon as it arrives. Most bases require a continuous stream
+         * of messages to be sent, so the scheduler keeps repeating the last one at the rate the base
+         * needs. The watchdog stops the base as soon as twists stop arriving.
          */
-        baseControllerThread = new Thread() {
+        commandScheduler = velocityRamp == null ? new CommandScheduler(baseDevice)
+                : new CommandScheduler(baseDevice, velocityRamp);
+        commandWatchdog = new CommandWatchdog(commandTimeoutMs, new CommandWatchdog.Listener() {
             @Override
-            public void run() {
-                // thread to constantly send commands to the base
-                try {
-                    while(true) {
-                        if (System.currentTimeMillis() - lastUpdateTimeMs > MAX_TIME_BETWEEN_UPDATES_MS) {
-                            baseDevice.move(0, 0);
-                            log.info("No cmd vel received in " + MAX_TIME_BETWEEN_UPDATES_MS + " ms. Stopping.");
-                        } else {
-                            baseDevice.move(linearVelX, angVelZ);
-                        }
-
-                        Thread.sleep(250);
-                    }
-                } catch (Throwable t) {
-                    log.error("Exception occurred during move loop", t);
-                    // Whenever we get interrupted out of the loop, for any reason
-                    // we try to stop the base, just in case
-                    try {
-                        setTwistValues(0.0, 0.0);
-                        baseDevice.move(0.0, 0.0);
-                    } catch(Throwable t0) {
-
-                    }
-                }
+            public void onTimeout() {
+                commandScheduler.submit(0.0, 0.0);
             }
-        };
+        });
 
         // Initialize base.
         baseDevice.initialize();
-        baseControllerThread.start();
+        commandScheduler.start();
+        commandWatchdog.start();
 
         // Start base_controller subscriber
         Subscriber<Twist> vel_listener = connectedNode.newSubscriber(CMD_VEL_TOPIC, Twist._TYPE);
@@ -117,23 +119,40 @@ public class BaseControllerNode extends AbstractNodeMain implements MessageListe
         log.info("Base controller initialized.");
     }
 
+    /**
+     * Stops the command scheduler, which stops the base on its way out. The base device is not
+     * closed: it belongs to whoever created it.
+     */
     @Override
     public void onShutdown(Node node) {
-        // TODO: Make sure shutdown is working properly. i.e.: shutdown controller thread
+        if (commandWatchdog != null && !commandWatchdog.stop(SHUTDOWN_TIMEOUT_MS)) {
+            log.error("Command watchdog didn't stop in time.");
+        }
+        if (commandScheduler != null && !commandScheduler.stop(SHUTDOWN_TIMEOUT_MS)) {
+            log.error("Command scheduler didn't stop in time.");
+        }
         super.onShutdown(node);
     }
 
     @Override
     public void onShutdownComplete(Node node) {
-        // TODO: Verify shutdown is working properly
         super.onShutdownComplete(node);
     }
 
-    private synchronized void setTwistValues(double linearVelX, double angVelZ) {
-        this.linearVelX = linearVelX;
-        this.angVelZ = angVelZ;
-        this.lastUpdateTimeMs = System.currentTimeMillis();
-        log.info("synchronized setting: (" + this.linearVelX + "," + this.angVelZ + ")");
+    /**
+     * @return: The scheduler of the commands sent to the base, which exposes dispatch latency
+     * and keepalive jitter. <code>null</code> until the node starts.
+     */
+    public CommandScheduler getCommandScheduler() {
+        return commandScheduler;
+    }
+
+    /**
+     * @return: The watchdog that stops the base when twists stop arriving, which counts its
+     * activations. <code>null</code> until the node starts.
+     */
+    public CommandWatchdog getCommandWatchdog() {
+        return commandWatchdog;
     }
 
     /**
@@ -144,7 +163,8 @@ public class BaseControllerNode extends AbstractNodeMain implements MessageListe
      */
     @Override
     public void onNewMessage(Twist twist) {
-        log.info("Current Twist msg: " + twist);
-        setTwistValues(twist.getLinear().getX(), twist.getAngular().getZ());
+        // Fed first, so a stop issued by the watchdog at the same time is overridden
+        commandWatchdog.feed();
+        commandScheduler.submit(twist.getLinear().getX(), twist.getAngular().getZ());
     }
 }
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2017 Ekumen, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ekumen.base_controller;
+
+import com.ekumen.base_driver.BaseDevice;
+import com.ekumen.base_driver.DriverLog;
+import com.ekumen.base_driver.InertialInformation;
+import com.ekumen.base_driver.InertialListener;
+
+import org.ros.message.Time;
+import org.ros.namespace.GraphName;
+import org.ros.node.AbstractNodeMain;
+import org.ros.node.ConnectedNode;
+import org.ros.node.Node;
+import org.ros.node.topic.Publisher;
+
+import geometry_msgs.Quaternion;
+import sensor_msgs.Imu;
+
+/**
+ * Publishes the inertial data of the base as sensor_msgs/Imu, once for every sample the base
+ * reports. Messages are published from the device's reading thread, stamped with the time the
+ * data arrived.
+ */
+public class BaseImuPublisher extends AbstractNodeMain implements InertialListener {
+    private final BaseDevice baseDevice;
+    private Publisher<Imu> imuPublisher;
+
+    // Bases only measure rotation around the vertical axis. Large variances flag the
+    // other axes as unknown, -1 flags linear acceleration as not provided.
+    private static final double UNKNOWN_VARIANCE = 1e6;
+    private static final double YAW_VARIANCE = 0.05;
+    // Shared by every message, and never modified
+    private static final double[] ORIENTATION_COVARIANCE = {
+            UNKNOWN_VARIANCE, 0, 0,
+            0, UNKNOWN_VARIANCE, 0,
+            0, 0, YAW_VARIANCE};
+    private static final double[] ANGULAR_VELOCITY_COVARIANCE = {
+            UNKNOWN_VARIANCE, 0, 0,
+            0, UNKNOWN_VARIANCE, 0,
+            0, 0, YAW_VARIANCE};
+    private static final double[] LINEAR_ACCELERATION_COVARIANCE = {
+            -1, 0, 0,
+            0, 0, 0,
+            0, 0, 0};
+
+    private static final DriverLog log = new DriverLog(BaseImuPublisher.class);
+    private final DriverLog.Event publishErrors =
+            log.rateLimited(DriverLog.Level.ERROR, "Exception occurred publishing IMU data.");
+
+    public BaseImuPublisher(BaseDevice baseDevice) {
+        this.baseDevice = baseDevice;
+    }
+
+    @Override
+    public GraphName getDefaultNodeName() {
+        return GraphName.of("mobile_base/imu_publisher");
+    }
+
+    @Override
+    public void onStart(ConnectedNode connectedNode) {
+        imuPublisher = connectedNode.newPublisher("mobile_base/imu", Imu._TYPE);
+        baseDevice.addInertialListener(this);
+        log.info("IMU publisher started.");
+    }
+
+    @Override
+    public void onInertialInformation(InertialInformation inertialInformation) {
+        try {
+            publish(inertialInformation);
+        } catch (Throwable t) {
+            // Keeps the device reading
+            publishErrors.record(t);
+        }
+    }
+
+    private void publish(InertialInformation inertialInformation) {
+        // A new message for every sample: published messages are serialized later, from
+        // another thread, so they can't be modified afterwards
+        Imu imuMessage = imuPublisher.newMessage();
+        imuMessage.getHeader().setFrameId("base_footprint");
+        imuMessage.getHeader().setStamp(Time.fromMillis(inertialInformation.getTimestamp()));
+
+        Quaternion orientation = imuMessage.getOrientation();
+        orientation.setX(0.0);
+        orientation.setY(0.0);
+        orientation.setZ(Math.sin(inertialInformation.getHeading() / 2.0));
+        orientation.setW(Math.cos(inertialInformation.getHeading() / 2.0));
+
+        imuMessage.getAngularVelocity().setZ(inertialInformation.getAngularVelocity());
+        imuMessage.setOrientationCovariance(ORIENTATION_COVARIANCE);
+        imuMessage.setAngularVelocityCovariance(ANGULAR_VELOCITY_COVARIANCE);
+        imuMessage.setLinearAccelerationCovariance(LINEAR_ACCELERATION_COVARIANCE);
+
+        imuPublisher.publish(imuMessage);
+    }
+
+    @Override
+    public void onShutdown(Node node) {
+        baseDevice.removeInertialListener(this);
+        super.onShutdown(node);
+    }
+}
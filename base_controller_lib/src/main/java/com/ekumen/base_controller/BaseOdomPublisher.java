@@ -1,16 +1,17 @@
 package com.ekumen.base_controller;
 
 import com.ekumen.base_driver.BaseDevice;
+import com.ekumen.base_driver.DriverLog;
+import com.ekumen.base_driver.OdometryListener;
+import com.ekumen.base_driver.OdometrySnapshot;
 import com.ekumen.base_driver.OdometryStatus;
 
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
-import org.ros.concurrent.WallTimeRate;
 import org.ros.message.MessageFactory;
 import org.ros.message.Time;
 import org.ros.namespace.GraphName;
 import org.ros.node.AbstractNodeMain;
 import org.ros.node.ConnectedNode;
+import org.ros.node.Node;
 import org.ros.node.NodeConfiguration;
 import org.ros.node.topic.Publisher;
 
@@ -27,10 +28,12 @@ import std_msgs.Header;
 import tf2_msgs.TFMessage;
 
 /**
+ * Publishes the odometry of the base and its transforms every time the base reports new wheel
+ * data. Messages are published from the device's reading thread.
+ *
  * @author jcerruti@willowgarage.com (Julian Cerruti)
  */
-public class BaseOdomPublisher extends AbstractNodeMain {
-    Thread basePublisherThread;
+public class BaseOdomPublisher extends AbstractNodeMain implements OdometryListener {
     private final BaseDevice baseDevice;
     NodeConfiguration mNodeConfiguration = NodeConfiguration.newPrivate();
     MessageFactory mMessageFactory = mNodeConfiguration.getTopicMessageFactory();
@@ -38,8 +41,12 @@ public class BaseOdomPublisher extends AbstractNodeMain {
     private Publisher<TFMessage> tfPublisher;
     private TransformStamped odomToBaseFootprint;
     private TransformStamped baseToLaser;
+    // Only used from the device's reading thread
+    private final OdometrySnapshot snapshot = new OdometrySnapshot();
 
-    private static final Log log = LogFactory.getLog(BaseOdomPublisher.class);
+    private static final DriverLog log = new DriverLog(BaseOdomPublisher.class);
+    private final DriverLog.Event publishErrors =
+            log.rateLimited(DriverLog.Level.ERROR, "Exception occurred publishing odometry.");
 
     public BaseOdomPublisher(BaseDevice baseDevice) {
         this.baseDevice = baseDevice;
@@ -52,24 +59,6 @@ public class BaseOdomPublisher extends AbstractNodeMain {
 
     @Override
     public void onStart(ConnectedNode connectedNode) {
-        basePublisherThread = new Thread() {
-            @Override
-            public void run() {
-                OdometryStatus odometryStatus;
-                try {
-                    WallTimeRate rate = new WallTimeRate(100);
-
-                    while(true) {
-                        odometryStatus = baseDevice.getOdometryStatus();
-                        BaseOdomPublisher.this.publish(odometryStatus);
-                        rate.sleep();
-                    }
-                } catch (Throwable t) {
-                    log.error("Exception occurred during state publisher loop.", t);
-                }
-            }
-        };
-
         odometryPublisher = connectedNode.newPublisher("/odom", "nav_msgs/Odometry");
         tfPublisher = connectedNode.newPublisher("/tf", TFMessage._TYPE);
         odomToBaseFootprint = mMessageFactory.newFromType(TransformStamped._TYPE);
@@ -96,17 +85,40 @@ public class BaseOdomPublisher extends AbstractNodeMain {
         // Set constant childFrame
         odomToBaseFootprint.setChildFrameId("base_footprint");
 
-        basePublisherThread.start();
+        baseDevice.addOdometryListener(this);
+    }
+
+    @Override
+    public void onOdometry(OdometryStatus odometryStatus) {
+        try {
+            publish(odometryStatus);
+        } catch (Throwable t) {
+            // Keeps the device reading
+            publishErrors.record(t);
+        }
+    }
+
+    @Override
+    public void onShutdown(Node node) {
+        baseDevice.removeOdometryListener(this);
+        super.onShutdown(node);
     }
 
     private void publish(OdometryStatus odometryStatus) {
+        // Every value comes from the same update
+        OdometrySnapshot odometry = odometryStatus.getSnapshot(snapshot);
+        if (odometry.getSequence() == 0) {
+            // Not updated yet, so it has no time: stamped at the epoch, it would poison TF
+            return;
+        }
+
         // Create odomentry message
         Odometry odometryMessage = odometryPublisher.newMessage();
 
-        // Header
+        // Header, stamped with the time of the update
         Header header = odometryMessage.getHeader();
         header.setFrameId("odom");
-        header.setStamp(Time.fromMillis(System.currentTimeMillis()));
+        header.setStamp(Time.fromMillis(odometry.getTimestamp()));
 
         // Child frame id
         odometryMessage.setChildFrameId("base_footprint");
@@ -116,15 +128,13 @@ public class BaseOdomPublisher extends AbstractNodeMain {
         Quaternion orientation = odometryMessage.getPose().getPose().getOrientation();
         Twist twist = odometryMessage.getTwist().getTwist();
 
-        // Populate the fields. Synchronize to avoid having the data updated in between gets
-        synchronized (odometryStatus) {
-            position.setX(odometryStatus.getPoseX());
-            position.setY(odometryStatus.getPoseY());
-            orientation.setZ(Math.sin(odometryStatus.getPoseTheta()/2.0));
-            orientation.setW(Math.cos(odometryStatus.getPoseTheta()/2.0));
-            twist.getLinear().setX(odometryStatus.getSpeedLinearX());
-            twist.getAngular().setZ(odometryStatus.getSpeedAngularZ());
-        }
+        // Populate the fields
+        position.setX(odometry.getPoseX());
+        position.setY(odometry.getPoseY());
+        orientation.setZ(Math.sin(odometry.getPoseTheta()/2.0));
+        orientation.setW(Math.cos(odometry.getPoseTheta()/2.0));
+        twist.getLinear().setX(odometry.getSpeedLinearX());
+        twist.getAngular().setZ(odometry.getSpeedAngularZ());
 
         // Publish!
         odometryPublisher.publish(odometryMessage);
@@ -18,25 +18,24 @@ package com.ekumen.base_controller;
 
 import com.ekumen.base_driver.BaseDevice;
 import com.ekumen.base_driver.BaseStatus;
+import com.ekumen.base_driver.BaseStatusListener;
+import com.ekumen.base_driver.DriverLog;
 
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
 import org.ros.namespace.GraphName;
 import org.ros.node.AbstractNodeMain;
 import org.ros.node.ConnectedNode;
 import org.ros.node.Node;
 import org.ros.node.topic.Publisher;
 
-import java.util.concurrent.CountDownLatch;
-
 import std_msgs.Byte;
 
 /**
  * Created by Lucas Chiesa on 10/10/13.
+ *
+ * Publishes the status of the base every time the base reports it, from the device's reading
+ * thread.
  */
-public class BaseStatusPublisher extends AbstractNodeMain {
-
-    private Thread basePublisherThread;
+public class BaseStatusPublisher extends AbstractNodeMain implements BaseStatusListener {
 
     private final BaseDevice baseDevice;
 
@@ -45,8 +44,11 @@ public class BaseStatusPublisher extends AbstractNodeMain {
     private Publisher<std_msgs.Byte> cliffPublisher;
     private Publisher<std_msgs.Byte> chargerPublisher;
     private Publisher<std_msgs.Byte> batteryPublisher;
+    private Publisher<std_msgs.Byte> emergencyStopPublisher;
 
-    private static final Log log = LogFactory.getLog(BaseStatusPublisher.class);
+    private static final DriverLog log = new DriverLog(BaseStatusPublisher.class);
+    private final DriverLog.Event publishErrors =
+            log.rateLimited(DriverLog.Level.ERROR, "Exception occurred publishing the base state.");
 
     public BaseStatusPublisher(BaseDevice baseDevice) {
         this.baseDevice = baseDevice;
@@ -59,29 +61,24 @@ public class BaseStatusPublisher extends AbstractNodeMain {
 
     @Override
     public void onStart(ConnectedNode connectedNode) {
-        basePublisherThread = new Thread() {
-            @Override
-            public void run() {
-                BaseStatus baseStatus = new BaseStatus();
-                try {
-                    while(true){
-                        baseStatus = baseDevice.getBaseStatus();
-                        BaseStatusPublisher.this.publishState(baseStatus);
-                        Thread.sleep(10);
-                    }
-                } catch (Throwable t) {
-                    log.error("Exception occurred during state publisher loop.", t);
-                }
-            }
-        };
-
         bumperPublisher = connectedNode.newPublisher("mobile_base/bumper", "std_msgs/Byte");
         wheelDropPublisher = connectedNode.newPublisher("mobile_base/wheel_drop",  "std_msgs/Byte");
         cliffPublisher = connectedNode.newPublisher("mobile_base/cliff",  "std_msgs/Byte");
         chargerPublisher = connectedNode.newPublisher("mobile_base/charger",  "std_msgs/Byte");
         batteryPublisher = connectedNode.newPublisher("mobile_base/battery",  "std_msgs/Byte");
+        emergencyStopPublisher = connectedNode.newPublisher("mobile_base/emergency_stop",  "std_msgs/Byte");
 
-        basePublisherThread.start();
+        baseDevice.addBaseStatusListener(this);
+    }
+
+    @Override
+    public void onBaseStatus(BaseStatus baseStatus) {
+        try {
+            publishState(baseStatus);
+        } catch (Throwable t) {
+            // Keeps the device reading
+            publishErrors.record(t);
+        }
     }
 
     private void publishState(BaseStatus baseStatus) {
@@ -104,10 +101,15 @@ public class BaseStatusPublisher extends AbstractNodeMain {
         Byte battery = batteryPublisher.newMessage();
         battery.setData(baseStatus.getBattery());
         batteryPublisher.publish(battery);
+
+        Byte emergencyStop = emergencyStopPublisher.newMessage();
+        emergencyStop.setData(baseStatus.getEmergencyStop());
+        emergencyStopPublisher.publish(emergencyStop);
     }
 
     @Override
     public void onShutdown(Node node) {
+        baseDevice.removeBaseStatusListener(this);
         super.onShutdown(node);
     }
 
@@ -0,0 +1,299 @@
+/*
+ * Copyright 2017 Ekumen, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ekumen.base_controller;
+
+import com.ekumen.base_driver.BaseDevice;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends velocity commands to a base from its own thread. A new command is sent as soon as it
+ * is submitted. In between, the last command is repeated at the keepalive rate of the device,
+ * on a fixed timeline: deadlines are multiples of the period from the start, so late wakeups
+ * don't push the following ones back. The base is stopped when the scheduler stops.
+ *
+ * With a {@link VelocityRamp}, commands set the target of the ramp instead of being sent as
+ * they are. The ramp is stepped and its velocities sent at the command rate of the device until
+ * they reach the target, and then at the keepalive rate again.
+ */
+public class CommandScheduler {
+    private final BaseDevice baseDevice;
+    private final long periodNanos;
+    private final VelocityRamp ramp;
+    private final long rampPeriodNanos;
+    private volatile Thread thread;
+    private volatile boolean running = false;
+
+    // Last command submitted. Its sequence tells the thread whether it was sent already.
+    private final TwistMailbox mailbox = new TwistMailbox();
+    // Sequence of the last command the thread took from the mailbox
+    private volatile long takenSequence = 0;
+
+    private volatile long immediateCount = 0;
+    private volatile long keepaliveCount = 0;
+    private volatile long overrunCount = 0;
+    private volatile long lastJitterNanos = 0;
+    private volatile long maxJitterNanos = 0;
+    private volatile long totalJitterNanos = 0;
+    private volatile long lastDispatchNanos = 0;
+    private volatile long maxDispatchNanos = 0;
+
+    private static final Log log = LogFactory.getLog(CommandScheduler.class);
+
+    public CommandScheduler(BaseDevice baseDevice) {
+        this(baseDevice, baseDevice.getKeepalivePeriodMs());
+    }
+
+    /**
+     * @param keepalivePeriodMs: Period at which the last command is repeated.
+     */
+    public CommandScheduler(BaseDevice baseDevice, long keepalivePeriodMs) {
+        this(baseDevice, keepalivePeriodMs, null, 0);
+    }
+
+    /**
+     * Shapes commands with the given ramp, stepped at the command rate of the device.
+     */
+    public CommandScheduler(BaseDevice baseDevice, VelocityRamp ramp) {
+        this(baseDevice, baseDevice.getKeepalivePeriodMs(), ramp, baseDevice.getCommandPeriodMs());
+    }
+
+    /**
+     * @param keepalivePeriodMs: Period at which the last command is repeated.
+     * @param ramp: Shapes the commands. Can be <code>null</code> to send them as they are.
+     * @param rampPeriodMs: Period at which the ramp is stepped while it moves.
+     */
+    public CommandScheduler(BaseDevice baseDevice, long keepalivePeriodMs, VelocityRamp ramp,
+                            long rampPeriodMs) {
+        if (keepalivePeriodMs <= 0) {
+            throw new IllegalArgumentException("Keepalive period must be positive");
+        }
+        if (ramp != null && rampPeriodMs <= 0) {
+            throw new IllegalArgumentException("Ramp period must be positive");
+        }
+        this.baseDevice = baseDevice;
+        this.periodNanos = TimeUnit.MILLISECONDS.toNanos(keepalivePeriodMs);
+        this.ramp = ramp;
+        this.rampPeriodNanos = TimeUnit.MILLISECONDS.toNanos(rampPeriodMs);
+    }
+
+    public synchronized void start() {
+        if (thread != null) {
+            throw new IllegalStateException("Scheduler already started");
+        }
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "command-scheduler");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the thread, which stops the base on its way out.
+     * @param timeoutMs: Time to wait for the thread to finish.
+     * @return: <code>false</code> if the thread didn't finish in time.
+     */
+    public boolean stop(long timeoutMs) {
+        Thread current;
+        synchronized (this) {
+            current = thread;
+        }
+        if (current == null) {
+            return true;
+        }
+        running = false;
+        LockSupport.unpark(current);
+        try {
+            current.join(timeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return !current.isAlive();
+    }
+
+    /**
+     * Sets the command to send, and wakes up the thread to send it right away. Commands
+     * submitted faster than the thread sends them are coalesced into the latest one.
+     */
+    public void submit(double linearVelX, double angVelZ) {
+        long sequence = mailbox.post(linearVelX, angVelZ);
+        // Only the first command after the thread took the previous one needs to wake it up
+        if (sequence - 1 == takenSequence) {
+            Thread current = thread;
+            if (current != null) {
+                LockSupport.unpark(current);
+            }
+        }
+    }
+
+    private void loop() {
+        TwistMailbox.Message command = new TwistMailbox.Message();
+        long nextDeadline = System.nanoTime();
+        long lastStepNanos = nextDeadline;
+        try {
+            while (running) {
+                mailbox.read(command);
+                double linear = command.getLinearVelX();
+                double angular = command.getAngVelZ();
+                long sequence = command.getSequence();
+                long now = System.nanoTime();
+                if (sequence != takenSequence) {
+                    takenSequence = sequence;
+                    if (ramp != null) {
+                        ramp.setTarget(linear, angular);
+                        lastStepNanos = stepRamp(now, lastStepNanos);
+                        // Further steps follow at the command rate
+                        if (nextDeadline - (now + rampPeriodNanos) > 0) {
+                            nextDeadline = now + rampPeriodNanos;
+                        }
+                    } else {
+                        baseDevice.move(linear, angular);
+                    }
+                    immediateCount++;
+                    long dispatch = System.nanoTime() - command.getArrivalNanos();
+                    lastDispatchNanos = dispatch;
+                    maxDispatchNanos = Math.max(maxDispatchNanos, dispatch);
+                } else if (now - nextDeadline >= 0) {
+                    long jitter = now - nextDeadline;
+                    lastJitterNanos = jitter;
+                    maxJitterNanos = Math.max(maxJitterNanos, jitter);
+                    totalJitterNanos += jitter;
+                    long period = periodNanos;
+                    if (ramp != null) {
+                        lastStepNanos = stepRamp(now, lastStepNanos);
+                        if (!ramp.isSettled()) {
+                            period = rampPeriodNanos;
+                        }
+                    } else {
+                        baseDevice.move(linear, angular);
+                    }
+                    keepaliveCount++;
+                    nextDeadline += period;
+                    if (now - nextDeadline >= 0) {
+                        // Whole periods were missed: skip their deadlines rather than bursting
+                        long missed = (now - nextDeadline) / period + 1;
+                        overrunCount += missed;
+                        nextDeadline += missed * period;
+                    }
+                }
+                long wait = nextDeadline - System.nanoTime();
+                // A command submitted while this one was taken may not have woken the thread
+                if (wait > 0 && running && mailbox.getSequence() == takenSequence) {
+                    LockSupport.parkNanos(this, wait);
+                }
+            }
+        } catch (Throwable t) {
+            log.error("Exception occurred during move loop", t);
+        } finally {
+            // Whenever we get out of the loop, for any reason
+            // we try to stop the base, just in case
+            try {
+                baseDevice.move(0.0, 0.0);
+            } catch (Throwable t0) {
+                log.error("Couldn't stop the base", t0);
+            }
+        }
+    }
+
+    /**
+     * Steps the ramp and sends its velocities. Steps are at most a period long, so the ramp
+     * doesn't jump after a pause.
+     * @return: The time of this step.
+     */
+    private long stepRamp(long now, long lastStepNanos) {
+        long dt = Math.min(now - lastStepNanos, rampPeriodNanos);
+        ramp.step(dt / 1e9);
+        baseDevice.move(ramp.getLinearVelX(), ramp.getAngVelZ());
+        return now;
+    }
+
+    public long getKeepalivePeriodNanos() {
+        return periodNanos;
+    }
+
+    /**
+     * @return: Number of commands sent right after being submitted.
+     */
+    public long getImmediateCount() {
+        return immediateCount;
+    }
+
+    /**
+     * @return: Number of commands submitted.
+     */
+    public long getSubmittedCount() {
+        return mailbox.getSequence();
+    }
+
+    /**
+     * @return: Number of submitted commands replaced by a later one before being sent.
+     */
+    public long getCoalescedCount() {
+        long sent = immediateCount;
+        return Math.max(0, mailbox.getSequence() - sent);
+    }
+
+    /**
+     * @return: Number of commands sent at deadlines: keepalives and ramp steps.
+     */
+    public long getKeepaliveCount() {
+        return keepaliveCount;
+    }
+
+    /**
+     * @return: Number of keepalive deadlines skipped because the thread woke up a whole period
+     * or more late.
+     */
+    public long getOverrunCount() {
+        return overrunCount;
+    }
+
+    /**
+     * @return: Delay of the last command sent at a deadline past that deadline.
+     */
+    public long getLastJitterNanos() {
+        return lastJitterNanos;
+    }
+
+    public long getMaxJitterNanos() {
+        return maxJitterNanos;
+    }
+
+    public long getMeanJitterNanos() {
+        long count = keepaliveCount;
+        return count == 0 ? 0 : totalJitterNanos / count;
+    }
+
+    /**
+     * @return: Time from the submission of the last command to its hand-off to the device.
+     */
+    public long getLastDispatchNanos() {
+        return lastDispatchNanos;
+    }
+
+    public long getMaxDispatchNanos() {
+        return maxDispatchNanos;
+    }
+}
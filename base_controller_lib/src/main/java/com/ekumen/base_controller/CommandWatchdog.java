@@ -0,0 +1,194 @@
+/*
+ * Copyright 2017 Ekumen, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ekumen.base_controller;
+
+import com.ekumen.base_driver.DriverLog;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Stops the base when commands stop arriving. Each command feeds the watchdog. If it isn't fed
+ * within the timeout, it trips: its listener is called once, from the watchdog's own thread,
+ * as soon as the deadline passes. It re-arms with the next feed.
+ *
+ * The deadline is kept on the monotonic clock, so wall clock changes don't trip it or hold it
+ * back, and it doesn't depend on how often commands are sent to the base.
+ */
+public class CommandWatchdog {
+
+    /**
+     * Called when the watchdog trips, while holding its lock, so that a command fed at the same
+     * time is never overridden by the stop.
+     */
+    public interface Listener {
+        void onTimeout();
+    }
+
+    private final long timeoutNanos;
+    private final Listener listener;
+    private Thread thread;
+    private volatile boolean running = false;
+
+    private long lastFeedNanos;
+    private boolean fed = false;
+    private boolean tripped = false;
+
+    private volatile long activationCount = 0;
+    private volatile long lastLatenessNanos = 0;
+    private volatile long maxLatenessNanos = 0;
+
+    private static final DriverLog log = new DriverLog(CommandWatchdog.class);
+
+    /**
+     * @param timeoutMs: Time without feeds after which the watchdog trips.
+     */
+    public CommandWatchdog(long timeoutMs, Listener listener) {
+        if (timeoutMs <= 0) {
+            throw new IllegalArgumentException("Timeout must be positive");
+        }
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        this.listener = listener;
+    }
+
+    public synchronized void start() {
+        if (thread != null) {
+            throw new IllegalStateException("Watchdog already started");
+        }
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "command-watchdog");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the thread without tripping.
+     * @param timeoutMs: Time to wait for the thread to finish.
+     * @return: <code>false</code> if the thread didn't finish in time.
+     */
+    public boolean stop(long timeoutMs) {
+        Thread current;
+        synchronized (this) {
+            current = thread;
+        }
+        if (current == null) {
+            return true;
+        }
+        running = false;
+        LockSupport.unpark(current);
+        try {
+            current.join(timeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return !current.isAlive();
+    }
+
+    /**
+     * Pushes the deadline back by the timeout. Called before sending each command, so a stop
+     * issued by the watchdog never overrides it.
+     */
+    public void feed() {
+        Thread waiting = null;
+        synchronized (this) {
+            lastFeedNanos = System.nanoTime();
+            // The thread waits for the first feed, or for the next one after tripping
+            if (!fed || tripped) {
+                waiting = thread;
+            }
+            fed = true;
+            tripped = false;
+        }
+        if (waiting != null) {
+            LockSupport.unpark(waiting);
+        }
+    }
+
+    private void loop() {
+        while (running) {
+            long wait;
+            boolean trippedNow = false;
+            synchronized (this) {
+                if (!fed || tripped) {
+                    wait = -1;
+                } else {
+                    long deadline = lastFeedNanos + timeoutNanos;
+                    long now = System.nanoTime();
+                    wait = deadline - now;
+                    if (wait <= 0) {
+                        trip(now - deadline);
+                        trippedNow = true;
+                        wait = -1;
+                    }
+                }
+            }
+            if (trippedNow) {
+                log.info("No cmd vel received in ", TimeUnit.NANOSECONDS.toMillis(timeoutNanos),
+                        " ms. Stopping.");
+                continue;
+            }
+            if (wait < 0) {
+                LockSupport.park(this);
+            } else {
+                LockSupport.parkNanos(this, wait);
+            }
+        }
+    }
+
+    private void trip(long latenessNanos) {
+        tripped = true;
+        activationCount++;
+        lastLatenessNanos = latenessNanos;
+        maxLatenessNanos = Math.max(maxLatenessNanos, latenessNanos);
+        try {
+            listener.onTimeout();
+        } catch (Throwable t) {
+            log.error("Exception occurred stopping the base", t);
+        }
+    }
+
+    public long getTimeoutNanos() {
+        return timeoutNanos;
+    }
+
+    public synchronized boolean isTripped() {
+        return tripped;
+    }
+
+    /**
+     * @return: Number of times the watchdog tripped.
+     */
+    public long getActivationCount() {
+        return activationCount;
+    }
+
+    /**
+     * @return: How late past its deadline the last trip happened.
+     */
+    public long getLastLatenessNanos() {
+        return lastLatenessNanos;
+    }
+
+    public long getMaxLatenessNanos() {
+        return maxLatenessNanos;
+    }
+}
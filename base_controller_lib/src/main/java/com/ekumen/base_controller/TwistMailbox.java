@@ -0,0 +1,113 @@
+/*
+ * Copyright 2017 Ekumen, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ekumen.base_controller;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the latest twist and when it arrived. Each post replaces the previous twist, so a flood
+ * of twists is coalesced into the latest one. Neither posting nor reading ever waits.
+ *
+ * Every post publishes a small immutable twist through a single atomic reference, so readers
+ * always see one whole twist. Posting is lock-free: a writer only retries when another post
+ * completed in the meantime, to number its twist after that one. Reading is wait-free.
+ */
+public class TwistMailbox {
+
+    /**
+     * Copy of a posted twist, filled by {@link #read(Message)}.
+     */
+    public static class Message {
+        private double linearVelX;
+        private double angVelZ;
+        private long arrivalNanos;
+        private long sequence;
+
+        public double getLinearVelX() {
+            return linearVelX;
+        }
+
+        public double getAngVelZ() {
+            return angVelZ;
+        }
+
+        /**
+         * @return: {@link System#nanoTime()} when the twist was posted.
+         */
+        public long getArrivalNanos() {
+            return arrivalNanos;
+        }
+
+        /**
+         * @return: Number of twists posted up to this one. 0 if none was posted.
+         */
+        public long getSequence() {
+            return sequence;
+        }
+    }
+
+    private static class Twist {
+        final double linearVelX;
+        final double angVelZ;
+        final long arrivalNanos;
+        final long sequence;
+
+        Twist(double linearVelX, double angVelZ, long arrivalNanos, long sequence) {
+            this.linearVelX = linearVelX;
+            this.angVelZ = angVelZ;
+            this.arrivalNanos = arrivalNanos;
+            this.sequence = sequence;
+        }
+    }
+
+    private final AtomicReference<Twist> latest = new AtomicReference<Twist>(new Twist(0.0, 0.0, 0, 0));
+
+    /**
+     * Replaces the twist in the mailbox.
+     * @return: Number of twists posted up to this one.
+     */
+    public long post(double linearVelX, double angVelZ) {
+        long arrival = System.nanoTime();
+        while (true) {
+            Twist previous = latest.get();
+            Twist twist = new Twist(linearVelX, angVelZ, arrival, previous.sequence + 1);
+            if (latest.compareAndSet(previous, twist)) {
+                return twist.sequence;
+            }
+        }
+    }
+
+    /**
+     * Copies the latest twist into the given message.
+     * @return: The given message.
+     */
+    public Message read(Message message) {
+        Twist twist = latest.get();
+        message.linearVelX = twist.linearVelX;
+        message.angVelZ = twist.angVelZ;
+        message.arrivalNanos = twist.arrivalNanos;
+        message.sequence = twist.sequence;
+        return message;
+    }
+
+    /**
+     * @return: Number of twists posted so far.
+     */
+    public long getSequence() {
+        return latest.get().sequence;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2017 Ekumen, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ekumen.base_controller;
+
+/**
+ * Shapes the velocities sent to a base, so they change with bounded acceleration and jerk
+ * instead of jumping to each new twist. Stepped at the command rate of the base, it produces
+ * the intermediate setpoints between twists.
+ *
+ * Each axis accelerates towards its target as hard as the limits allow while still being able
+ * to bring the acceleration back to zero, at the jerk limit, right when the target is reached.
+ * Not thread safe: it is stepped by the thread sending the commands.
+ */
+public class VelocityRamp {
+
+    private static class Axis {
+        private final double maxAccel;
+        private final double maxJerk;
+        private double target = 0.0;
+        private double velocity = 0.0;
+        private double accel = 0.0;
+
+        Axis(double maxAccel, double maxJerk) {
+            this.maxAccel = maxAccel;
+            this.maxJerk = maxJerk;
+        }
+
+        void step(double dt) {
+            double error = target - velocity;
+            if (maxAccel <= 0 || Math.abs(error) < SETTLED_ERROR) {
+                settle();
+                return;
+            }
+            double next;
+            if (maxJerk <= 0) {
+                // Acceleration limit only
+                double change = Math.max(-maxAccel * dt, Math.min(maxAccel * dt, error));
+                accel = change / dt;
+                next = velocity + change;
+            } else {
+                double landing = error / dt;
+                if (Math.abs(landing) <= maxJerk * dt && Math.abs(landing - accel) <= maxJerk * dt) {
+                    // Reaches the target in this step, and can drop the acceleration next one
+                    accel = landing;
+                    velocity = target;
+                    return;
+                }
+                // Highest acceleration that can still be brought to zero by the target, from
+                // where this step leaves the velocity
+                double ahead = error - accel * dt;
+                double desired = ahead == 0 ? 0.0
+                        : Math.signum(ahead) * Math.min(maxAccel, Math.sqrt(2 * maxJerk * Math.abs(ahead)));
+                accel += Math.max(-maxJerk * dt, Math.min(maxJerk * dt, desired - accel));
+                next = velocity + accel * dt;
+            }
+            if ((target - next) * error <= 0) {
+                settle();
+            } else {
+                velocity = next;
+            }
+        }
+
+        void settle() {
+            velocity = target;
+            accel = 0.0;
+        }
+
+        boolean isSettled() {
+            return velocity == target && accel == 0.0;
+        }
+    }
+
+    // Velocity errors below this are considered reached
+    private static final double SETTLED_ERROR = 1e-4;
+
+    private final Axis linear;
+    private final Axis angular;
+
+    /**
+     * Limits of 0 or less disable them: without an acceleration limit, velocities jump to
+     * their targets, and without a jerk limit, acceleration does.
+     * @param maxLinearAccel: In m/s².
+     * @param maxLinearJerk: In m/s³.
+     * @param maxAngularAccel: In rad/s².
+     * @param maxAngularJerk: In rad/s³.
+     */
+    public VelocityRamp(double maxLinearAccel, double maxLinearJerk,
+                        double maxAngularAccel, double maxAngularJerk) {
+        linear = new Axis(maxLinearAccel, maxLinearJerk);
+        angular = new Axis(maxAngularAccel, maxAngularJerk);
+    }
+
+    public void setTarget(double linearVelX, double angVelZ) {
+        linear.target = linearVelX;
+        angular.target = angVelZ;
+    }
+
+    /**
+     * Advances the velocities towards the target.
+     * @param dt: Time since the last step, in seconds.
+     */
+    public void step(double dt) {
+        if (dt <= 0) {
+            return;
+        }
+        linear.step(dt);
+        angular.step(dt);
+    }
+
+    /**
+     * Jumps to the given velocities, with no acceleration.
+     */
+    public void reset(double linearVelX, double angVelZ) {
+        setTarget(linearVelX, angVelZ);
+        linear.settle();
+        angular.settle();
+    }
+
+    public double getLinearVelX() {
+        return linear.velocity;
+    }
+
+    public double getAngVelZ() {
+        return angular.velocity;
+    }
+
+    /**
+     * @return: <code>true</code> once both velocities reached their targets.
+     */
+    public boolean isSettled() {
+        return linear.isSettled() && angular.isSettled();
+    }
+}
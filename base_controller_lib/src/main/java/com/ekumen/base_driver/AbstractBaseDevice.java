@@ -18,28 +18,93 @@ package com.ekumen.base_driver;
 
 import android.hardware.usb.UsbDeviceConnection;
 import com.hoho.android.usbserial.driver.UsbSerialPort;
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
-
 import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Encapsulates common functionality for all base devices, providing a common method to
  * establish a connection using a given {@link UsbSerialPort} and a {@link UsbDeviceConnection}.
  * Connection parameters have to be defined in each subclass, as they are device-dependent.
+ *
+ * Subclasses call {@link #startReceiving()} once they are ready to decode data, and receive
+ * every chunk read from the port in {@link #updateReceivedData(byte[], int)}. Commands are
+ * written through the {@link CommandWriter} of the device, so callers never block on the port.
+ *
+ * Reading and writing run as two long-running tasks, on an executor given to the device or on
+ * one the device creates for itself. Both are started by {@link #startReceiving()}, at the end
+ * of the subclass constructor, so a device that fails to construct never leaves a task behind;
+ * subclasses call {@link #close()} when their setup fails, to close the port too.
+ * {@link #close()} stops both tasks and closes the port.
+ * Listeners are notified from the reading thread. Exceptions thrown by a listener are logged,
+ * and neither stop the other listeners nor the reading.
  */
 public abstract class AbstractBaseDevice implements BaseDevice {
 
     protected UsbSerialPort port;
-    private static final Log log = LogFactory.getLog(AbstractBaseDevice.class);
+    protected final ListenerList<InertialListener> inertialListeners =
+            new ListenerList<InertialListener>(InertialListener.class);
+    protected final ListenerList<OdometryListener> odometryListeners =
+            new ListenerList<OdometryListener>(OdometryListener.class);
+    protected final ListenerList<BaseStatusListener> baseStatusListeners =
+            new ListenerList<BaseStatusListener>(BaseStatusListener.class);
+    protected final ListenerList<RawFrameListener> rawFrameListeners =
+            new ListenerList<RawFrameListener>(RawFrameListener.class);
+    private SerialReader serialReader;
+    private Future<?> readerTask;
+    private final CommandWriter commandWriter;
+    private Future<?> writerTask;
+    private final ExecutorService ioExecutor;
+    private final boolean ownsExecutor;
+    private boolean closed = false;
+    private volatile long keepalivePeriodMs = DEFAULT_KEEPALIVE_PERIOD_MS;
+    private volatile long commandPeriodMs = DEFAULT_COMMAND_PERIOD_MS;
+
+    // Movement commands are repeated at least this often by default
+    public static final long DEFAULT_KEEPALIVE_PERIOD_MS = 250;
+    // The Kobuki and Create control loops run at 50 Hz
+    public static final long DEFAULT_COMMAND_PERIOD_MS = 20;
+
+    // Time to wait for the reading and writing loops to return when closing. The read timeout
+    // of the reader and the write timeout of the writer are shorter.
+    private static final long CLOSE_TIMEOUT_MS = 1500;
+
+    private static final DriverLog log = new DriverLog(AbstractBaseDevice.class);
+    private final DriverLog.Event readErrors = log.rateLimited(DriverLog.Level.ERROR, "Error reading from device");
+    private final DriverLog.Event decodeErrors =
+            log.rateLimited(DriverLog.Level.ERROR, "Error handling data received from device");
+    private final DriverLog.Event listenerErrors = log.rateLimited(DriverLog.Level.ERROR, "Device listener failed");
 
+    /**
+     * @param connection: Connection used to open the port. Can be <code>null</code> for ports
+     *                  that don't need one, such as simulated ports.
+     */
     public AbstractBaseDevice(UsbSerialPort port, UsbDeviceConnection connection) throws Exception {
+        this(port, connection, null);
+    }
+
+    /**
+     * @param connection: Connection used to open the port. Can be <code>null</code> for ports
+     *                  that don't need one, such as simulated ports.
+     * @param ioExecutor: Runs the reading and writing loops of the device, which take a thread
+     *                  each until the device is closed. It is not shut down by the device. If
+     *                  <code>null</code>, the device creates its own.
+     */
+    public AbstractBaseDevice(UsbSerialPort port, UsbDeviceConnection connection,
+                              ExecutorService ioExecutor) throws Exception {
         this.port = port;
 
-        if (port == null || connection == null) {
-            throw new Exception("null USB port/ connection provided");
+        if (port == null) {
+            throw new Exception("null USB port provided");
         }
 
+        this.ownsExecutor = ioExecutor == null;
+        this.ioExecutor = ownsExecutor ? Executors.newFixedThreadPool(2) : ioExecutor;
+
         try {
             port.open(connection);
             setConnectionParameters(port);
@@ -52,19 +117,220 @@ public abstract class AbstractBaseDevice implements BaseDevice {
                 e1.printStackTrace();
             }
         }
+
+        commandWriter = new CommandWriter(port);
     }
 
     protected abstract void setConnectionParameters(UsbSerialPort port) throws Exception;
 
+    /**
+     * Starts writing the commands sent so far, and reading the port, each in its own thread.
+     * Every chunk read is handed to {@link #updateReceivedData(byte[], int)}.
+     */
+    protected void startReceiving() {
+        writerTask = ioExecutor.submit(commandWriter);
+        serialReader = new SerialReader(port, new SerialReader.Listener() {
+            @Override
+            public void onData(byte[] data, int length) {
+                updateReceivedData(data, length);
+            }
+
+            @Override
+            public void onError(Exception e) {
+                if (e instanceof IOException) {
+                    readErrors.record(e);
+                } else {
+                    decodeErrors.record(e);
+                }
+            }
+        });
+        readerTask = ioExecutor.submit(serialReader);
+    }
+
+    /**
+     * Stops reading and writing and closes the port. Commands not written yet are dropped.
+     * The reader is stopped before the port is closed, so closing doesn't show up as a read
+     * error. Does nothing if the device is already closed.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        commandWriter.stop();
+        if (serialReader != null) {
+            serialReader.stop();
+            if (readerTask != null) {
+                awaitTask(readerTask, "reader");
+            }
+        }
+        if (writerTask != null) {
+            awaitTask(writerTask, "writer");
+        }
+        try {
+            port.close();
+        } catch (IOException e) {
+            log.error("Error closing device", e);
+        }
+        if (ownsExecutor) {
+            ioExecutor.shutdown();
+        }
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    private static void awaitTask(Future<?> task, String name) {
+        try {
+            task.get(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            log.error("Device " + name + " didn't stop in time, interrupting it");
+            task.cancel(true);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log.error("Device " + name + " failed", e.getCause());
+        }
+    }
+
+    /**
+     * @return: The writer of the commands sent to the base, which exposes queue depth and
+     * write latency.
+     */
+    public CommandWriter getCommandWriter() {
+        return commandWriter;
+    }
+
+    /**
+     * Called from the reading thread with every chunk of data received from the base.
+     * @param data: Reused by the reader. Only valid during the call.
+     * @param length: Number of bytes received.
+     */
+    protected abstract void updateReceivedData(byte[] data, int length);
+
     @Override
     public abstract void initialize();
 
     @Override
     public abstract void move(double linearVelX, double angVelZ);
 
+    @Override
+    public long getKeepalivePeriodMs() {
+        return keepalivePeriodMs;
+    }
+
+    public void setKeepalivePeriodMs(long keepalivePeriodMs) {
+        if (keepalivePeriodMs <= 0) {
+            throw new IllegalArgumentException("Keepalive period must be positive");
+        }
+        this.keepalivePeriodMs = keepalivePeriodMs;
+    }
+
+    @Override
+    public long getCommandPeriodMs() {
+        return commandPeriodMs;
+    }
+
+    public void setCommandPeriodMs(long commandPeriodMs) {
+        if (commandPeriodMs <= 0) {
+            throw new IllegalArgumentException("Command period must be positive");
+        }
+        this.commandPeriodMs = commandPeriodMs;
+    }
+
     @Override
     public abstract BaseStatus getBaseStatus();
 
     @Override
     public abstract OdometryStatus getOdometryStatus();
+
+    @Override
+    public void addInertialListener(InertialListener listener) {
+        inertialListeners.add(listener);
+    }
+
+    @Override
+    public void removeInertialListener(InertialListener listener) {
+        inertialListeners.remove(listener);
+    }
+
+    protected void notifyInertialListeners(InertialInformation inertialInformation) {
+        for (InertialListener listener : inertialListeners.get()) {
+            try {
+                listener.onInertialInformation(inertialInformation);
+            } catch (Throwable t) {
+                listenerErrors.record(t);
+            }
+        }
+    }
+
+    @Override
+    public void addOdometryListener(OdometryListener listener) {
+        odometryListeners.add(listener);
+    }
+
+    @Override
+    public void removeOdometryListener(OdometryListener listener) {
+        odometryListeners.remove(listener);
+    }
+
+    /**
+     * Does nothing until the odometry has been updated: before that, it has no timestamp.
+     */
+    protected void notifyOdometryListeners(OdometryStatus odometryStatus) {
+        if (odometryStatus.getSequence() == 0) {
+            return;
+        }
+        for (OdometryListener listener : odometryListeners.get()) {
+            try {
+                listener.onOdometry(odometryStatus);
+            } catch (Throwable t) {
+                listenerErrors.record(t);
+            }
+        }
+    }
+
+    @Override
+    public void addBaseStatusListener(BaseStatusListener listener) {
+        baseStatusListeners.add(listener);
+    }
+
+    @Override
+    public void removeBaseStatusListener(BaseStatusListener listener) {
+        baseStatusListeners.remove(listener);
+    }
+
+    protected void notifyBaseStatusListeners(BaseStatus baseStatus) {
+        for (BaseStatusListener listener : baseStatusListeners.get()) {
+            try {
+                listener.onBaseStatus(baseStatus);
+            } catch (Throwable t) {
+                listenerErrors.record(t);
+            }
+        }
+    }
+
+    @Override
+    public void addRawFrameListener(RawFrameListener listener) {
+        rawFrameListeners.add(listener);
+    }
+
+    @Override
+    public void removeRawFrameListener(RawFrameListener listener) {
+        rawFrameListeners.remove(listener);
+    }
+
+    protected void notifyRawFrameListeners(byte[] frame, int length) {
+        for (RawFrameListener listener : rawFrameListeners.get()) {
+            try {
+                listener.onRawFrame(frame, length);
+            } catch (Throwable t) {
+                listenerErrors.record(t);
+            }
+        }
+    }
 }
@@ -1,15 +1,22 @@
 package com.ekumen.base_driver;
 
 /**
+ * Updated from a single thread, the serial reading thread, and read from any. Updates are
+ * published with a sequence lock: the sequence is odd while an update is in progress, so
+ * readers retry instead of making the updating thread wait for them. Every update is also kept
+ * in a {@link PoseHistory}, to look up the pose at past times.
+ *
  * @author jcerruti@willowgarage.com (Julian Cerruti)
  */
 public class AbstractOdometryStatus implements OdometryStatus {
     // Actual data properties
-    protected double poseX;
-    protected double poseY;
-    protected double poseTheta;
-    protected double speedLinearX;
-    protected double speedAngularZ;
+    private volatile double poseX;
+    private volatile double poseY;
+    private volatile double poseTheta;
+    private volatile double speedLinearX;
+    private volatile double speedAngularZ;
+    private volatile long timestampMs;
+    private volatile long sequence = 0;
 
     // Work variables
     protected int lastLeftTravel;
@@ -17,9 +24,21 @@ public class AbstractOdometryStatus implements OdometryStatus {
     protected boolean haveLastTravel = false;
 
     private final double WIDTH;
+    private final PoseHistory history;
+
+    // Number of updates kept in the history by default: 10 s of Kobuki feedback
+    public static final int DEFAULT_HISTORY_SIZE = 512;
 
     public AbstractOdometryStatus(double width) {
+        this(width, DEFAULT_HISTORY_SIZE);
+    }
+
+    /**
+     * @param historySize: Number of updates kept to look up past poses.
+     */
+    public AbstractOdometryStatus(double width, int historySize) {
         WIDTH = width;
+        history = new PoseHistory(historySize);
     }
 
     @Override
@@ -45,11 +64,59 @@ public class AbstractOdometryStatus implements OdometryStatus {
         return speedAngularZ;
     }
 
+    @Override
+    public long getSequence() {
+        return sequence >> 1;
+    }
+
+    @Override
+    public OdometrySnapshot getSnapshot(OdometrySnapshot snapshot) {
+        while (true) {
+            long before = sequence;
+            if ((before & 1) == 0) {
+                double x = poseX;
+                double y = poseY;
+                double theta = poseTheta;
+                double linear = speedLinearX;
+                double angular = speedAngularZ;
+                long timestamp = timestampMs;
+                if (sequence == before) {
+                    snapshot.set(x, y, theta, linear, angular, timestamp, before >> 1);
+                    return snapshot;
+                }
+            }
+            // An update is in progress: it takes well under a microsecond
+            Thread.yield();
+        }
+    }
+
+    @Override
+    public boolean getPoseAt(long timestampMs, OdometrySnapshot snapshot) {
+        return history.getPoseAt(timestampMs, snapshot);
+    }
+
+    @Override
+    public boolean getRelativePose(long fromMs, long toMs, OdometrySnapshot scratch, Pose2D relative) {
+        return history.getRelativePose(fromMs, toMs, scratch, relative);
+    }
+
+    public PoseHistory getPoseHistory() {
+        return history;
+    }
+
     /**
      * Updates the currently estimated pose based on the travel and speed of the encoders
      */
     protected void calculateAndUpdate(int leftTravel, int rightTravel, double leftSpeed,
                                       double rightSpeed) {
+        calculateAndUpdate(leftTravel, rightTravel, leftSpeed, rightSpeed, System.currentTimeMillis());
+    }
+
+    /**
+     * @param timestampMs: Time of the encoder sample, in milliseconds since the epoch.
+     */
+    protected void calculateAndUpdate(int leftTravel, int rightTravel, double leftSpeed,
+                                      double rightSpeed, long timestampMs) {
 
         // Special case: first time ever we can't calculate differences
         if(!haveLastTravel) {
@@ -65,13 +132,21 @@ public class AbstractOdometryStatus implements OdometryStatus {
         lastLeftTravel = leftTravel;
         lastRightTravel = rightTravel;
 
-        // Update data
-        synchronized (this) {
-            this.speedLinearX = (leftSpeed + rightSpeed) / 2000.0;
-            speedAngularZ = (rightSpeed - leftSpeed) / (1000.0*WIDTH);
-            poseX += dr * Math.cos(poseTheta);
-            poseY += dr * Math.sin(poseTheta);
-            poseTheta += da;
-        }
+        // Update data. Only this thread writes, so the current values can be read freely.
+        double theta = poseTheta;
+        double x = poseX + dr * Math.cos(theta);
+        double y = poseY + dr * Math.sin(theta);
+        double linear = (leftSpeed + rightSpeed) / 2000.0;
+        double angular = (rightSpeed - leftSpeed) / (1000.0*WIDTH);
+        long current = sequence;
+        sequence = current + 1;
+        this.speedLinearX = linear;
+        speedAngularZ = angular;
+        poseX = x;
+        poseY = y;
+        poseTheta = theta + da;
+        this.timestampMs = timestampMs;
+        sequence = current + 2;
+        history.add(timestampMs, x, y, theta + da, linear, angular, (current + 2) >> 1);
     }
 }
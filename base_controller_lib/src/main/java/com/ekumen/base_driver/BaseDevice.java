@@ -36,6 +36,18 @@ public interface BaseDevice {
      */
     void move(double linearVelX, double angVelZ);
 
+    /**
+     * @return: Longest time the base should go without a movement command. Callers repeat the
+     * last command at least this often.
+     */
+    long getKeepalivePeriodMs();
+
+    /**
+     * @return: Period of the control loop of the base: sending commands more often than this
+     * has no effect. Shaped velocity profiles are sent at this rate.
+     */
+    long getCommandPeriodMs();
+
     /**
      * @return: The base status updated with the latest base information.
      */
@@ -43,4 +55,38 @@ public interface BaseDevice {
 
 
     OdometryStatus getOdometryStatus();
+
+    /**
+     * Registers a listener called every time the base reports inertial data. Bases without
+     * inertial sensors never call it.
+     */
+    void addInertialListener(InertialListener listener);
+
+    void removeInertialListener(InertialListener listener);
+
+    /**
+     * Registers a listener called every time the odometry is updated with data from the base.
+     */
+    void addOdometryListener(OdometryListener listener);
+
+    void removeOdometryListener(OdometryListener listener);
+
+    /**
+     * Registers a listener called every time the base status is updated with data from the base.
+     */
+    void addBaseStatusListener(BaseStatusListener listener);
+
+    void removeBaseStatusListener(BaseStatusListener listener);
+
+    /**
+     * Registers a listener called with every valid frame received from the base.
+     */
+    void addRawFrameListener(RawFrameListener listener);
+
+    void removeRawFrameListener(RawFrameListener listener);
+
+    /**
+     * Stops every thread of the device and closes its port. The device can't be used after.
+     */
+    void close();
 }
\ No newline at end of file
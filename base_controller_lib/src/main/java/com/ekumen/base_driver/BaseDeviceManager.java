@@ -0,0 +1,240 @@
+/*
+ * Copyright 2017 Ekumen, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ekumen.base_driver;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the I/O of several base devices on a single, bounded pool of threads, and controls
+ * their lifecycle. Every device takes two threads of the pool while open, one reading and one
+ * writing, so the pool is sized for the maximum number of devices. A device is only opened when
+ * two threads of the pool are free, so it never waits for threads still held by other devices:
+ * one closed directly instead of through the manager, or one whose I/O didn't stop on close.
+ * <pre>
+ * BaseDeviceManager manager = new BaseDeviceManager(2);
+ * KobukiBaseDevice kobuki = manager.open(new BaseDeviceManager.DeviceFactory&lt;KobukiBaseDevice&gt;() {
+ *     public KobukiBaseDevice create(ExecutorService ioExecutor) throws Exception {
+ *         return new KobukiBaseDevice(port, connection, ioExecutor);
+ *     }
+ * });
+ * ...
+ * manager.shutdown();
+ * </pre>
+ */
+public class BaseDeviceManager {
+
+    /**
+     * Creates a device that runs its I/O on the given executor.
+     */
+    public interface DeviceFactory<T extends BaseDevice> {
+        T create(ExecutorService ioExecutor) throws Exception;
+    }
+
+    private static final int THREADS_PER_DEVICE = 2;
+    private static final long SHUTDOWN_TIMEOUT_MS = 3000;
+    // Time to wait for the threads of a device that was just closed to become free
+    private static final long THREAD_RELEASE_TIMEOUT_MS = 100;
+
+    private final int maxDevices;
+    private final int threads;
+    private final ThreadPoolExecutor executor;
+    // Pool threads taken by device I/O, from the moment a task is submitted until it returns
+    private final AtomicInteger busyThreads = new AtomicInteger();
+    private final List<BaseDevice> devices = new ArrayList<BaseDevice>();
+    private boolean shutdown = false;
+
+    private static final Log log = LogFactory.getLog(BaseDeviceManager.class);
+
+    /**
+     * @param maxDevices: Maximum number of devices open at the same time.
+     */
+    public BaseDeviceManager(int maxDevices) {
+        if (maxDevices < 1) {
+            throw new IllegalArgumentException("At least one device must be allowed");
+        }
+        this.maxDevices = maxDevices;
+        threads = maxDevices * THREADS_PER_DEVICE;
+        executor = new IoExecutor();
+    }
+
+    /**
+     * Creates a device on the shared pool and starts managing it.
+     * @throws IllegalStateException: If the pool doesn't have the threads for another device,
+     * because the maximum number of devices is open, or the manager was shut down.
+     */
+    public synchronized <T extends BaseDevice> T open(DeviceFactory<T> factory) throws Exception {
+        if (shutdown) {
+            throw new IllegalStateException("Device manager shut down");
+        }
+        // Threads are counted rather than devices, since devices can hold them after closing
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(THREAD_RELEASE_TIMEOUT_MS);
+        while (getFreeThreadCount() < THREADS_PER_DEVICE) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                log.error("No free I/O threads for another device: " + (threads - getFreeThreadCount())
+                        + " of " + threads + " busy");
+                throw new IllegalStateException("Maximum number of devices open: " + maxDevices);
+            }
+            // Woken up when a task returns
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        T device = factory.create(executor);
+        devices.add(device);
+        return device;
+    }
+
+    /**
+     * Closes a device, releasing its threads for other devices.
+     * @return: <code>false</code> if the device isn't managed by this manager.
+     */
+    public boolean close(BaseDevice device) {
+        synchronized (this) {
+            if (!devices.remove(device)) {
+                return false;
+            }
+        }
+        device.close();
+        synchronized (this) {
+            notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * Closes every device and stops the pool. Waits for the threads of the pool to finish.
+     */
+    public void shutdown() {
+        List<BaseDevice> open;
+        synchronized (this) {
+            if (shutdown) {
+                return;
+            }
+            shutdown = true;
+            open = new ArrayList<BaseDevice>(devices);
+            devices.clear();
+        }
+        for (BaseDevice device : open) {
+            try {
+                device.close();
+            } catch (RuntimeException e) {
+                log.error("Error closing device", e);
+            }
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                log.error("Device threads didn't stop in time, interrupting them");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public synchronized boolean isShutdown() {
+        return shutdown;
+    }
+
+    /**
+     * @return: A copy of the list of open devices. Devices closed directly, instead of through
+     * the manager, are listed until the manager is shut down.
+     */
+    public synchronized List<BaseDevice> getDevices() {
+        return new ArrayList<BaseDevice>(devices);
+    }
+
+    public int getMaxDevices() {
+        return maxDevices;
+    }
+
+    /**
+     * @return: Number of pool threads running device I/O right now.
+     */
+    public int getActiveThreadCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * @return: Number of pool threads not taken by device I/O.
+     */
+    public int getFreeThreadCount() {
+        return threads - busyThreads.get();
+    }
+
+    /**
+     * Counts the threads taken by device I/O, and wakes up {@link #open} when one is released.
+     * Tasks only queue for the moment a thread takes to go back to the pool. Beyond that, they
+     * are rejected instead of waiting forever.
+     */
+    private class IoExecutor extends ThreadPoolExecutor {
+        IoExecutor() {
+            super(threads, threads, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(threads), new IoThreadFactory());
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            busyThreads.incrementAndGet();
+            try {
+                super.execute(command);
+            } catch (RuntimeException e) {
+                release();
+                throw e;
+            }
+        }
+
+        @Override
+        protected void afterExecute(Runnable runnable, Throwable throwable) {
+            super.afterExecute(runnable, throwable);
+            release();
+        }
+
+        private void release() {
+            busyThreads.decrementAndGet();
+            synchronized (BaseDeviceManager.this) {
+                BaseDeviceManager.this.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Daemon threads, so a forgotten manager doesn't keep the process alive.
+     */
+    private static class IoThreadFactory implements ThreadFactory {
+        private static final AtomicInteger poolCount = new AtomicInteger();
+        private final int pool = poolCount.incrementAndGet();
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "base-io-" + pool + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
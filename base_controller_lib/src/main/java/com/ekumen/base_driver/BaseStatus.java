@@ -34,7 +34,13 @@ public class BaseStatus {
 	private short angleRate = 0;
 	private int leftDistance = 0;
 	private int rightDistance = 0;
+	private byte emergencyStop = 0;
+    private long measuredTime = 0;
 
+    /**
+     * @return: Millisecond counter of the base when it took the sample, which wraps around.
+     * Mask it with 0xFFFF to read it unsigned.
+     */
     public short getTimestamp() {
         return timeStamp;
     }
@@ -122,4 +128,27 @@ public class BaseStatus {
     public void setBumper(byte bumper) {
         this.bumper = bumper;
     }
-}
\ No newline at end of file
+
+    /**
+     * @return: 1 while the emergency stop of the base is engaged, on bases that report it.
+     */
+    public byte getEmergencyStop() {
+        return emergencyStop;
+    }
+
+    public void setEmergencyStop(byte emergencyStop) {
+        this.emergencyStop = emergencyStop;
+    }
+
+    /**
+     * @return: Time the base took the sample, in milliseconds since the epoch, or 0 if the
+     * base doesn't report it.
+     */
+    public long getMeasuredTime() {
+        return measuredTime;
+    }
+
+    public void setMeasuredTime(long measuredTime) {
+        this.measuredTime = measuredTime;
+    }
+}
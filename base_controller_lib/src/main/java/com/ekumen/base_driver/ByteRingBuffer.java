@@ -0,0 +1,115 @@
+/*
+ * Copyright 2017 Ekumen, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ekumen.base_driver;
+
+/**
+ * Fixed-capacity byte FIFO used by the packet framers to accumulate serial data across
+ * USB reads. Bytes are addressed relative to the current read position, so a framer can
+ * look ahead for a complete frame before consuming it, regardless of where the frame wraps
+ * around in the backing array.
+ *
+ * Not thread-safe: it is meant to be owned by the single thread delivering serial data.
+ */
+public class ByteRingBuffer {
+    private final byte[] buffer;
+    private final int mask;
+    private int readIndex = 0;
+    private int size = 0;
+
+    /**
+     * @param capacity: Number of bytes the buffer can hold. Must be a power of two.
+     */
+    public ByteRingBuffer(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        buffer = new byte[capacity];
+        mask = capacity - 1;
+    }
+
+    public int capacity() {
+        return buffer.length;
+    }
+
+    /**
+     * @return: Number of bytes stored and not yet consumed.
+     */
+    public int available() {
+        return size;
+    }
+
+    /**
+     * @return: Number of bytes that can be written before the buffer is full.
+     */
+    public int free() {
+        return buffer.length - size;
+    }
+
+    /**
+     * Appends as many bytes from the given range as there is room for.
+     * @return: The number of bytes actually written.
+     */
+    public int write(byte[] src, int offset, int length) {
+        int count = Math.min(length, free());
+        int writeIndex = (readIndex + size) & mask;
+        int firstPart = Math.min(count, buffer.length - writeIndex);
+        System.arraycopy(src, offset, buffer, writeIndex, firstPart);
+        System.arraycopy(src, offset + firstPart, buffer, 0, count - firstPart);
+        size += count;
+        return count;
+    }
+
+    /**
+     * @return: The byte at the given position, relative to the oldest stored byte.
+     */
+    public byte peek(int position) {
+        return buffer[(readIndex + position) & mask];
+    }
+
+    /**
+     * @return: The byte at the given position as an unsigned value.
+     */
+    public int peekUnsigned(int position) {
+        return buffer[(readIndex + position) & mask] & 0xFF;
+    }
+
+    /**
+     * Copies stored bytes, starting at the given relative position, without consuming them.
+     */
+    public void copyTo(int position, byte[] dst, int dstOffset, int length) {
+        int start = (readIndex + position) & mask;
+        int firstPart = Math.min(length, buffer.length - start);
+        System.arraycopy(buffer, start, dst, dstOffset, firstPart);
+        System.arraycopy(buffer, 0, dst, dstOffset + firstPart, length - firstPart);
+    }
+
+    /**
+     * Consumes the given number of bytes.
+     */
+    public void skip(int count) {
+        if (count > size) {
+            throw new IllegalArgumentException("Cannot skip " + count + " bytes, only " + size + " stored");
+        }
+        readIndex = (readIndex + count) & mask;
+        size -= count;
+    }
+
+    public void clear() {
+        readIndex = 0;
+        size = 0;
+    }
+}
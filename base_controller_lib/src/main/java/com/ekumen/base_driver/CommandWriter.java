@@ -0,0 +1,326 @@
+/*
+ * Copyright 2017 Ekumen, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ekumen.base_driver;
+
+import com.hoho.android.usbserial.driver.UsbSerialPort;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Writes commands to a serial port from its own thread, so callers never block on USB I/O.
+ *
+ * Two kinds of commands are accepted:
+ * - One-shot commands (configuration, data requests, sounds) go through a bounded FIFO and are
+ *   written in order. When the queue is full, the command is dropped and counted.
+ * - Velocity commands go to a single slot: a velocity command not yet written when the next
+ *   one arrives is superseded by it, since only the latest one matters to the base.
+ * Queued one-shot commands are written before the pending velocity command.
+ */
+public class CommandWriter implements Runnable {
+
+    /**
+     * Called from the writing thread right before every command is written, so replies to the
+     * command can't arrive before the listener knows about it.
+     */
+    public interface Listener {
+        /**
+         * May block the writing thread, to hold back commands until the base can take them.
+         * @param command: The bytes to write. Velocity commands are in a buffer of the
+         *               writer, only valid during the call.
+         * @return: <code>false</code> to skip writing the command.
+         */
+        boolean onWriting(byte[] command);
+    }
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 32;
+    private static final int WRITE_TIMEOUT_MS = 1000;
+
+    private final UsbSerialPort port;
+    private volatile Listener listener;
+    private volatile boolean running = true;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition commandsAvailable = lock.newCondition();
+    // One-shot commands, circularly from head
+    private final byte[][] queue;
+    private int head = 0;
+    private int queued = 0;
+    // Latest velocity command, copied into a buffer owned by the writer. The two buffers are
+    // swapped when it is taken for writing, so callers never touch the one being written.
+    private byte[] pendingVelocity = new byte[0];
+    private byte[] writingVelocity = new byte[0];
+    private boolean velocityPending = false;
+
+    private long written = 0;
+    private long dropped = 0;
+    private long superseded = 0;
+    private long rejected = 0;
+    private long errors = 0;
+    private int maxQueueDepth = 0;
+    private volatile long lastWriteNanos = 0;
+    private volatile long maxWriteNanos = 0;
+    private long totalWriteNanos = 0;
+
+    private static final DriverLog log = new DriverLog(CommandWriter.class);
+    private final DriverLog.Event writeErrors = log.rateLimited(DriverLog.Level.ERROR, "Error writing command");
+
+    public CommandWriter(UsbSerialPort port) {
+        this(port, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param queueCapacity: Maximum number of one-shot commands waiting to be written.
+     */
+    public CommandWriter(UsbSerialPort port, int queueCapacity) {
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("Invalid queue capacity: " + queueCapacity);
+        }
+        this.port = port;
+        this.queue = new byte[queueCapacity][];
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Queues a one-shot command. The array is handed over to the writer and must not be
+     * modified afterwards.
+     * @return: <code>false</code> if the queue was full and the command was dropped.
+     */
+    public boolean write(byte[] command) {
+        lock.lock();
+        try {
+            if (queued == queue.length) {
+                dropped++;
+                return false;
+            }
+            queue[(head + queued) % queue.length] = command;
+            queued++;
+            maxQueueDepth = Math.max(maxQueueDepth, queued);
+            commandsAvailable.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the velocity command to write next, superseding the pending one, if any. The
+     * command is copied, so the array can be reused by the caller.
+     */
+    public void writeVelocity(byte[] command) {
+        lock.lock();
+        try {
+            if (velocityPending) {
+                superseded++;
+            }
+            if (pendingVelocity.length != command.length) {
+                pendingVelocity = new byte[command.length];
+            }
+            System.arraycopy(command, 0, pendingVelocity, 0, command.length);
+            velocityPending = true;
+            commandsAvailable.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            byte[] command = null;
+            lock.lock();
+            try {
+                while (running && queued == 0 && !velocityPending) {
+                    commandsAvailable.awaitUninterruptibly();
+                }
+                if (queued > 0) {
+                    command = queue[head];
+                    queue[head] = null;
+                    head = (head + 1) % queue.length;
+                    queued--;
+                } else if (velocityPending) {
+                    byte[] taken = pendingVelocity;
+                    pendingVelocity = writingVelocity;
+                    writingVelocity = taken;
+                    velocityPending = false;
+                    command = taken;
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (command != null) {
+                writeToPort(command);
+            }
+        }
+    }
+
+    private void writeToPort(byte[] command) {
+        Listener current = listener;
+        if (current != null && !current.onWriting(command)) {
+            lock.lock();
+            try {
+                rejected++;
+            } finally {
+                lock.unlock();
+            }
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            port.write(command, WRITE_TIMEOUT_MS);
+        } catch (Exception e) {
+            lock.lock();
+            try {
+                errors++;
+            } finally {
+                lock.unlock();
+            }
+            writeErrors.record(e);
+            return;
+        }
+        long duration = System.nanoTime() - start;
+        lock.lock();
+        try {
+            written++;
+            totalWriteNanos += duration;
+        } finally {
+            lock.unlock();
+        }
+        lastWriteNanos = duration;
+        if (duration > maxWriteNanos) {
+            maxWriteNanos = duration;
+        }
+    }
+
+    /**
+     * Stops writing after the write in progress, if any. Commands still queued are dropped.
+     */
+    public void stop() {
+        lock.lock();
+        try {
+            running = false;
+            commandsAvailable.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return: Number of commands waiting to be written, including the pending velocity command.
+     */
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return queued + (velocityPending ? 1 : 0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return: Largest number of one-shot commands queued at the same time.
+     */
+    public int getMaxQueueDepth() {
+        lock.lock();
+        try {
+            return maxQueueDepth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getWrittenCount() {
+        lock.lock();
+        try {
+            return written;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return: Number of one-shot commands dropped because the queue was full.
+     */
+    public long getDroppedCount() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return: Number of velocity commands replaced by a newer one before being written.
+     */
+    public long getSupersededCount() {
+        lock.lock();
+        try {
+            return superseded;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return: Number of commands the listener didn't let through.
+     */
+    public long getRejectedCount() {
+        lock.lock();
+        try {
+            return rejected;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getErrorCount() {
+        lock.lock();
+        try {
+            return errors;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return: Time the last port write took.
+     */
+    public long getLastWriteNanos() {
+        return lastWriteNanos;
+    }
+
+    public long getMaxWriteNanos() {
+        return maxWriteNanos;
+    }
+
+    public long getMeanWriteNanos() {
+        lock.lock();
+        try {
+            return written == 0 ? 0 : totalWriteNanos / written;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
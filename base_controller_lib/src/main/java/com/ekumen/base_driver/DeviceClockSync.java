@@ -0,0 +1,200 @@
+/*
+ * Copyright 2017 Ekumen, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ekumen.base_driver;
+
+/**
+ * Maps the millisecond counter of a base to the host's monotonic clock, so samples can be
+ * stamped with the time they were measured instead of the time they were received.
+ *
+ * The counter is unwrapped into a 64-bit time. Every sample then gives the difference between
+ * its arrival time and its device time: the clock offset plus the transport latency, which is
+ * never negative. The offset is estimated as the running minimum of that difference, which is
+ * reached by the samples that got through fastest. The minimum leaks slowly upwards, so it
+ * follows a device clock that runs slower than the host. The drift between the clocks is
+ * estimated from the slope between the minima of consecutive windows of samples, each long
+ * enough to contain some fast samples.
+ *
+ * Only used from the reading thread of a device. The estimates can be read from any thread.
+ */
+public class DeviceClockSync {
+    // Upward leak of the minimum, above the drift of the clock crystals of the bases
+    private static final double LEAK = 200e-6;
+    // Length of the windows whose minima measure the drift, so latency noise and the
+    // millisecond resolution of the counter are small compared to the drift over a window
+    private static final long DRIFT_WINDOW_NANOS = 30000000000L;
+    private static final double DRIFT_GAIN = 0.25;
+    private static final double MAX_DRIFT = 500e-6;
+    // Mismatches past this mean the device restarted or samples were lost for longer than
+    // the counter period: the estimate starts over
+    private static final long RESET_THRESHOLD_NANOS = 1000000000L;
+
+    private final long counterMask;
+    private final long halfRange;
+
+    // Unwrapped device time
+    private long lastCounter;
+    private long deviceMs;
+    private boolean synced = false;
+
+    // Last sample at the minimum, which anchors the offset line
+    private long anchorDeviceNanos;
+    private long anchorOffsetNanos;
+    // Minima of the current and previous drift windows
+    private long windowStartNanos;
+    private long windowDeviceNanos;
+    private long windowOffsetNanos;
+    private long previousWindowDeviceNanos;
+    private long previousWindowOffsetNanos;
+    private boolean havePreviousWindow;
+    private volatile double drift = 0;
+    private volatile long offsetNanos;
+    private volatile long latencyNanos;
+    private volatile long resetCount = 0;
+    private volatile long sampleCount = 0;
+
+    /**
+     * @param counterBits: Width of the millisecond counter of the base: 16 for the Kobuki,
+     *                   32 for the Husky.
+     */
+    public DeviceClockSync(int counterBits) {
+        if (counterBits < 8 || counterBits > 32) {
+            throw new IllegalArgumentException("Unsupported counter width: " + counterBits);
+        }
+        counterMask = (1L << counterBits) - 1;
+        halfRange = 1L << (counterBits - 1);
+    }
+
+    /**
+     * Takes a sample into the estimate and maps its device time to the host clock.
+     * @param counter: Millisecond counter of the sample. Only its lower counterBits are used, so
+     *               sign-extended values are fine.
+     * @param receivedNanos: {@link System#nanoTime()} when the sample was received.
+     * @return: Estimated {@link System#nanoTime()} when the sample was measured. Never later
+     * than receivedNanos.
+     */
+    public long toHostNanos(long counter, long receivedNanos) {
+        counter &= counterMask;
+        if (synced) {
+            long delta = (counter - lastCounter) & counterMask;
+            // Counters only go backwards when a sample is seen again out of order
+            deviceMs += delta < halfRange ? delta : delta - counterMask - 1;
+        } else {
+            deviceMs = counter;
+        }
+        lastCounter = counter;
+        long deviceNanos = deviceMs * 1000000L;
+        long sampleOffset = receivedNanos - deviceNanos;
+        sampleCount++;
+
+        if (!synced) {
+            reset(deviceNanos, sampleOffset);
+            synced = true;
+        } else {
+            long elapsed = deviceNanos - anchorDeviceNanos;
+            long predicted = anchorOffsetNanos + (long) (drift * elapsed);
+            if (Math.abs(sampleOffset - predicted) > RESET_THRESHOLD_NANOS) {
+                resetCount++;
+                reset(deviceNanos, sampleOffset);
+            } else if (sampleOffset <= predicted + (long) (LEAK * Math.abs(elapsed))) {
+                // A sample at the leaked minimum: it is the new minimum
+                anchorDeviceNanos = deviceNanos;
+                anchorOffsetNanos = sampleOffset;
+            }
+            updateDrift(deviceNanos, sampleOffset);
+        }
+
+        long offset = anchorOffsetNanos + (long) (drift * (deviceNanos - anchorDeviceNanos));
+        offsetNanos = offset;
+        latencyNanos = sampleOffset - offset;
+        return Math.min(deviceNanos + offset, receivedNanos);
+    }
+
+    /**
+     * Converts a time of the host's monotonic clock to wall clock milliseconds, as used to
+     * stamp messages.
+     */
+    public static long toWallMillis(long hostNanos) {
+        return System.currentTimeMillis() - (System.nanoTime() - hostNanos) / 1000000L;
+    }
+
+    private void reset(long deviceNanos, long sampleOffset) {
+        anchorDeviceNanos = deviceNanos;
+        anchorOffsetNanos = sampleOffset;
+        windowStartNanos = deviceNanos;
+        windowDeviceNanos = deviceNanos;
+        windowOffsetNanos = sampleOffset;
+        havePreviousWindow = false;
+        drift = 0;
+    }
+
+    private void updateDrift(long deviceNanos, long sampleOffset) {
+        if (deviceNanos - windowStartNanos < DRIFT_WINDOW_NANOS) {
+            if (sampleOffset < windowOffsetNanos) {
+                windowDeviceNanos = deviceNanos;
+                windowOffsetNanos = sampleOffset;
+            }
+            return;
+        }
+        if (havePreviousWindow) {
+            double measured = (double) (windowOffsetNanos - previousWindowOffsetNanos)
+                    / (windowDeviceNanos - previousWindowDeviceNanos);
+            double estimate = drift + DRIFT_GAIN * (measured - drift);
+            drift = Math.max(-MAX_DRIFT, Math.min(MAX_DRIFT, estimate));
+        }
+        previousWindowDeviceNanos = windowDeviceNanos;
+        previousWindowOffsetNanos = windowOffsetNanos;
+        havePreviousWindow = true;
+        // This sample starts the next window
+        windowStartNanos = deviceNanos;
+        windowDeviceNanos = deviceNanos;
+        windowOffsetNanos = sampleOffset;
+    }
+
+    /**
+     * @return: Estimated host time minus device time, in nanoseconds, at the last sample.
+     */
+    public long getOffsetNanos() {
+        return offsetNanos;
+    }
+
+    /**
+     * @return: Estimated drift of the host clock with respect to the device clock, in
+     * nanoseconds per nanosecond. Positive when the device clock is slower.
+     */
+    public double getDrift() {
+        return drift;
+    }
+
+    /**
+     * @return: Estimated transport latency of the last sample.
+     */
+    public long getLatencyNanos() {
+        return latencyNanos;
+    }
+
+    /**
+     * @return: Number of times the estimate started over, after a device restart or a long
+     * gap in the samples.
+     */
+    public long getResetCount() {
+        return resetCount;
+    }
+
+    public long getSampleCount() {
+        return sampleCount;
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2017 Ekumen, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ekumen.base_driver;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Logging for the paths the drivers run for every frame or command. Messages take their
+ * values as primitives and are only built when their level is enabled, so disabled messages
+ * cost a level check. Events that can repeat at the rate of the traffic are counted by an
+ * {@link Event}, which only logs a line now and then with the count since the last one.
+ */
+public class DriverLog {
+
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    /**
+     * Counts occurrences of something that can happen once per frame or command, logging
+     * either at most one line per interval or one line every so many occurrences. Lines report
+     * the number of occurrences since the previous one, and the last value or exception
+     * recorded. Recording never blocks and only allocates when a line is logged.
+     */
+    public class Event {
+        private final Level level;
+        private final String message;
+        private final long intervalNanos;
+        private final long sampleEvery;
+        private final AtomicLong count = new AtomicLong(0);
+        private final AtomicLong unreported = new AtomicLong(0);
+        private final AtomicLong lastLineNanos = new AtomicLong(0);
+        private volatile boolean hasValue = false;
+        private volatile long lastValue;
+        private volatile Throwable lastThrowable;
+
+        private Event(Level level, String message, long intervalNanos, long sampleEvery) {
+            this.level = level;
+            this.message = message;
+            this.intervalNanos = intervalNanos;
+            this.sampleEvery = sampleEvery;
+            // The first occurrence is always logged
+            lastLineNanos.set(System.nanoTime() - intervalNanos);
+        }
+
+        public void record() {
+            long total = count.incrementAndGet();
+            unreported.incrementAndGet();
+            if (isEnabled(level)) {
+                long sinceLastLine = sinceLastLine(total);
+                if (sinceLastLine >= 0) {
+                    logLine(sinceLastLine);
+                }
+            }
+        }
+
+        /**
+         * @param value: Detail of this occurrence, such as a message type or a length.
+         */
+        public void record(long value) {
+            lastValue = value;
+            hasValue = true;
+            record();
+        }
+
+        public void record(Throwable throwable) {
+            lastThrowable = throwable;
+            record();
+        }
+
+        /**
+         * @return: Time since the last line if a line is due now, 0 for sampled events, or -1
+         * if no line is due.
+         */
+        private long sinceLastLine(long total) {
+            if (sampleEvery > 0) {
+                return (total - 1) % sampleEvery == 0 ? 0 : -1;
+            }
+            long last = lastLineNanos.get();
+            long now = System.nanoTime();
+            // Only one of the threads recording at the same time logs the line
+            if (now - last >= intervalNanos && lastLineNanos.compareAndSet(last, now)) {
+                return now - last;
+            }
+            return -1;
+        }
+
+        private void logLine(long sinceLastLineNanos) {
+            long occurrences = unreported.getAndSet(0);
+            StringBuilder line = new StringBuilder(message);
+            if (occurrences > 1) {
+                line.append(" (").append(occurrences).append(" times");
+                if (sampleEvery == 0) {
+                    line.append(" in ").append(TimeUnit.NANOSECONDS.toMillis(sinceLastLineNanos)).append(" ms");
+                }
+                line.append(')');
+            }
+            if (hasValue) {
+                line.append(": ").append(lastValue);
+            }
+            Throwable throwable = lastThrowable;
+            lastThrowable = null;
+            write(level, line.toString(), throwable);
+        }
+
+        /**
+         * @return: Number of occurrences recorded, logged or not.
+         */
+        public long getCount() {
+            return count.get();
+        }
+    }
+
+    // Interval between the lines of rate limited events, unless given
+    public static final long DEFAULT_INTERVAL_MS = 5000;
+
+    private final Log log;
+
+    public DriverLog(Class<?> owner) {
+        log = LogFactory.getLog(owner);
+    }
+
+    /**
+     * @return: An event logged at most once every {@link #DEFAULT_INTERVAL_MS}.
+     */
+    public Event rateLimited(Level level, String message) {
+        return rateLimited(level, message, DEFAULT_INTERVAL_MS);
+    }
+
+    /**
+     * @return: An event logged at most once per interval.
+     */
+    public Event rateLimited(Level level, String message, long intervalMs) {
+        return new Event(level, message, TimeUnit.MILLISECONDS.toNanos(intervalMs), 0);
+    }
+
+    /**
+     * @return: An event logged on its first occurrence and then once every so many.
+     */
+    public Event sampled(Level level, String message, long every) {
+        if (every < 1) {
+            throw new IllegalArgumentException("Sampling rate must be at least 1");
+        }
+        return new Event(level, message, 0, every);
+    }
+
+    public boolean isEnabled(Level level) {
+        switch (level) {
+            case DEBUG:
+                return log.isDebugEnabled();
+            case INFO:
+                return log.isInfoEnabled();
+            case WARN:
+                return log.isWarnEnabled();
+            default:
+                return log.isErrorEnabled();
+        }
+    }
+
+    public void debug(String message) {
+        log.debug(message);
+    }
+
+    public void debug(String message, long value) {
+        if (log.isDebugEnabled()) {
+            log.debug(message + value);
+        }
+    }
+
+    public void debug(String message, double value) {
+        if (log.isDebugEnabled()) {
+            log.debug(message + value);
+        }
+    }
+
+    public void info(String message) {
+        log.info(message);
+    }
+
+    public void info(String message, Throwable throwable) {
+        log.info(message, throwable);
+    }
+
+    public void info(String message, long value) {
+        if (log.isInfoEnabled()) {
+            log.info(message + value);
+        }
+    }
+
+    public void info(String message, long value, String suffix) {
+        if (log.isInfoEnabled()) {
+            log.info(message + value + suffix);
+        }
+    }
+
+    public void warn(String message) {
+        log.warn(message);
+    }
+
+    public void error(String message) {
+        log.error(message);
+    }
+
+    public void error(String message, Throwable throwable) {
+        log.error(message, throwable);
+    }
+
+    private void write(Level level, String line, Throwable throwable) {
+        switch (level) {
+            case DEBUG:
+                log.debug(line, throwable);
+                break;
+            case INFO:
+                log.info(line, throwable);
+                break;
+            case WARN:
+                log.warn(line, throwable);
+                break;
+            default:
+                log.error(line, throwable);
+                break;
+        }
+    }
+}
@@ -23,6 +23,9 @@ package com.ekumen.base_driver;
 public class InertialInformation {
     private short angle;
     private short angleRate;
+    private double heading;
+    private double angularVelocity;
+    private long timestamp;
 
     public short getAngle() {
         return angle;
@@ -39,4 +42,37 @@ public class InertialInformation {
     public void setAngleRate(short angleRate) {
         this.angleRate = angleRate;
     }
+
+    /**
+     * @return: Heading in radians.
+     */
+    public double getHeading() {
+        return heading;
+    }
+
+    public void setHeading(double heading) {
+        this.heading = heading;
+    }
+
+    /**
+     * @return: Angular velocity around the vertical axis in radians per second.
+     */
+    public double getAngularVelocity() {
+        return angularVelocity;
+    }
+
+    public void setAngularVelocity(double angularVelocity) {
+        this.angularVelocity = angularVelocity;
+    }
+
+    /**
+     * @return: Time the data arrived from the base, in milliseconds since the epoch.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
 }
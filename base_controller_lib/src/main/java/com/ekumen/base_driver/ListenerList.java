@@ -0,0 +1,62 @@
+/*
+ * Copyright 2017 Ekumen, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ekumen.base_driver;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+
+/**
+ * Copy-on-write list of listeners for the device ingest paths. Adding and removing is
+ * synchronized and copies the array; notifying only reads a volatile array, so the serial
+ * thread neither locks nor allocates.
+ */
+public class ListenerList<T> {
+    private volatile T[] listeners;
+
+    @SuppressWarnings("unchecked")
+    public ListenerList(Class<T> type) {
+        listeners = (T[]) Array.newInstance(type, 0);
+    }
+
+    public synchronized void add(T listener) {
+        T[] updated = Arrays.copyOf(listeners, listeners.length + 1);
+        updated[listeners.length] = listener;
+        listeners = updated;
+    }
+
+    public synchronized boolean remove(T listener) {
+        int index = Arrays.asList(listeners).indexOf(listener);
+        if (index < 0) {
+            return false;
+        }
+        T[] updated = Arrays.copyOf(listeners, listeners.length - 1);
+        System.arraycopy(listeners, index + 1, updated, index, updated.length - index);
+        listeners = updated;
+        return true;
+    }
+
+    public boolean isEmpty() {
+        return listeners.length == 0;
+    }
+
+    /**
+     * @return: The current listeners. The array must not be modified.
+     */
+    public T[] get() {
+        return listeners;
+    }
+}
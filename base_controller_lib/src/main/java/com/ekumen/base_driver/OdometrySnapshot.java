@@ -0,0 +1,77 @@
+/*
+ * Copyright 2017 Ekumen, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ekumen.base_driver;
+
+/**
+ * Consistent copy of the odometry: every value comes from the same update. Filled by
+ * {@link OdometryStatus#getSnapshot(OdometrySnapshot)}, so a single instance can be reused by
+ * a reader for every update.
+ */
+public class OdometrySnapshot {
+    private double poseX;
+    private double poseY;
+    private double poseTheta;
+    private double speedLinearX;
+    private double speedAngularZ;
+    private long timestampMs;
+    private long sequence;
+
+    void set(double poseX, double poseY, double poseTheta, double speedLinearX,
+             double speedAngularZ, long timestampMs, long sequence) {
+        this.poseX = poseX;
+        this.poseY = poseY;
+        this.poseTheta = poseTheta;
+        this.speedLinearX = speedLinearX;
+        this.speedAngularZ = speedAngularZ;
+        this.timestampMs = timestampMs;
+        this.sequence = sequence;
+    }
+
+    public double getPoseX() {
+        return poseX;
+    }
+
+    public double getPoseY() {
+        return poseY;
+    }
+
+    public double getPoseTheta() {
+        return poseTheta;
+    }
+
+    public double getSpeedLinearX() {
+        return speedLinearX;
+    }
+
+    public double getSpeedAngularZ() {
+        return speedAngularZ;
+    }
+
+    /**
+     * @return: Time of the update, in milliseconds since the epoch.
+     */
+    public long getTimestamp() {
+        return timestampMs;
+    }
+
+    /**
+     * @return: Number of updates of the odometry up to this one. 0 if it was never updated.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+}
@@ -13,4 +13,33 @@ public interface OdometryStatus {
     double getSpeedLinearX();
 
     double getSpeedAngularZ();
+
+    /**
+     * @return: Number of updates of the odometry so far. 0 until the second encoder sample,
+     * as the first one only sets the starting point.
+     */
+    long getSequence();
+
+    /**
+     * Copies the latest odometry into the given snapshot. Unlike separate getter calls, every
+     * value comes from the same update. Never blocks the thread updating the odometry.
+     * @return: The given snapshot.
+     */
+    OdometrySnapshot getSnapshot(OdometrySnapshot snapshot);
+
+    /**
+     * Interpolates the odometry at a past time, such as the acquisition time of a scan, from
+     * the recent updates. Never allocates or blocks.
+     * @param timestampMs: Time in milliseconds since the epoch.
+     * @return: <code>false</code> if the time is not covered by the recent updates.
+     */
+    boolean getPoseAt(long timestampMs, OdometrySnapshot snapshot);
+
+    /**
+     * Computes the pose at one time relative to the pose at an earlier one, in the frame of the
+     * base at the earlier time.
+     * @param scratch: Used for the intermediate poses.
+     * @return: <code>false</code> if either time is not covered by the recent updates.
+     */
+    boolean getRelativePose(long fromMs, long toMs, OdometrySnapshot scratch, Pose2D relative);
 }
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2017 Ekumen, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ekumen.base_driver;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size history of timestamped odometry samples, kept in a primitive array, that answers
+ * for the pose at any time it covers by interpolating the two samples around it. Meant for
+ * matching sensor data stamped with its own acquisition time (laser scans, camera frames) to
+ * the pose of the base at that time.
+ *
+ * Samples are added by a single thread. Queries can run from any thread, never lock and never
+ * allocate. They search by bisection over the retained samples, so they take at most
+ * log2(capacity) steps. Queries skip the oldest GUARD_SAMPLES slots, which are the next ones
+ * to be overwritten, and check afterwards that no slot they read was overwritten meanwhile.
+ * Every value is read and written with volatile semantics, as in {@link AbstractOdometryStatus}:
+ * plain reads could be reordered after that check and return a torn sample.
+ */
+public class PoseHistory {
+    // Slots next in line to be overwritten, which queries don't read
+    static final int GUARD_SAMPLES = 4;
+    private static final int MAX_RETRIES = 3;
+
+    // Values of a sample, stored next to each other. Doubles are stored as their raw bits.
+    private static final int TIMESTAMP = 0;
+    private static final int POSE_X = 1;
+    private static final int POSE_Y = 2;
+    private static final int POSE_THETA = 3;
+    private static final int SPEED_LINEAR_X = 4;
+    private static final int SPEED_ANGULAR_Z = 5;
+    private static final int SEQUENCE = 6;
+    private static final int FIELDS = 7;
+
+    private final int mask;
+    private final AtomicLongArray samples;
+    // Number of samples ever added. Slot of sample i is i & mask.
+    private volatile long count = 0;
+
+    /**
+     * @param capacity: Number of samples kept. Rounded up to a power of two, and at least
+     *                twice the guard.
+     */
+    public PoseHistory(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, GUARD_SAMPLES * 2) - 1) << 1;
+        mask = size - 1;
+        samples = new AtomicLongArray(size * FIELDS);
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Adds a sample. Only called from one thread. Timestamps are expected not to decrease; one
+     * earlier than the previous sample (the wall clock was set back) is taken as equal to it.
+     * @param timestampMs: Time of the sample, in milliseconds since the epoch.
+     * @param poseTheta: Heading, not wrapped, so interpolation never goes the long way round.
+     */
+    public void add(long timestampMs, double poseX, double poseY, double poseTheta,
+                    double speedLinearX, double speedAngularZ, long sequence) {
+        long current = count;
+        if (current > 0) {
+            timestampMs = Math.max(timestampMs, timestamp(current - 1));
+        }
+        int base = (int) (current & mask) * FIELDS;
+        samples.set(base + TIMESTAMP, timestampMs);
+        samples.set(base + POSE_X, Double.doubleToRawLongBits(poseX));
+        samples.set(base + POSE_Y, Double.doubleToRawLongBits(poseY));
+        samples.set(base + POSE_THETA, Double.doubleToRawLongBits(poseTheta));
+        samples.set(base + SPEED_LINEAR_X, Double.doubleToRawLongBits(speedLinearX));
+        samples.set(base + SPEED_ANGULAR_Z, Double.doubleToRawLongBits(speedAngularZ));
+        samples.set(base + SEQUENCE, sequence);
+        // Publishes the slot to queries
+        count = current + 1;
+    }
+
+    /**
+     * @return: Time of the oldest sample queries can reach, or -1 if there are no samples.
+     */
+    public long getOldestTimestamp() {
+        long current = count;
+        if (current == 0) {
+            return -1;
+        }
+        return timestamp(first(current));
+    }
+
+    /**
+     * @return: Time of the newest sample, or -1 if there are no samples.
+     */
+    public long getNewestTimestamp() {
+        long current = count;
+        return current == 0 ? -1 : timestamp(current - 1);
+    }
+
+    /**
+     * Interpolates the odometry at the given time, which must be covered by the history.
+     * @param snapshot: Filled with the interpolated pose and speeds, the requested time, and the
+     *                sequence of the sample at or right before that time.
+     * @return: <code>false</code> if the time is older than the history or newer than its
+     * newest sample. The snapshot is left untouched then.
+     */
+    public boolean getPoseAt(long timestampMs, OdometrySnapshot snapshot) {
+        for (int attempt = 0; attempt < MAX_RETRIES; attempt++) {
+            long current = count;
+            if (current == 0) {
+                return false;
+            }
+            long low = first(current);
+            long high = current - 1;
+            if (timestampMs < timestamp(low) || timestampMs > timestamp(high)) {
+                return false;
+            }
+            // Last sample at or before the requested time
+            while (low < high) {
+                long middle = (low + high + 1) >>> 1;
+                if (timestamp(middle) <= timestampMs) {
+                    low = middle;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            int before = (int) (low & mask) * FIELDS;
+            int after = (int) (Math.min(low + 1, current - 1) & mask) * FIELDS;
+            long t0 = samples.get(before + TIMESTAMP);
+            long t1 = samples.get(after + TIMESTAMP);
+            double fraction = t1 > t0 ? (double) (timestampMs - t0) / (t1 - t0) : 0.0;
+            double x = interpolate(POSE_X, before, after, fraction);
+            double y = interpolate(POSE_Y, before, after, fraction);
+            double theta = interpolate(POSE_THETA, before, after, fraction);
+            double linear = interpolate(SPEED_LINEAR_X, before, after, fraction);
+            double angular = interpolate(SPEED_ANGULAR_Z, before, after, fraction);
+            long sequence = samples.get(before + SEQUENCE);
+            // The slots read are still valid if the writer didn't reach them meanwhile
+            if (count - low <= mask + 1 - GUARD_SAMPLES) {
+                snapshot.set(x, y, theta, linear, angular, timestampMs, sequence);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Computes how the base moved between two times covered by the history: the pose at the
+     * second time, expressed in the frame of the base at the first time.
+     * @return: <code>false</code> if either time is not covered by the history.
+     */
+    public boolean getRelativePose(long fromMs, long toMs, OdometrySnapshot scratch, Pose2D relative) {
+        if (!getPoseAt(fromMs, scratch)) {
+            return false;
+        }
+        double x0 = scratch.getPoseX();
+        double y0 = scratch.getPoseY();
+        double theta0 = scratch.getPoseTheta();
+        if (!getPoseAt(toMs, scratch)) {
+            return false;
+        }
+        double dx = scratch.getPoseX() - x0;
+        double dy = scratch.getPoseY() - y0;
+        double cos = Math.cos(theta0);
+        double sin = Math.sin(theta0);
+        relative.set(cos * dx + sin * dy, -sin * dx + cos * dy, scratch.getPoseTheta() - theta0);
+        return true;
+    }
+
+    /**
+     * @return: Index of the oldest sample queries read, past the guard.
+     */
+    private long first(long current) {
+        return Math.max(0, current - (mask + 1) + GUARD_SAMPLES);
+    }
+
+    private long timestamp(long index) {
+        return samples.get((int) (index & mask) * FIELDS + TIMESTAMP);
+    }
+
+    private double interpolate(int field, int before, int after, double fraction) {
+        double from = Double.longBitsToDouble(samples.get(before + field));
+        double to = Double.longBitsToDouble(samples.get(after + field));
+        return from + (to - from) * fraction;
+    }
+}
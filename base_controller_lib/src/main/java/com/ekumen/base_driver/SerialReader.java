@@ -0,0 +1,91 @@
+/*
+ * Copyright 2017 Ekumen, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ekumen.base_driver;
+
+import com.hoho.android.usbserial.driver.UsbSerialPort;
+
+import java.io.IOException;
+
+/**
+ * Reads a serial port in a loop and hands every chunk to a listener. Unlike the
+ * SerialInputOutputManager of the USB library, it reads into a single reused buffer and
+ * doesn't log per chunk, and it only depends on the {@link UsbSerialPort} interface, so it
+ * also runs on a plain JVM.
+ */
+public class SerialReader implements Runnable {
+
+    /**
+     * Called from the reading thread.
+     */
+    public interface Listener {
+        /**
+         * @param data: Reused by the reader. Only valid during the call.
+         * @param length: Number of bytes read into data.
+         */
+        void onData(byte[] data, int length);
+
+        /**
+         * @param e: An {@link IOException} when reading fails, which stops the reader, or the
+         *         exception thrown by {@link #onData(byte[], int)}, after which it keeps reading.
+         */
+        void onError(Exception e);
+    }
+
+    private static final int READ_TIMEOUT_MS = 200;
+    private static final int BUFFER_SIZE = 4096;
+
+    private final UsbSerialPort port;
+    private final Listener listener;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private volatile boolean running = true;
+
+    public SerialReader(UsbSerialPort port, Listener listener) {
+        this.port = port;
+        this.listener = listener;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                int length = port.read(buffer, READ_TIMEOUT_MS);
+                if (length > 0) {
+                    try {
+                        listener.onData(buffer, length);
+                    } catch (RuntimeException e) {
+                        listener.onError(e);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (running) {
+                listener.onError(e);
+            }
+        }
+    }
+
+    /**
+     * Stops reading after the read in progress, if any, returns.
+     */
+    public void stop() {
+        running = false;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2017 Ekumen, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ekumen.base_driver.capture;
+
+import android.hardware.usb.UsbDeviceConnection;
+
+import com.hoho.android.usbserial.driver.UsbSerialDriver;
+import com.hoho.android.usbserial.driver.UsbSerialPort;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Port that plays back the data received in a capture, chunk by chunk, as they were read from
+ * the real port. Nothing is returned until {@link #start()} is called, so the device reading
+ * the port can be fully set up first. In real time mode each chunk is returned when as much
+ * time has passed since the start as had been recorded before it; otherwise chunks are returned as fast as
+ * they are read. Sessions of a capture are played back to back: the time between them was not
+ * recorded. Commands written to the port are counted and dropped.
+ *
+ * Reads are expected from a single thread.
+ */
+public class CaptureReplayPort implements UsbSerialPort {
+    private final ByteBuffer capture;
+    private final boolean realTime;
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch finished = new CountDownLatch(1);
+
+    private volatile boolean open = false;
+    private volatile long startNanos;
+    // Start of the session being replayed, and time recorded in the sessions before it
+    private long sessionStart;
+    private boolean haveSessionStart = false;
+    private long lastTimestamp;
+    private long previousSessionsNanos = 0;
+    // Chunk being returned: its timestamp and the bytes of it not read yet
+    private long chunkTimestamp;
+    private int chunkRemaining = 0;
+
+    private volatile long chunksReplayed = 0;
+    private volatile long bytesReplayed = 0;
+    private volatile long commandsDropped = 0;
+
+    /**
+     * @param capture: Capture records, as returned by {@link SerialCapture#map}.
+     * @param realTime: Whether to keep the timing of the capture.
+     */
+    public CaptureReplayPort(ByteBuffer capture, boolean realTime) {
+        this.capture = capture.duplicate();
+        this.realTime = realTime;
+    }
+
+    @Override
+    public void open(UsbDeviceConnection connection) throws IOException {
+        open = true;
+    }
+
+    /**
+     * Starts returning the data of the capture to reads. Does nothing if already started.
+     */
+    public void start() {
+        if (started.getCount() > 0) {
+            startNanos = System.nanoTime();
+            started.countDown();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        open = false;
+        finished.countDown();
+    }
+
+    @Override
+    public int read(byte[] dest, int timeoutMillis) throws IOException {
+        if (!open) {
+            throw new IOException("Port closed");
+        }
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            if (!started.await(timeoutNanos, TimeUnit.NANOSECONDS)) {
+                return 0;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 0;
+        }
+        if (chunkRemaining == 0 && !nextChunk()) {
+            // Nothing left: behave like an idle port
+            finished.countDown();
+            LockSupport.parkNanos(timeoutNanos);
+            return 0;
+        }
+        if (realTime) {
+            long due = startNanos + previousSessionsNanos + (chunkTimestamp - sessionStart);
+            long wait = due - System.nanoTime();
+            if (wait > timeoutNanos) {
+                LockSupport.parkNanos(timeoutNanos);
+                return 0;
+            }
+            while (wait > 0) {
+                LockSupport.parkNanos(wait);
+                wait = due - System.nanoTime();
+            }
+        }
+        int length = Math.min(chunkRemaining, dest.length);
+        capture.get(dest, 0, length);
+        chunkRemaining -= length;
+        if (chunkRemaining == 0) {
+            chunksReplayed++;
+        }
+        bytesReplayed += length;
+        return length;
+    }
+
+    /**
+     * Moves to the next received chunk, skipping sent commands and following session starts.
+     * @return: <code>false</code> at the end of the capture, or at a truncated record.
+     */
+    private boolean nextChunk() {
+        while (capture.remaining() >= SerialCapture.RECORD_HEADER_SIZE) {
+            byte direction = capture.get();
+            long timestamp = capture.getLong();
+            int length = capture.getInt();
+            if (length < 0 || length > capture.remaining()) {
+                capture.position(capture.limit());
+                return false;
+            }
+            if (direction == SerialCapture.SESSION) {
+                if (haveSessionStart) {
+                    previousSessionsNanos += lastTimestamp - sessionStart;
+                }
+                sessionStart = timestamp;
+                haveSessionStart = true;
+            } else if (!haveSessionStart) {
+                // Captures from before sessions were recorded
+                sessionStart = timestamp;
+                haveSessionStart = true;
+            }
+            lastTimestamp = timestamp;
+            if (direction == SerialCapture.RECEIVED && length > 0) {
+                chunkTimestamp = timestamp;
+                chunkRemaining = length;
+                return true;
+            }
+            capture.position(capture.position() + length);
+        }
+        return false;
+    }
+
+    /**
+     * Waits until every chunk of the capture has been read or the port is closed.
+     * @return: <code>false</code> if the timeout expired first.
+     */
+    public boolean awaitFinished(long timeout, TimeUnit unit) throws InterruptedException {
+        return finished.await(timeout, unit);
+    }
+
+    public boolean isFinished() {
+        return finished.getCount() == 0;
+    }
+
+    public long getChunksReplayed() {
+        return chunksReplayed;
+    }
+
+    public long getBytesReplayed() {
+        return bytesReplayed;
+    }
+
+    public long getCommandsDropped() {
+        return commandsDropped;
+    }
+
+    @Override
+    public int write(byte[] src, int timeoutMillis) throws IOException {
+        commandsDropped++;
+        return src.length;
+    }
+
+    @Override
+    public void setParameters(int baudRate, int dataBits, int stopBits, int parity) throws IOException {
+    }
+
+    @Override
+    public UsbSerialDriver getDriver() {
+        return null;
+    }
+
+    @Override
+    public int getPortNumber() {
+        return 0;
+    }
+
+    @Override
+    public String getSerial() {
+        return "replay";
+    }
+
+    @Override
+    public boolean getCD() throws IOException {
+        return false;
+    }
+
+    @Override
+    public boolean getCTS() throws IOException {
+        return false;
+    }
+
+    @Override
+    public boolean getDSR() throws IOException {
+        return false;
+    }
+
+    @Override
+    public boolean getDTR() throws IOException {
+        return false;
+    }
+
+    @Override
+    public void setDTR(boolean value) throws IOException {
+    }
+
+    @Override
+    public boolean getRI() throws IOException {
+        return false;
+    }
+
+    @Override
+    public boolean getRTS() throws IOException {
+        return false;
+    }
+
+    @Override
+    public void setRTS(boolean value) throws IOException {
+    }
+
+    @Override
+    public boolean purgeHwBuffers(boolean flushRX, boolean flushTX) throws IOException {
+        return true;
+    }
+}
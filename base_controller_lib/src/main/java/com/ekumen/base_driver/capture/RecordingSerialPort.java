@@ -0,0 +1,162 @@
+/*
+ * Copyright 2017 Ekumen, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ekumen.base_driver.capture;
+
+import android.hardware.usb.UsbDeviceConnection;
+
+import com.hoho.android.usbserial.driver.UsbSerialDriver;
+import com.hoho.android.usbserial.driver.UsbSerialPort;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+
+/**
+ * Wraps a port and records every chunk read from it and every command written to it, exactly
+ * as the device sees them. To record a session, create the device on the wrapper:
+ * <pre>
+ * new KobukiBaseDevice(new RecordingSerialPort(port, new SerialCaptureWriter(file)), connection);
+ * </pre>
+ * Errors writing the capture are logged once and stop the recording, never the device.
+ */
+public class RecordingSerialPort implements UsbSerialPort {
+    private final UsbSerialPort port;
+    private final SerialCaptureWriter writer;
+    private volatile boolean recording = true;
+
+    private static final Log log = LogFactory.getLog(RecordingSerialPort.class);
+
+    public RecordingSerialPort(UsbSerialPort port, SerialCaptureWriter writer) {
+        this.port = port;
+        this.writer = writer;
+    }
+
+    public SerialCaptureWriter getWriter() {
+        return writer;
+    }
+
+    @Override
+    public int read(byte[] dest, int timeoutMillis) throws IOException {
+        int length = port.read(dest, timeoutMillis);
+        if (length > 0) {
+            record(SerialCapture.RECEIVED, dest, length);
+        }
+        return length;
+    }
+
+    @Override
+    public int write(byte[] src, int timeoutMillis) throws IOException {
+        record(SerialCapture.SENT, src, src.length);
+        return port.write(src, timeoutMillis);
+    }
+
+    private void record(byte direction, byte[] data, int length) {
+        if (!recording) {
+            return;
+        }
+        try {
+            writer.record(direction, System.nanoTime(), data, 0, length);
+        } catch (IOException e) {
+            recording = false;
+            log.error("Error writing serial capture, recording stopped", e);
+        }
+    }
+
+    /**
+     * Closes the port and then the capture.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            port.close();
+        } finally {
+            recording = false;
+            writer.close();
+        }
+    }
+
+    @Override
+    public void open(UsbDeviceConnection connection) throws IOException {
+        port.open(connection);
+    }
+
+    @Override
+    public void setParameters(int baudRate, int dataBits, int stopBits, int parity) throws IOException {
+        port.setParameters(baudRate, dataBits, stopBits, parity);
+    }
+
+    @Override
+    public UsbSerialDriver getDriver() {
+        return port.getDriver();
+    }
+
+    @Override
+    public int getPortNumber() {
+        return port.getPortNumber();
+    }
+
+    @Override
+    public String getSerial() {
+        return port.getSerial();
+    }
+
+    @Override
+    public boolean getCD() throws IOException {
+        return port.getCD();
+    }
+
+    @Override
+    public boolean getCTS() throws IOException {
+        return port.getCTS();
+    }
+
+    @Override
+    public boolean getDSR() throws IOException {
+        return port.getDSR();
+    }
+
+    @Override
+    public boolean getDTR() throws IOException {
+        return port.getDTR();
+    }
+
+    @Override
+    public void setDTR(boolean value) throws IOException {
+        port.setDTR(value);
+    }
+
+    @Override
+    public boolean getRI() throws IOException {
+        return port.getRI();
+    }
+
+    @Override
+    public boolean getRTS() throws IOException {
+        return port.getRTS();
+    }
+
+    @Override
+    public void setRTS(boolean value) throws IOException {
+        port.setRTS(value);
+    }
+
+    @Override
+    public boolean purgeHwBuffers(boolean flushRX, boolean flushTX) throws IOException {
+        return port.purgeHwBuffers(flushRX, flushTX);
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2017 Ekumen, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ekumen.base_driver.capture;
+
+import com.ekumen.base_driver.BaseDevice;
+import com.ekumen.base_driver.BaseStatus;
+import com.ekumen.base_driver.BaseStatusListener;
+import com.ekumen.base_driver.InertialListener;
+import com.ekumen.base_driver.OdometryListener;
+import com.ekumen.base_driver.OdometryStatus;
+import com.ekumen.base_driver.RawFrameListener;
+import com.hoho.android.usbserial.driver.UsbSerialPort;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Base device fed from a capture instead of a base. The real device of the captured base is
+ * created on a {@link CaptureReplayPort}, so the received data goes through the same readers,
+ * parsers and odometry as it did in the field. Commands are accepted and dropped. The replay
+ * only begins on {@link #start()}, so listeners added before see the whole capture.
+ * <pre>
+ * ReplayBaseDevice replay = new ReplayBaseDevice(file, false, new ReplayBaseDevice.DeviceFactory() {
+ *     public BaseDevice create(UsbSerialPort port) throws Exception {
+ *         return new KobukiBaseDevice(port, null);
+ *     }
+ * });
+ * replay.addOdometryListener(listener);
+ * replay.start();
+ * replay.awaitFinished(1, TimeUnit.MINUTES);
+ * </pre>
+ */
+public class ReplayBaseDevice implements BaseDevice {
+
+    /**
+     * Creates the device of the captured base on the given port.
+     */
+    public interface DeviceFactory {
+        BaseDevice create(UsbSerialPort port) throws Exception;
+    }
+
+    private final CaptureReplayPort port;
+    private final BaseDevice device;
+
+    /**
+     * @param capture: Capture file, memory-mapped for the replay.
+     * @param realTime: Whether to keep the timing of the capture, or replay it as fast as
+     *                it can be decoded.
+     */
+    public ReplayBaseDevice(File capture, boolean realTime, DeviceFactory factory) throws Exception {
+        this(new CaptureReplayPort(SerialCapture.map(capture), realTime), factory);
+    }
+
+    public ReplayBaseDevice(CaptureReplayPort port, DeviceFactory factory) throws Exception {
+        this.port = port;
+        this.device = factory.create(port);
+    }
+
+    public BaseDevice getDevice() {
+        return device;
+    }
+
+    public CaptureReplayPort getPort() {
+        return port;
+    }
+
+    /**
+     * Starts handing the capture to the device. Does nothing if already started.
+     */
+    public void start() {
+        port.start();
+    }
+
+    /**
+     * Waits until every chunk of the capture has been handed to the device. Only returns
+     * <code>true</code> after {@link #start()}.
+     * @return: <code>false</code> if the timeout expired first.
+     */
+    public boolean awaitFinished(long timeout, TimeUnit unit) throws InterruptedException {
+        return port.awaitFinished(timeout, unit);
+    }
+
+    /**
+     * Stops the replay and the device.
+     */
+    @Override
+    public void close() {
+        device.close();
+    }
+
+    @Override
+    public void initialize() {
+        device.initialize();
+    }
+
+    @Override
+    public void move(double linearVelX, double angVelZ) {
+        device.move(linearVelX, angVelZ);
+    }
+
+    @Override
+    public long getKeepalivePeriodMs() {
+        return device.getKeepalivePeriodMs();
+    }
+
+    @Override
+    public long getCommandPeriodMs() {
+        return device.getCommandPeriodMs();
+    }
+
+    @Override
+    public BaseStatus getBaseStatus() {
+        return device.getBaseStatus();
+    }
+
+    @Override
+    public OdometryStatus getOdometryStatus() {
+        return device.getOdometryStatus();
+    }
+
+    @Override
+    public void addInertialListener(InertialListener listener) {
+        device.addInertialListener(listener);
+    }
+
+    @Override
+    public void removeInertialListener(InertialListener listener) {
+        device.removeInertialListener(listener);
+    }
+
+    @Override
+    public void addOdometryListener(OdometryListener listener) {
+        device.addOdometryListener(listener);
+    }
+
+    @Override
+    public void removeOdometryListener(OdometryListener listener) {
+        device.removeOdometryListener(listener);
+    }
+
+    @Override
+    public void addBaseStatusListener(BaseStatusListener listener) {
+        device.addBaseStatusListener(listener);
+    }
+
+    @Override
+    public void removeBaseStatusListener(BaseStatusListener listener) {
+        device.removeBaseStatusListener(listener);
+    }
+
+    @Override
+    public void addRawFrameListener(RawFrameListener listener) {
+        device.addRawFrameListener(listener);
+    }
+
+    @Override
+    public void removeRawFrameListener(RawFrameListener listener) {
+        device.removeRawFrameListener(listener);
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2017 Ekumen, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ekumen.base_driver.capture;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Binary format of serial captures. A capture is a header followed by one record per chunk
+ * read from or written to the port, in the order they happened. Records are only appended,
+ * so a capture cut short by a crash is still readable up to its last complete record.
+ *
+ * Header: magic "BCAP" | version (u16) | reserved (u16).
+ * Record: direction (u8) | timestamp (s64, System.nanoTime) | length (s32) | data.
+ * Multi-byte fields are big-endian.
+ *
+ * A capture can hold several recording sessions, each starting with an empty
+ * {@link #SESSION} record. The origin of System.nanoTime differs between processes, so
+ * timestamps are only comparable within a session.
+ */
+public final class SerialCapture {
+    public static final int MAGIC = 0x42434150; // "BCAP"
+    public static final short VERSION = 1;
+    public static final int HEADER_SIZE = 8;
+    public static final int RECORD_HEADER_SIZE = 13;
+
+    /** Data read from the base. */
+    public static final byte RECEIVED = 0;
+    /** Data written to the base. */
+    public static final byte SENT = 1;
+    /** Start of a recording session, with no data. */
+    public static final byte SESSION = 2;
+
+    private SerialCapture() {
+    }
+
+    /**
+     * Maps a whole capture file to memory, checking its header. The returned buffer is
+     * positioned at the first record.
+     */
+    public static MappedByteBuffer map(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Capture too large to map: " + file);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            checkHeader(buffer, file);
+            return buffer;
+        } finally {
+            // The mapping stays valid after the file is closed
+            randomAccessFile.close();
+        }
+    }
+
+    static void writeHeader(ByteBuffer buffer) {
+        buffer.putInt(MAGIC);
+        buffer.putShort(VERSION);
+        buffer.putShort((short) 0);
+    }
+
+    static void checkHeader(ByteBuffer buffer, File file) throws IOException {
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+            throw new IOException("Not a serial capture: " + file);
+        }
+        short version = buffer.getShort();
+        if (version != VERSION) {
+            throw new IOException("Unsupported capture version " + version + ": " + file);
+        }
+        buffer.getShort();
+    }
+}
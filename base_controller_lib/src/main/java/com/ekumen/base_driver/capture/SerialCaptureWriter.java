@@ -0,0 +1,174 @@
+/*
+ * Copyright 2017 Ekumen, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ekumen.base_driver.capture;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Appends records to a capture file. Records are collected in a buffer and written when it
+ * fills up, at least once per flush interval, and on close, so recording costs a copy per
+ * chunk on the serial threads. Records larger than the buffer are written straight away.
+ *
+ * Every writer starts a new session in the capture, so replays can tell apart the timestamps
+ * of different processes.
+ */
+public class SerialCaptureWriter {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long FLUSH_INTERVAL_NANOS = 1000000000L;
+
+    private final RandomAccessFile output;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private long lastFlushNanos = System.nanoTime();
+    private long recordCount = 0;
+    private boolean closed = false;
+
+    /**
+     * Opens a capture for appending, writing the header if the file is new or empty. The header
+     * of an existing capture is checked, and a record left incomplete by a crash is dropped.
+     * @throws IOException: If the file exists and is not a capture of the supported version.
+     */
+    public SerialCaptureWriter(File file) throws IOException {
+        output = new RandomAccessFile(file, "rw");
+        channel = output.getChannel();
+        try {
+            if (channel.size() == 0) {
+                SerialCapture.writeHeader(buffer);
+            } else {
+                long end = checkRecords(file);
+                channel.truncate(end);
+                channel.position(end);
+            }
+            putRecordHeader(SerialCapture.SESSION, System.nanoTime(), 0);
+            drain();
+        } catch (IOException e) {
+            output.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Checks the header of an existing capture and walks its records.
+     * @return: Position right after the last complete record.
+     */
+    private long checkRecords(File file) throws IOException {
+        long size = channel.size();
+        if (size < SerialCapture.HEADER_SIZE) {
+            throw new IOException("Not a serial capture: " + file);
+        }
+        ByteBuffer header = ByteBuffer.allocate(SerialCapture.RECORD_HEADER_SIZE);
+        header.limit(SerialCapture.HEADER_SIZE);
+        readFully(header, 0);
+        header.flip();
+        SerialCapture.checkHeader(header, file);
+        long position = SerialCapture.HEADER_SIZE;
+        while (size - position >= SerialCapture.RECORD_HEADER_SIZE) {
+            header.clear();
+            readFully(header, position);
+            int length = header.getInt(SerialCapture.RECORD_HEADER_SIZE - 4);
+            if (length < 0 || length > size - position - SerialCapture.RECORD_HEADER_SIZE) {
+                break;
+            }
+            position += SerialCapture.RECORD_HEADER_SIZE + length;
+        }
+        return position;
+    }
+
+    private void readFully(ByteBuffer data, long position) throws IOException {
+        while (data.hasRemaining()) {
+            int read = channel.read(data, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of capture");
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Appends a record.
+     * @param direction: {@link SerialCapture#RECEIVED} or {@link SerialCapture#SENT}.
+     * @param timestampNanos: System.nanoTime() when the data was read or written.
+     */
+    public synchronized void record(byte direction, long timestampNanos, byte[] data, int offset, int length)
+            throws IOException {
+        if (closed) {
+            throw new IOException("Capture closed");
+        }
+        if (buffer.remaining() < SerialCapture.RECORD_HEADER_SIZE + length) {
+            drain();
+        }
+        putRecordHeader(direction, timestampNanos, length);
+        if (length <= buffer.remaining()) {
+            buffer.put(data, offset, length);
+        } else {
+            drain();
+            writeFully(ByteBuffer.wrap(data, offset, length));
+        }
+        recordCount++;
+        if (timestampNanos - lastFlushNanos > FLUSH_INTERVAL_NANOS) {
+            drain();
+        }
+    }
+
+    public synchronized long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Writes buffered records to the file.
+     */
+    public synchronized void flush() throws IOException {
+        if (!closed) {
+            drain();
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            drain();
+        } finally {
+            closed = true;
+            output.close();
+        }
+    }
+
+    private void putRecordHeader(byte direction, long timestampNanos, int length) {
+        buffer.put(direction);
+        buffer.putLong(timestampNanos);
+        buffer.putInt(length);
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        writeFully(buffer);
+        buffer.clear();
+        lastFlushNanos = System.nanoTime();
+    }
+
+    private void writeFully(ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+    }
+}
@@ -24,62 +24,168 @@ import android.hardware.usb.UsbDeviceConnection;
 
 import com.ekumen.base_driver.AbstractBaseDevice;
 import com.ekumen.base_driver.BaseStatus;
+import com.ekumen.base_driver.DriverLog;
 import com.ekumen.base_driver.OdometryStatus;
+import com.ekumen.base_driver.RawFrameListener;
 import com.hoho.android.usbserial.driver.UsbSerialPort;
 
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
-
-import java.io.IOException;
+import java.util.concurrent.ExecutorService;
 
 public class CreateBaseDevice extends AbstractBaseDevice {
 
     private Double createBaseDiameter = 0.33; //In meters
     private Double createWheelRadius = 0.04;  //In meters
 
-    private final byte SetBaudrate57600 = (byte) 5;
     // iRobot Create low level commands.
     private final byte Start = (byte) 128;
+    private final byte Baud = (byte) 129;
     private final byte FullMode = (byte) 132;
     private final byte DirectDrive = (byte) 145;
+    private final byte Stream = (byte) 148;
+
+    // The Open Interface runs at 57600 baud by default (baud code 10). The stream sends a
+    // 24 byte frame every 15 ms, which needs more than the 960 bytes/s of 9600 baud.
+    private static final int BAUD_RATE = 57600;
+    private static final byte BAUD_CODE_57600 = (byte) 10;
+
+    // Sensor packets requested in the stream
+    private static final byte[] STREAMED_PACKETS = new byte[] {
+            CreateSensorData.BUMPS_AND_WHEEL_DROPS,
+            CreateSensorData.CLIFF_LEFT,
+            CreateSensorData.CLIFF_FRONT_LEFT,
+            CreateSensorData.CLIFF_FRONT_RIGHT,
+            CreateSensorData.CLIFF_RIGHT,
+            CreateSensorData.DISTANCE,
+            CreateSensorData.ANGLE,
+            CreateSensorData.CHARGING_STATE,
+            CreateSensorData.VOLTAGE
+    };
+
+    private final CreatePacketReader packetReader = new CreatePacketReader();
+    private final CreateOdometryStatus odometryStatus = new CreateOdometryStatus();
+    private final BaseStatus baseStatus = new BaseStatus();
+
+    // Direct drive command, encoded in place. Re-encoded only when the wheel speeds change,
+    // since the same twist is usually sent over and over.
+    private final byte[] directDriveCommand = new byte[5];
+    private boolean directDriveEncoded = false;
+    private int encodedRightWheelVel;
+    private int encodedLeftWheelVel;
+    // Output of twistToBase
+    private int commandRightWheelVel;
+    private int commandLeftWheelVel;
+
+    private static final DriverLog log = new DriverLog(CreateBaseDevice.class);
+    private final DriverLog.Event writtenCommands =
+            log.rateLimited(DriverLog.Level.DEBUG, "Writing commands to Device");
+    private final DriverLog.Event droppedCommands =
+            log.rateLimited(DriverLog.Level.ERROR, "Command queue full, command dropped");
 
-    private class BaseSpeedValues {
-        private final int rightWheelVel;
-        private final int leftWheelVel;
+    public CreateBaseDevice(UsbSerialPort usbSerialPort, UsbDeviceConnection usbDeviceConnection) throws Exception {
+        this(usbSerialPort, usbDeviceConnection, null);
+    }
 
-        private BaseSpeedValues(int rightWheelVel, int leftWheelVel) {
-            this.rightWheelVel = rightWheelVel;
-            this.leftWheelVel = leftWheelVel;
+    /**
+     * @param ioExecutor: Runs the reading and writing loops of the device. If <code>null</code>,
+     *                  the device creates its own.
+     */
+    public CreateBaseDevice(UsbSerialPort usbSerialPort, UsbDeviceConnection usbDeviceConnection,
+                            ExecutorService ioExecutor) throws Exception {
+        super(usbSerialPort, usbDeviceConnection, ioExecutor);
+        try {
+            packetReader.setSensorDataListener(new CreatePacketReader.SensorDataListener() {
+                @Override
+                public void onSensorData(CreateSensorData sensorData) {
+                    updateBaseStatus(sensorData);
+                    odometryStatus.update(sensorData.getDistance(), sensorData.getAngle());
+                    notifyOdometryListeners(odometryStatus);
+                    notifyBaseStatusListeners(baseStatus);
+                }
+            });
+            packetReader.setFrameListener(new RawFrameListener() {
+                @Override
+                public void onRawFrame(byte[] frame, int length) {
+                    notifyRawFrameListeners(frame, length);
+                }
+            });
+            startReceiving();
+        } catch (Exception e) {
+            // Releases the port, and the I/O threads if they were started
+            close();
+            throw e;
         }
+    }
 
-        public int getLeftWheelVel() {
-            return leftWheelVel;
-        }
+    public void initialize() {
+        // The baud rate is set again in case it was changed; Start must come first
+        byte[] setup = new byte[] {Start, Baud, BAUD_CODE_57600, FullMode};
+        write(setup); // configure create base.
 
-        public int getRightWheelVel() {
-            return rightWheelVel;
-        }
+        // Ask the base to send the sensor packets every 15 ms
+        byte[] stream = new byte[STREAMED_PACKETS.length + 2];
+        stream[0] = Stream;
+        stream[1] = (byte) STREAMED_PACKETS.length;
+        System.arraycopy(STREAMED_PACKETS, 0, stream, 2, STREAMED_PACKETS.length);
+        write(stream);
     }
 
-    private static final Log log = LogFactory.getLog(CreateBaseDevice.class);
-
-    public CreateBaseDevice(UsbSerialPort usbSerialPort, UsbDeviceConnection usbDeviceConnection) throws Exception {
-        super(usbSerialPort, usbDeviceConnection);
+    /**
+     * Called every time there is new data received through the USB-serial interface
+     */
+    @Override
+    protected void updateReceivedData(final byte[] bytes, int length) {
+        packetReader.parse(bytes, 0, length);
     }
 
-    public void initialize() {
-        byte[] baud = new byte[] {SetBaudrate57600};
-        write(baud); // configure base baudrate
-        byte[] setup = new byte[] {Start, FullMode};
-        write(setup); // configure create base.
+    /**
+     * Fills the base status with the bit layout used by the Kobuki, so consumers don't need
+     * to know which base they are talking to.
+     */
+    private void updateBaseStatus(CreateSensorData sensorData) {
+        int bumps = sensorData.getBumpsAndWheelDrops();
+        int bumper = 0;
+        if ((bumps & CreateSensorData.BUMP_RIGHT) != 0) {
+            bumper |= 0x01;
+        }
+        if ((bumps & CreateSensorData.BUMP_LEFT) != 0) {
+            bumper |= 0x04;
+        }
+        int wheelDrop = 0;
+        if ((bumps & CreateSensorData.WHEEL_DROP_RIGHT) != 0) {
+            wheelDrop |= 0x01;
+        }
+        if ((bumps & CreateSensorData.WHEEL_DROP_LEFT) != 0) {
+            wheelDrop |= 0x02;
+        }
+        int cliff = 0;
+        if (sensorData.isCliffRight()) {
+            cliff |= 0x01;
+        }
+        if (sensorData.isCliffFrontLeft() || sensorData.isCliffFrontRight()) {
+            cliff |= 0x02;
+        }
+        if (sensorData.isCliffLeft()) {
+            cliff |= 0x04;
+        }
+        baseStatus.setBumper((byte) bumper);
+        baseStatus.setWheelDrop((byte) wheelDrop);
+        baseStatus.setCliff((byte) cliff);
+        baseStatus.setCharger((byte) sensorData.getChargingState());
+        // In 0.1 V, like the Kobuki
+        baseStatus.setBattery((byte) (sensorData.getVoltage() / 100));
     }
 
     public void move(double linearVelX, double angVelZ) {
-        BaseSpeedValues speeds = twistToBase(linearVelX, angVelZ);
-        sendMovementPackage(speeds);
+        synchronized (directDriveCommand) {
+            twistToBase(linearVelX, angVelZ);
+            sendMovementPackage(commandRightWheelVel, commandLeftWheelVel);
+        }
     }
 
-    private BaseSpeedValues twistToBase(double linearVelX, double angVelZ) {
+    /**
+     * Converts a twist to wheel speeds, left in commandRightWheelVel and commandLeftWheelVel
+     */
+    private void twistToBase(double linearVelX, double angVelZ) {
         int rightWheelVel;
         int leftWheelVel;
 
@@ -95,49 +201,55 @@ public class CreateBaseDevice extends AbstractBaseDevice {
             leftWheelVel = leftWheelVel * 2;
             rightWheelVel = rightWheelVel * 2;
         }
-        return new BaseSpeedValues(leftWheelVel, rightWheelVel);
+        commandRightWheelVel = rightWheelVel;
+        commandLeftWheelVel = leftWheelVel;
     }
 
-    private void sendMovementPackage(BaseSpeedValues speeds) {
-        int leftWheelVel = speeds.getLeftWheelVel();
-        int rightWheelVel = speeds.getRightWheelVel();
-
-        byte[] velocitiesArray= new byte[] {
-                DirectDrive,
-                (byte) leftWheelVel,
-                (byte) (leftWheelVel >> 8),
-                (byte) rightWheelVel,
-                (byte) (rightWheelVel >> 8)
-        };
-
-        write(velocitiesArray);
+    private void sendMovementPackage(int rightWheelVel, int leftWheelVel) {
+        if (!directDriveEncoded || rightWheelVel != encodedRightWheelVel
+                || leftWheelVel != encodedLeftWheelVel) {
+            directDriveCommand[0] = DirectDrive;
+            directDriveCommand[1] = (byte) rightWheelVel;
+            directDriveCommand[2] = (byte) (rightWheelVel >> 8);
+            directDriveCommand[3] = (byte) leftWheelVel;
+            directDriveCommand[4] = (byte) (leftWheelVel >> 8);
+            encodedRightWheelVel = rightWheelVel;
+            encodedLeftWheelVel = leftWheelVel;
+            directDriveEncoded = true;
+        }
+        // Copied by the writer, so the command can be reused right away
+        getCommandWriter().writeVelocity(directDriveCommand);
     }
 
     private void write(byte[] command) {
-        log.info("Writing a command to Device.");
-        try {
-            port.write(command, 1000);
-        } catch (IOException e) {
-            e.printStackTrace();
+        writtenCommands.record();
+        if (!getCommandWriter().write(command)) {
+            droppedCommands.record();
         }
     }
 
     /**
-     * Not implemented for the create base.
-     * @return: Always 0 for all variables.
+     * @return: The status of the base, updated in place as sensor data is streamed.
      */
     public BaseStatus getBaseStatus() {
-        return new BaseStatus();
+        return baseStatus;
     }
 
     @Override
     public OdometryStatus getOdometryStatus() {
-        return null;
+        return odometryStatus;
+    }
+
+    /**
+     * @return: Number of stream frames discarded because they were corrupted.
+     */
+    public long getDroppedSampleCount() {
+        return packetReader.getChecksumErrorCount() + packetReader.getFramingErrorCount();
     }
 
     @Override
     protected void setConnectionParameters(UsbSerialPort port) throws Exception {
-        port.setParameters(9600, UsbSerialPort.DATABITS_8,
+        port.setParameters(BAUD_RATE, UsbSerialPort.DATABITS_8,
                 UsbSerialPort.STOPBITS_1, UsbSerialPort.PARITY_NONE);
     }
 }
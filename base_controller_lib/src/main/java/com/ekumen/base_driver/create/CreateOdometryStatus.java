@@ -0,0 +1,54 @@
+/*
+ * Copyright 2017 Ekumen, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ekumen.base_driver.create;
+
+import com.ekumen.base_driver.AbstractOdometryStatus;
+
+/**
+ * Odometry of the iRobot Create. The base reports the distance and angle travelled since the
+ * previous stream frame; they are turned back into accumulated wheel travel.
+ */
+public class CreateOdometryStatus extends AbstractOdometryStatus {
+    private static final double WIDTH = 0.258; // in m
+    // The Open Interface streams sensor data every 15 ms
+    static final int SAMPLE_PERIOD_MS = 15;
+
+    // Accumulated in mm. Kept as doubles so the rounding of each sample doesn't add up.
+    private double leftTravel = 0;
+    private double rightTravel = 0;
+
+    public CreateOdometryStatus() {
+        super(WIDTH);
+    }
+
+    /**
+     * @param distance: Distance travelled by the center of the base in mm.
+     * @param angle: Angle turned in degrees, positive counterclockwise.
+     */
+    void update(int distance, int angle) {
+        // Each wheel travels the arc of the turn on top of the common distance
+        double turnTravel = Math.toRadians(angle) * WIDTH * 1000.0 / 2.0;
+        double leftDelta = distance - turnTravel;
+        double rightDelta = distance + turnTravel;
+        leftTravel += leftDelta;
+        rightTravel += rightDelta;
+
+        // Speeds in mm/s
+        calculateAndUpdate((int) Math.round(leftTravel), (int) Math.round(rightTravel),
+                leftDelta * 1000.0 / SAMPLE_PERIOD_MS, rightDelta * 1000.0 / SAMPLE_PERIOD_MS);
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2017 Ekumen, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ekumen.base_driver.create;
+
+import com.ekumen.base_driver.ByteRingBuffer;
+import com.ekumen.base_driver.RawFrameListener;
+
+/**
+ * Incremental decoder of the Open Interface sensor stream. Bytes can arrive in chunks of any
+ * size; frames split between chunks are reassembled.
+ *
+ * Frame layout: Header (19) | Length | [Packet id | Packet data]... (Length bytes) | Checksum.
+ * The low byte of the sum of every byte of the frame, checksum included, is 0.
+ */
+public class CreatePacketReader {
+
+    /**
+     * Receives the data of every valid stream frame. Called from the serial reading thread.
+     */
+    public interface SensorDataListener {
+        /**
+         * @param sensorData: Reused by the reader. Only valid during the call.
+         */
+        void onSensorData(CreateSensorData sensorData);
+    }
+
+    static final byte HEADER = (byte) 19;
+    private static final int HEADER_SIZE = 2;
+
+    private final ByteRingBuffer ring = new ByteRingBuffer(1024);
+    // Frame being decoded, copied out of the ring so it is contiguous
+    private final byte[] frame = new byte[HEADER_SIZE + 255 + 1];
+    private final CreateSensorData sensorData = new CreateSensorData();
+    private SensorDataListener listener;
+    private RawFrameListener frameListener;
+
+    private long frameCount = 0;
+    private long checksumErrors = 0;
+    private long framingErrors = 0;
+
+    public void setSensorDataListener(SensorDataListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sets a listener called with every frame that passes its checksum, before it is decoded.
+     */
+    public void setFrameListener(RawFrameListener listener) {
+        frameListener = listener;
+    }
+
+    /**
+     * Consumes the given range of bytes, decoding every complete frame found.
+     */
+    public void parse(byte[] data, int offset, int length) {
+        int consumed = 0;
+        while (consumed < length) {
+            consumed += ring.write(data, offset + consumed, length - consumed);
+            decodeFrames();
+        }
+    }
+
+    private void decodeFrames() {
+        while (ring.available() >= HEADER_SIZE) {
+            if (ring.peek(0) != HEADER) {
+                ring.skip(1); // Not the start of a frame, resync on the next byte
+                continue;
+            }
+            int length = ring.peekUnsigned(1);
+            int frameSize = HEADER_SIZE + length + 1;
+            if (ring.available() < frameSize) {
+                return; // Wait for the rest of the frame
+            }
+            int sum = 0;
+            for (int i = 0; i < frameSize; i++) {
+                sum += ring.peek(i);
+            }
+            if ((sum & 0xFF) != 0) {
+                // Bad frame, or a header value inside packet data: resync after the header
+                checksumErrors++;
+                ring.skip(1);
+                continue;
+            }
+            ring.copyTo(0, frame, 0, frameSize);
+            ring.skip(frameSize);
+            if (frameListener != null) {
+                frameListener.onRawFrame(frame, frameSize);
+            }
+            if (decodePackets(HEADER_SIZE + length)) {
+                frameCount++;
+                if (listener != null) {
+                    listener.onSensorData(sensorData);
+                }
+            } else {
+                framingErrors++;
+            }
+        }
+    }
+
+    /**
+     * Decodes the packets of the frame, which end right before the given index.
+     * @return: <code>false</code> if the frame holds an unknown or truncated packet.
+     */
+    private boolean decodePackets(int end) {
+        int index = HEADER_SIZE;
+        // Validated first, so a malformed frame leaves the previous values untouched
+        while (index < end) {
+            int size = CreateSensorData.packetSize(frame[index] & 0xFF);
+            if (size == 0 || index + 1 + size > end) {
+                return false;
+            }
+            index += 1 + size;
+        }
+        index = HEADER_SIZE;
+        while (index < end) {
+            int packetId = frame[index] & 0xFF;
+            sensorData.set(packetId, frame, index + 1);
+            index += 1 + CreateSensorData.packetSize(packetId);
+        }
+        return true;
+    }
+
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * @return: Number of frames discarded because of a checksum mismatch.
+     */
+    public long getChecksumErrorCount() {
+        return checksumErrors;
+    }
+
+    /**
+     * @return: Number of frames with a valid checksum but unknown or truncated packets.
+     */
+    public long getFramingErrorCount() {
+        return framingErrors;
+    }
+}
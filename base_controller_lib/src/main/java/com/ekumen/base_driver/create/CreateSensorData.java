@@ -0,0 +1,204 @@
+/*
+ * Copyright 2017 Ekumen, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ekumen.base_driver.create;
+
+/**
+ * Sensor packets of the iRobot Create Open Interface, decoded from a stream frame. A single
+ * instance is reused by {@link CreatePacketReader} for every frame, so it is only valid during
+ * the listener call that receives it. Packets that were not part of the frame keep their
+ * previous values.
+ */
+public class CreateSensorData {
+    // Open Interface packet ids
+    public static final int BUMPS_AND_WHEEL_DROPS = 7;
+    public static final int CLIFF_LEFT = 9;
+    public static final int CLIFF_FRONT_LEFT = 10;
+    public static final int CLIFF_FRONT_RIGHT = 11;
+    public static final int CLIFF_RIGHT = 12;
+    public static final int DISTANCE = 19;
+    public static final int ANGLE = 20;
+    public static final int CHARGING_STATE = 21;
+    public static final int VOLTAGE = 22;
+    public static final int CURRENT = 23;
+    public static final int BATTERY_TEMPERATURE = 24;
+    public static final int BATTERY_CHARGE = 25;
+    public static final int BATTERY_CAPACITY = 26;
+
+    // Bits of the bumps and wheel drops packet
+    public static final int BUMP_RIGHT = 0x01;
+    public static final int BUMP_LEFT = 0x02;
+    public static final int WHEEL_DROP_RIGHT = 0x04;
+    public static final int WHEEL_DROP_LEFT = 0x08;
+    public static final int WHEEL_DROP_CASTER = 0x10;
+
+    // Data size of every packet from 7 to 42, indexed by id. 0 for ids that aren't single packets.
+    private static final int[] PACKET_SIZES = new int[] {
+            0, 0, 0, 0, 0, 0, 0, 1, 1, 1,  // 0 - 9
+            1, 1, 1, 1, 1, 1, 1, 1, 1, 2,  // 10 - 19
+            2, 1, 2, 2, 1, 2, 2, 2, 2, 2,  // 20 - 29
+            2, 2, 1, 2, 1, 1, 1, 1, 1, 2,  // 30 - 39
+            2, 2, 2                        // 40 - 42
+    };
+
+    private int bumpsAndWheelDrops;
+    private int cliffLeft;
+    private int cliffFrontLeft;
+    private int cliffFrontRight;
+    private int cliffRight;
+    private int distance;
+    private int angle;
+    private int chargingState;
+    private int voltage;
+    private int current;
+    private int batteryTemperature;
+    private int batteryCharge;
+    private int batteryCapacity;
+
+    /**
+     * @return: Number of data bytes of a packet, or 0 if it is not a known single packet.
+     */
+    public static int packetSize(int packetId) {
+        return packetId < PACKET_SIZES.length ? PACKET_SIZES[packetId] : 0;
+    }
+
+    /**
+     * Stores the value of one packet. Multi-byte values are big-endian.
+     */
+    void set(int packetId, byte[] data, int offset) {
+        int u8 = data[offset] & 0xFF;
+        int s16 = packetSize(packetId) == 2 ? (short) ((u8 << 8) | (data[offset + 1] & 0xFF)) : 0;
+        switch (packetId) {
+            case BUMPS_AND_WHEEL_DROPS:
+                bumpsAndWheelDrops = u8;
+                break;
+            case CLIFF_LEFT:
+                cliffLeft = u8;
+                break;
+            case CLIFF_FRONT_LEFT:
+                cliffFrontLeft = u8;
+                break;
+            case CLIFF_FRONT_RIGHT:
+                cliffFrontRight = u8;
+                break;
+            case CLIFF_RIGHT:
+                cliffRight = u8;
+                break;
+            case DISTANCE:
+                distance = s16;
+                break;
+            case ANGLE:
+                angle = s16;
+                break;
+            case CHARGING_STATE:
+                chargingState = u8;
+                break;
+            case VOLTAGE:
+                voltage = s16 & 0xFFFF;
+                break;
+            case CURRENT:
+                current = s16;
+                break;
+            case BATTERY_TEMPERATURE:
+                batteryTemperature = (byte) u8;
+                break;
+            case BATTERY_CHARGE:
+                batteryCharge = s16 & 0xFFFF;
+                break;
+            case BATTERY_CAPACITY:
+                batteryCapacity = s16 & 0xFFFF;
+                break;
+            default:
+                break;
+        }
+    }
+
+    public int getBumpsAndWheelDrops() {
+        return bumpsAndWheelDrops;
+    }
+
+    public boolean isCliffLeft() {
+        return cliffLeft != 0;
+    }
+
+    public boolean isCliffFrontLeft() {
+        return cliffFrontLeft != 0;
+    }
+
+    public boolean isCliffFrontRight() {
+        return cliffFrontRight != 0;
+    }
+
+    public boolean isCliffRight() {
+        return cliffRight != 0;
+    }
+
+    /**
+     * @return: Distance travelled since the previous frame in mm, positive forward.
+     */
+    public int getDistance() {
+        return distance;
+    }
+
+    /**
+     * @return: Angle turned since the previous frame in degrees, positive counterclockwise.
+     */
+    public int getAngle() {
+        return angle;
+    }
+
+    /**
+     * @return: 0 not charging, 1 reconditioning, 2 full, 3 trickle, 4 waiting, 5 fault.
+     */
+    public int getChargingState() {
+        return chargingState;
+    }
+
+    /**
+     * @return: Battery voltage in mV.
+     */
+    public int getVoltage() {
+        return voltage;
+    }
+
+    /**
+     * @return: Battery current in mA, negative while discharging.
+     */
+    public int getCurrent() {
+        return current;
+    }
+
+    /**
+     * @return: Battery temperature in degrees Celsius.
+     */
+    public int getBatteryTemperature() {
+        return batteryTemperature;
+    }
+
+    /**
+     * @return: Battery charge in mAh.
+     */
+    public int getBatteryCharge() {
+        return batteryCharge;
+    }
+
+    /**
+     * @return: Estimated battery capacity in mAh.
+     */
+    public int getBatteryCapacity() {
+        return batteryCapacity;
+    }
+}
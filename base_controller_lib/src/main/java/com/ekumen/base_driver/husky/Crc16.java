@@ -0,0 +1,121 @@
+package com.ekumen.base_driver.husky;
+
+import java.nio.ByteBuffer;
+
+/**
+ * CRC-16 used by the Clearpath control protocol (Appendix A of the protocol doc):
+ * - Polynomial: x16+x12+x5+1 (0x1021), no reflection
+ * - Initial value: 0xFFFF
+ * - Check constant: 0x1D0F
+ *
+ * Lookup tables are computed once. Bulk updates process two bytes per step with two
+ * independent table lookups, and every update can be continued from a previous value, so a
+ * message can be checked piece by piece as it arrives. Instances keep a running value;
+ * the static methods take and return it explicitly.
+ *
+ * @author jcerruti@creativa77.com (Julian Cerruti)
+ */
+public final class Crc16 {
+    public static final char INITIAL_VALUE = 0xFFFF;
+    private static final int POLYNOMIAL = 0x1021;
+
+    // TABLE[i]: CRC contribution of byte i entering the high byte of the register
+    private static final char[] TABLE = new char[256];
+    // TABLE_2[i]: contribution of byte i when another byte follows it
+    private static final char[] TABLE_2 = new char[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ POLYNOMIAL : crc << 1;
+            }
+            TABLE[i] = (char) crc;
+        }
+        // The table is linear, so shifting a byte through two steps equals shifting its
+        // first-step result through one more step
+        for (int i = 0; i < 256; i++) {
+            TABLE_2[i] = (char) (((TABLE[i] & 0xFF) << 8) ^ TABLE[TABLE[i] >> 8]);
+        }
+    }
+
+    private char value = INITIAL_VALUE;
+
+    public Crc16 reset() {
+        value = INITIAL_VALUE;
+        return this;
+    }
+
+    public Crc16 update(byte b) {
+        value = update(value, b);
+        return this;
+    }
+
+    public Crc16 update(byte[] data, int offset, int length) {
+        value = update(value, data, offset, length);
+        return this;
+    }
+
+    public Crc16 update(ByteBuffer buffer, int offset, int length) {
+        value = update(value, buffer, offset, length);
+        return this;
+    }
+
+    public char getValue() {
+        return value;
+    }
+
+    public static char update(char crc, byte b) {
+        return (char) ((crc << 8) ^ TABLE[((crc >> 8) ^ b) & 0xFF]);
+    }
+
+    /**
+     * Continues a CRC over the given range of bytes, two bytes per step.
+     */
+    public static char update(char crc, byte[] data, int offset, int length) {
+        int value = crc;
+        int index = offset;
+        int pairsEnd = offset + (length & ~1);
+        while (index < pairsEnd) {
+            value = TABLE_2[((value >> 8) ^ data[index]) & 0xFF]
+                    ^ TABLE[(value ^ data[index + 1]) & 0xFF];
+            index += 2;
+        }
+        if ((length & 1) != 0) {
+            value = ((value << 8) & 0xFFFF) ^ TABLE[((value >> 8) ^ data[index]) & 0xFF];
+        }
+        return (char) value;
+    }
+
+    /**
+     * Continues a CRC over the given range of absolute positions of the buffer. The buffer
+     * position and limit are not changed.
+     */
+    public static char update(char crc, ByteBuffer buffer, int offset, int length) {
+        if (buffer.hasArray()) {
+            return update(crc, buffer.array(), buffer.arrayOffset() + offset, length);
+        }
+        int value = crc;
+        int end = offset + length;
+        for (int index = offset; index < end; index++) {
+            value = ((value << 8) & 0xFFFF) ^ TABLE[((value >> 8) ^ buffer.get(index)) & 0xFF];
+        }
+        return (char) value;
+    }
+
+    /**
+     * One byte per step. Kept as a reference for the two-byte variant.
+     */
+    public static char updateBytewise(char crc, byte[] data, int offset, int length) {
+        int value = crc;
+        int end = offset + length;
+        for (int index = offset; index < end; index++) {
+            value = ((value << 8) & 0xFFFF) ^ TABLE[((value >> 8) ^ data[index]) & 0xFF];
+        }
+        return (char) value;
+    }
+
+    public static char compute(byte[] data, int offset, int length) {
+        return update(INITIAL_VALUE, data, offset, length);
+    }
+}
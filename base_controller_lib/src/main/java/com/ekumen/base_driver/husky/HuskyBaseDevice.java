@@ -24,40 +24,127 @@ import android.hardware.usb.UsbDeviceConnection;
 
 import com.ekumen.base_driver.AbstractBaseDevice;
 import com.ekumen.base_driver.BaseStatus;
+import com.ekumen.base_driver.CommandWriter;
+import com.ekumen.base_driver.DeviceClockSync;
+import com.ekumen.base_driver.DriverLog;
 import com.ekumen.base_driver.OdometryStatus;
 import com.hoho.android.usbserial.driver.UsbSerialPort;
-import com.hoho.android.usbserial.util.SerialInputOutputManager;
 
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
-
-import java.nio.ByteBuffer;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 public class HuskyBaseDevice extends AbstractBaseDevice {
     private final long initialTime;
+    private int lastTimeStamp = 0;
+    private volatile HuskyCommandTracker commandTracker;
 
     HuskyPacketReader packetReader = new HuskyPacketReader();
     HuskyOdometryStatus odometryStatus = new HuskyOdometryStatus();
+    private final HuskyMessageDispatcher dispatcher = new HuskyMessageDispatcher();
+    private final HuskySystemStatus systemStatus = new HuskySystemStatus();
+    private final HuskyPowerStatus powerStatus = new HuskyPowerStatus();
+    private final HuskySafetyStatus safetyStatus = new HuskySafetyStatus();
+    private final BaseStatus baseStatus = new BaseStatus();
+    // Data messages are stamped by the base's millisecond clock. Acknowledgements echo the
+    // timestamps of the commands instead, so they are kept out of the mapping.
+    private final DeviceClockSync clockSync = new DeviceClockSync(32);
+    // Arrival time of the chunk being decoded
+    private long receivedNanos;
+
+    // Encoder data is requested at the moving rate while commanded to move, and at the idle
+    // rate once stopped for IDLE_DELAY_MS, so the tail of the motion is still sampled fast
+    private static final long IDLE_DELAY_MS = 1000;
+    private volatile int movingEncoderFrequency;
+    private volatile int idleEncoderFrequency;
+    private volatile boolean moving = false;
+    private volatile long stopTimeNanos;
+    private volatile int requestedEncoderFrequency = -1;
 
     // Husky low level commands
     private static final byte SOH = (byte) 0xAA;
     private static final byte PROTOCOL_VERSION = (byte) 0x1;
     private static final byte STX = (byte) 0x55;
+    private static final byte FLAG_ACK_SUPPRESSED = (byte) 0x01;
+    // Set velocities using kinematic model. Each one replaces the previous, and the keepalive
+    // refreshes it, so unacknowledged ones are not retransmitted: a retransmission could be
+    // written after a newer velocity, such as a stop.
+    private static final char VELOCITY_MESSAGE_TYPE = (char) 0x0204;
+    // Longest time the writer waits for room among the commands in flight. Well below the time
+    // given to the writer to stop on close.
+    private static final long WINDOW_WAIT_NANOS = 500000000L;
+
+    // Velocity command, encoded in place. The payload is re-encoded only when the speeds or
+    // the acceleration change, since the same twist is usually sent over and over; otherwise
+    // only the flags, timestamp and CRC are patched. The CRC is continued from that of the
+    // bytes before the timestamp, which never change.
+    private static final int VELOCITY_PAYLOAD_SIZE = 9;
+    private final byte[] velocityFrame = new byte[VELOCITY_PAYLOAD_SIZE + 11];
+    private boolean velocityEncoded = false;
+    private int encodedLinearSpeed;
+    private int encodedAngSpeed;
+    private int encodedLinearAccel;
+    private char velocityHeaderCrc;
+    private volatile int linearAccel = (int) Math.round(DEFAULT_LINEAR_ACCELERATION * ACCEL_SCALE);
 
     // Hardcoded speed (linear and angular) scale and limits
     private static final double SPEED_LIMIT = 100.0;
     private static final double SPEED_SCALE = 100.0;
 
-    private static final Log log = LogFactory.getLog(HuskyBaseDevice.class);
+    // Rates at which telemetry is requested from the base
+    public static final int DEFAULT_ENCODER_DATA_FREQUENCY = 10;
+    private static final int SYSTEM_STATUS_FREQUENCY = 1;
+    private static final int POWER_STATUS_FREQUENCY = 1;
+    private static final int SAFETY_STATUS_FREQUENCY = 10;
+    // The firmware stops the base when velocity commands stop arriving, so they are repeated
+    // at 10 Hz, like the vendor's driver does
+    private static final long KEEPALIVE_PERIOD_MS = 100;
+    // Acceleration the firmware ramps velocity changes with, in hundredths of m/s²
+    private static final double ACCEL_SCALE = 100.0;
+    public static final double DEFAULT_LINEAR_ACCELERATION = 2.0;
+
+    private static final DriverLog log = new DriverLog(HuskyBaseDevice.class);
+    // Malformed messages report their payload length
+    private final DriverLog.Event malformedSystemStatus =
+            log.rateLimited(DriverLog.Level.ERROR, "Malformed system status message");
+    private final DriverLog.Event malformedPowerStatus =
+            log.rateLimited(DriverLog.Level.ERROR, "Malformed power status message");
+    private final DriverLog.Event malformedSafetyStatus =
+            log.rateLimited(DriverLog.Level.ERROR, "Malformed safety status message");
+    // Dropped commands report their message type
+    private final DriverLog.Event droppedCommands =
+            log.rateLimited(DriverLog.Level.ERROR, "Command queue full, dropped command");
+    private final DriverLog.Event windowFullCommands =
+            log.rateLimited(DriverLog.Level.ERROR, "No acknowledgements from the base, dropped command");
 
+    /**
+     * @return: The status of the base, updated in place as power and safety telemetry arrives.
+     * Battery is the charge of the first battery in percent.
+     */
     public BaseStatus getBaseStatus() {
-        BaseStatus baseStatus;
-        baseStatus = new BaseStatus();
         return baseStatus;
     }
 
+    /**
+     * @return: Latest system status (uptime, voltages, currents and temperatures). Updated in
+     * place from the serial reading thread.
+     */
+    public HuskySystemStatus getSystemStatus() {
+        return systemStatus;
+    }
+
+    /**
+     * @return: Latest power system status. Updated in place from the serial reading thread.
+     */
+    public HuskyPowerStatus getPowerStatus() {
+        return powerStatus;
+    }
+
+    /**
+     * @return: Latest safety system status. Updated in place from the serial reading thread.
+     */
+    public HuskySafetyStatus getSafetyStatus() {
+        return safetyStatus;
+    }
+
     @Override
     public OdometryStatus getOdometryStatus() {
         return odometryStatus;
@@ -65,67 +152,242 @@ public class HuskyBaseDevice extends AbstractBaseDevice {
 
 
     public HuskyBaseDevice(UsbSerialPort usbSerialPort, UsbDeviceConnection usbDeviceConnection) throws Exception {
-        super(usbSerialPort, usbDeviceConnection);
+        this(usbSerialPort, usbDeviceConnection, DEFAULT_ENCODER_DATA_FREQUENCY);
+    }
+
+    /**
+     * @param encoderFrequency: Rate in Hz at which the base publishes encoder data.
+     */
+    public HuskyBaseDevice(UsbSerialPort usbSerialPort, UsbDeviceConnection usbDeviceConnection,
+                           int encoderFrequency) throws Exception {
+        this(usbSerialPort, usbDeviceConnection, encoderFrequency, encoderFrequency);
+    }
 
-        // Initialize timestamp for messages to be written to the Husky base
-        initialTime = System.currentTimeMillis();
+    /**
+     * @param movingEncoderFrequency: Rate in Hz at which the base publishes encoder data while
+     *                              moving.
+     * @param idleEncoderFrequency: Rate in Hz at which the base publishes encoder data while
+     *                            stopped.
+     */
+    public HuskyBaseDevice(UsbSerialPort usbSerialPort, UsbDeviceConnection usbDeviceConnection,
+                           int movingEncoderFrequency, int idleEncoderFrequency) throws Exception {
+        this(usbSerialPort, usbDeviceConnection, movingEncoderFrequency, idleEncoderFrequency, null);
+    }
+
+    /**
+     * @param ioExecutor: Runs the reading and writing loops of the device. If <code>null</code>,
+     *                  the device creates its own.
+     */
+    public HuskyBaseDevice(UsbSerialPort usbSerialPort, UsbDeviceConnection usbDeviceConnection,
+                           ExecutorService ioExecutor) throws Exception {
+        this(usbSerialPort, usbDeviceConnection, DEFAULT_ENCODER_DATA_FREQUENCY,
+                DEFAULT_ENCODER_DATA_FREQUENCY, ioExecutor);
+    }
 
-        // Listen for USB-serial input events and call updateReceivedData whenever new data
-        // is received
-        final ExecutorService executorService = Executors.newSingleThreadExecutor();
-        SerialInputOutputManager serialInputOutputManager;
-        final SerialInputOutputManager.Listener listener =
-            new SerialInputOutputManager.Listener() {
+    /**
+     * @param movingEncoderFrequency: Rate in Hz at which the base publishes encoder data while
+     *                              moving.
+     * @param idleEncoderFrequency: Rate in Hz at which the base publishes encoder data while
+     *                            stopped.
+     * @param ioExecutor: Runs the reading and writing loops of the device. If <code>null</code>,
+     *                  the device creates its own.
+     */
+    public HuskyBaseDevice(UsbSerialPort usbSerialPort, UsbDeviceConnection usbDeviceConnection,
+                           int movingEncoderFrequency, int idleEncoderFrequency,
+                           ExecutorService ioExecutor) throws Exception {
+        super(usbSerialPort, usbDeviceConnection, ioExecutor);
+        try {
+            checkEncoderFrequency(movingEncoderFrequency);
+            checkEncoderFrequency(idleEncoderFrequency);
+            this.movingEncoderFrequency = movingEncoderFrequency;
+            this.idleEncoderFrequency = idleEncoderFrequency;
+            setKeepalivePeriodMs(KEEPALIVE_PERIOD_MS);
+            setCommandPeriodMs(KEEPALIVE_PERIOD_MS);
+
+            // Initialize timestamp for messages to be written to the Husky base
+            initialTime = System.currentTimeMillis();
+
+            registerMessageHandlers();
+            // Commands are tracked when taken from the queue, so round trips don't include the time
+            // they spent queued, and superseded velocity commands are never tracked. A full window
+            // of commands in flight holds back the writer.
+            getCommandWriter().setListener(new CommandWriter.Listener() {
                 @Override
-                public void onRunError(Exception e) {
+                public boolean onWriting(byte[] command) {
+                    return trackCommand(command);
                 }
-
+            });
+            packetReader.setPacketListener(new HuskyPacketReader.PacketListener() {
                 @Override
-                public void onNewData(final byte[] data) {
-                    HuskyBaseDevice.this.updateReceivedData(data);
+                public void onPacket(HuskyPacket packet) {
+                    onPacketReceived(packet);
                 }
-            };
-        serialInputOutputManager = new SerialInputOutputManager(port, listener);
-        executorService.submit(serialInputOutputManager);
+            });
+            // Listen for USB-serial input events and call updateReceivedData whenever new data
+            // is received
+            startReceiving();
+        } catch (Exception e) {
+            // Releases the port, and the I/O threads if they were started
+            close();
+            throw e;
+        }
     }
 
     /**
      * Called every time there is new data received through the USB-serial interface
      */
-    private void updateReceivedData(final byte[] bytes) {
-        HuskyPacket packet = null;
-        try {
-            // Parse the packet
-            packet = packetReader.parse(ByteBuffer.wrap(bytes));
-
-        } catch (HuskyParserException e) {
-            log.error("Error parsing incoming packet", e);
-        }
+    @Override
+    protected void updateReceivedData(final byte[] bytes, int length) {
+        receivedNanos = System.nanoTime();
+        // Every complete packet in the chunk is handed to onPacketReceived
+        packetReader.parse(bytes, 0, length);
+    }
 
-        // If we did get a new packet
-        if(packet != null) {
-            switch(packet.getMessageType()) {
+    /**
+     * Called for every packet decoded from the incoming data
+     */
+    private void onPacketReceived(HuskyPacket packet) {
+        notifyRawFrameListeners(packet.getFrame(), packet.getFrameLength());
+        dispatcher.dispatch(packet);
+        checkCommandTimeouts();
+    }
 
-                // It's encoder data: update odometry
-                case HuskyPacket.TYPE_ENCODER_DATA:
-                    odometryStatus.update(packet.getPayload());
-                    break;
+    /**
+     * Sets the handler for a type of message received from the base. Messages of the types
+     * the device decodes itself can be handled too, replacing the device's handling.
+     */
+    public void setMessageHandler(char messageType, HuskyMessageHandler handler) {
+        dispatcher.register(messageType, handler);
+    }
 
-                // Ignore the rest of the packets
-                default:
-                    break;
+    private void registerMessageHandlers() {
+        dispatcher.register(HuskyPacket.TYPE_ENCODER_DATA, new HuskyMessageHandler() {
+            @Override
+            public void onMessage(HuskyPacket packet) {
+                odometryStatus.update(packet, measuredTime(packet));
+                notifyOdometryListeners(odometryStatus);
+                checkIdle();
+            }
+        });
+        dispatcher.register(HuskyPacket.TYPE_SYSTEM_STATUS, new HuskyMessageHandler() {
+            @Override
+            public void onMessage(HuskyPacket packet) {
+                if(!systemStatus.decode(packet)) {
+                    malformedSystemStatus.record(packet.getPayloadLength());
+                }
+            }
+        });
+        dispatcher.register(HuskyPacket.TYPE_POWER_STATUS, new HuskyMessageHandler() {
+            @Override
+            public void onMessage(HuskyPacket packet) {
+                if(!powerStatus.decode(packet)) {
+                    malformedPowerStatus.record(packet.getPayloadLength());
+                } else if(powerStatus.getBatteryCount() > 0) {
+                    baseStatus.setMeasuredTime(measuredTime(packet));
+                    baseStatus.setBattery((byte) Math.round(powerStatus.getChargeEstimate(0) * 100));
+                    notifyBaseStatusListeners(baseStatus);
+                }
+            }
+        });
+        dispatcher.register(HuskyPacket.TYPE_SAFETY_STATUS, new HuskyMessageHandler() {
+            @Override
+            public void onMessage(HuskyPacket packet) {
+                if(!safetyStatus.decode(packet)) {
+                    malformedSafetyStatus.record(packet.getPayloadLength());
+                } else {
+                    baseStatus.setMeasuredTime(measuredTime(packet));
+                    baseStatus.setEmergencyStop((byte) (safetyStatus.isEmergencyStopped() ? 1 : 0));
+                    notifyBaseStatusListeners(baseStatus);
+                }
+            }
+        });
+        // Acknowledgements echo the type of the command, with 2 bytes of error flags
+        dispatcher.setDefaultHandler(new HuskyMessageHandler() {
+            @Override
+            public void onMessage(HuskyPacket packet) {
+                HuskyCommandTracker tracker = commandTracker;
+                if(tracker != null && packet.getMessageType() < HuskyPacket.TYPE_DATA_MIN
+                        && packet.getPayloadLength() == 2) {
+                    tracker.acknowledge(packet.getMessageType(), packet.getTimestamp(),
+                            packet.getPayloadShort(0) & 0xFFFF, System.nanoTime());
+                }
             }
+        });
+    }
+
+    /**
+     * @return: Time the base produced a data message, in milliseconds since the epoch.
+     */
+    private long measuredTime(HuskyPacket packet) {
+        return DeviceClockSync.toWallMillis(clockSync.toHostNanos(packet.getTimestamp(), receivedNanos));
+    }
+
+    /**
+     * @return: The mapping of the base's message timestamps to the host clock.
+     */
+    public DeviceClockSync getClockSync() {
+        return clockSync;
+    }
+
+    /**
+     * Enables acknowledged mode: every command asks the base for an acknowledgement, and
+     * unacknowledged commands are retransmitted.
+     * @param maxInFlight: Maximum number of commands written and not acknowledged yet. Further
+     *                   commands wait for room before being written.
+     * @param timeoutMs: Time to wait for an acknowledgement before retransmitting.
+     * @param maxRetries: Number of retransmissions before giving up on a command.
+     * @return: The tracker, which exposes round trip times and acknowledgement statistics.
+     */
+    public HuskyCommandTracker enableAcknowledgements(int maxInFlight, long timeoutMs, int maxRetries) {
+        commandTracker = new HuskyCommandTracker(maxInFlight, timeoutMs, maxRetries);
+        return commandTracker;
+    }
+
+    /**
+     * Goes back to suppressing acknowledgements, which is the default.
+     */
+    public void disableAcknowledgements() {
+        commandTracker = null;
+    }
+
+    /**
+     * @return: The tracker of acknowledged commands, or <code>null</code> when
+     * acknowledgements are disabled.
+     */
+    public HuskyCommandTracker getCommandTracker() {
+        return commandTracker;
+    }
+
+    private void checkCommandTimeouts() {
+        HuskyCommandTracker tracker = commandTracker;
+        if(tracker != null) {
+            tracker.checkTimeouts(System.nanoTime(), retransmitter);
         }
     }
 
+    private final HuskyCommandTracker.Retransmitter retransmitter = new HuskyCommandTracker.Retransmitter() {
+        @Override
+        public void retransmit(byte[] command) {
+            // The tracker keeps its copy, so this one is handed over to the writer
+            writeCommand(command.clone());
+        }
+    };
+
     /**
      * Initializes the Husky base device
      */
     @Override
     public void initialize() {
         log.info("Initializing");
-        // Request the base to publish the encoders value
-        sendEncodersRequest();
+        // Request the base to publish the encoders value and its status
+        synchronized(this) {
+            // Always sent, in case the base was reset
+            requestedEncoderFrequency = -1;
+            updateEncoderFrequency(moving ? movingEncoderFrequency : idleEncoderFrequency);
+        }
+        sendDataRequest(HuskyPacket.TYPE_SYSTEM_STATUS, SYSTEM_STATUS_FREQUENCY);
+        sendDataRequest(HuskyPacket.TYPE_POWER_STATUS, POWER_STATUS_FREQUENCY);
+        sendDataRequest(HuskyPacket.TYPE_SAFETY_STATUS, SAFETY_STATUS_FREQUENCY);
     }
 
     /**
@@ -137,47 +399,159 @@ public class HuskyBaseDevice extends AbstractBaseDevice {
     public void move(double linearVelX, double angVelZ) {
         // The Husky base takes linear and angular velocities.
         // All we need to do is to scale and limit each value and fit it in the right format
-        sendMovementPackage(
-                scaleAndLimitSpeed(linearVelX),
-                scaleAndLimitSpeed(angVelZ));
+        int linearSpeed = scaleAndLimitSpeed(linearVelX);
+        int angSpeed = scaleAndLimitSpeed(angVelZ);
+        sendMovementPackage(linearSpeed, angSpeed);
+
+        if(linearSpeed != 0 || angSpeed != 0) {
+            if(!moving) {
+                startMoving();
+            }
+        } else if(moving) {
+            stopMoving();
+        }
     }
 
-    private static int scaleAndLimitSpeed(double speed) {
-        return (int)Math.round(Math.max(Math.min(speed * SPEED_SCALE, SPEED_LIMIT), -1.0*SPEED_LIMIT));
+    private synchronized void startMoving() {
+        moving = true;
+        updateEncoderFrequency(movingEncoderFrequency);
     }
 
     /**
-     * Request publishing of encoder information from the Husky base
+     * The idle rate is requested by checkIdle once the delay is over
      */
-    private void sendEncodersRequest() {
-        byte [] encoderRequestMessage = new byte[] {
-            0x00, 0x48, 0x55, 0x0A, 0x00
-        };
-        write(buildPackage(encoderRequestMessage));
+    private synchronized void stopMoving() {
+        stopTimeNanos = System.nanoTime();
+        moving = false;
     }
 
     /**
-     * Sends a movement command to the Husky base
-     *
+     * Changes the rates at which encoder data is requested. The new rate is requested
+     * right away.
+     * @param movingEncoderFrequency: Rate in Hz while moving.
+     * @param idleEncoderFrequency: Rate in Hz while stopped.
      */
-    private void sendMovementPackage(int linearSpeed, int angSpeed) {
-        int linearAccel = 0x00C8;         // Fixed acceleration of 5[m/s²]
-        int MSGType = 0x0204;             // Set velocities using kinematic model
+    public synchronized void setEncoderFrequencies(int movingEncoderFrequency, int idleEncoderFrequency) {
+        checkEncoderFrequency(movingEncoderFrequency);
+        checkEncoderFrequency(idleEncoderFrequency);
+        this.movingEncoderFrequency = movingEncoderFrequency;
+        this.idleEncoderFrequency = idleEncoderFrequency;
+        updateEncoderFrequency(moving ? movingEncoderFrequency : idleEncoderFrequency);
+    }
+
+    /**
+     * @return: Rate in Hz last requested for encoder data, or -1 before initialization.
+     */
+    public int getEncoderFrequency() {
+        return requestedEncoderFrequency;
+    }
 
-        //Little-endian encoding
-        byte[] baseControlMsg = new byte[]{
+    private static void checkEncoderFrequency(int frequency) {
+        if(frequency < 1 || frequency > 0xFFFF) {
+            throw new IllegalArgumentException("Invalid encoder data frequency: " + frequency);
+        }
+    }
+
+    /**
+     * Called for every encoder message: lowers the rate once the base has been stopped
+     * for long enough
+     */
+    private void checkIdle() {
+        if(!moving && requestedEncoderFrequency != idleEncoderFrequency) {
+            synchronized(this) {
+                if(!moving && System.nanoTime() - stopTimeNanos > IDLE_DELAY_MS * 1000000L) {
+                    updateEncoderFrequency(idleEncoderFrequency);
+                }
+            }
+        }
+    }
+
+    /**
+     * Requests encoder data at the given rate, unless it is the rate already requested
+     */
+    private synchronized void updateEncoderFrequency(int frequency) {
+        if(frequency != requestedEncoderFrequency) {
+            requestedEncoderFrequency = frequency;
+            sendDataRequest(HuskyPacket.TYPE_ENCODER_DATA, frequency);
+        }
+    }
+
+    private static int scaleAndLimitSpeed(double speed) {
+        return (int)Math.round(Math.max(Math.min(speed * SPEED_SCALE, SPEED_LIMIT), -1.0*SPEED_LIMIT));
+    }
+
+    /**
+     * Requests the Husky base to publish a type of data periodically
+     * @param dataType: Type of the data messages
+     * @param frequency: Publishing rate in Hz. 0 requests a single message.
+     */
+    private void sendDataRequest(char dataType, int frequency) {
+        int MSGType = dataType - HuskyPacket.REQUEST_TYPE_OFFSET;
+        byte[] requestMessage = new byte[] {
             (byte) MSGType,
             (byte) (MSGType >> 8),
             STX,
-            (byte) linearSpeed,
-            (byte) (linearSpeed >> 8),
-            (byte) angSpeed,
-            (byte) (angSpeed >> 8),
-            (byte) linearAccel,
-            (byte) (linearAccel >> 8)
+            (byte) frequency,
+            (byte) (frequency >> 8)
         };
+        writeCommand(buildPackage(requestMessage));
+    }
+
+    /**
+     * Sets the acceleration the base uses to reach commanded velocities.
+     * @param metersPerSecondSquared: Between 0.01 and 327.67. 2 by default.
+     */
+    public void setLinearAcceleration(double metersPerSecondSquared) {
+        long accel = Math.round(metersPerSecondSquared * ACCEL_SCALE);
+        if(accel < 1 || accel > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Unsupported acceleration: " + metersPerSecondSquared);
+        }
+        linearAccel = (int) accel;
+    }
+
+    public double getLinearAcceleration() {
+        return linearAccel / ACCEL_SCALE;
+    }
 
-        write(buildPackage(baseControlMsg));
+    /**
+     * Sends a movement command to the Husky base
+     *
+     */
+    private void sendMovementPackage(int linearSpeed, int angSpeed) {
+        int MSGType = VELOCITY_MESSAGE_TYPE;
+
+        synchronized(velocityFrame) {
+            byte[] pkg = velocityFrame;
+            int accel = linearAccel;
+            if(!velocityEncoded || linearSpeed != encodedLinearSpeed || angSpeed != encodedAngSpeed
+                    || accel != encodedLinearAccel) {
+                encodeHeader(pkg, VELOCITY_PAYLOAD_SIZE);
+                //Little-endian encoding
+                pkg[9] = (byte) MSGType;
+                pkg[10] = (byte) (MSGType >> 8);
+                pkg[11] = STX;
+                pkg[12] = (byte) linearSpeed;
+                pkg[13] = (byte) (linearSpeed >> 8);
+                pkg[14] = (byte) angSpeed;
+                pkg[15] = (byte) (angSpeed >> 8);
+                pkg[16] = (byte) accel;
+                pkg[17] = (byte) (accel >> 8);
+                velocityHeaderCrc = Crc16.compute(pkg, 0, HuskyPacket.TIMESTAMP_OFFSET);
+                encodedLinearSpeed = linearSpeed;
+                encodedAngSpeed = angSpeed;
+                encodedLinearAccel = accel;
+                velocityEncoded = true;
+            }
+            encodeTimeStampAndFlags(pkg);
+            char checksum = Crc16.update(velocityHeaderCrc, pkg, HuskyPacket.TIMESTAMP_OFFSET,
+                    pkg.length - 2 - HuskyPacket.TIMESTAMP_OFFSET);
+            pkg[pkg.length - 2] = (byte)checksum;
+            pkg[pkg.length - 1] = (byte)(checksum >> 8);
+
+            // Velocity commands supersede each other until written. The frame is copied by
+            // the writer, so it can be reused right away.
+            getCommandWriter().writeVelocity(pkg);
+        }
     }
 
 
@@ -188,43 +562,88 @@ public class HuskyBaseDevice extends AbstractBaseDevice {
         char checksum = 0;
         int payloadLength = payload.length;
         byte[] pkg = new byte[payloadLength + 11];
-        long msgTime = System.currentTimeMillis();
 
-        byte Flags = (byte) 0x01;                        // ACK suppressed
+        encodeHeader(pkg, payloadLength);
+        encodeTimeStampAndFlags(pkg);
+
+        for (int i = 9; i < payloadLength + 9; i++) {
+            pkg[i] = payload[i - 9];
+        }
+
+        checksum = HuskyBaseUtils.checkSum(pkg);
+        pkg[pkg.length - 2] = (byte)checksum;
+        pkg[pkg.length - 1] = (byte)(checksum >> 8);
+
+        return pkg;
+    }
+
+    private static void encodeHeader(byte[] pkg, int payloadLength) {
         byte Length0 = (byte) (payloadLength + 8);
         byte Length1 = (byte) ~Length0;                  // It always is Length0's complement
-        int TimeStamp = (int)msgTime - (int)initialTime; // Set TimeStamp in milliseconds using four bytes
 
         pkg[0] = SOH;
         pkg[1] = Length0;
         pkg[2] = Length1;
         pkg[3] = PROTOCOL_VERSION;
+    }
+
+    private void encodeTimeStampAndFlags(byte[] pkg) {
+        byte Flags = commandTracker == null ? FLAG_ACK_SUPPRESSED : 0;
+        int TimeStamp = nextTimeStamp(System.currentTimeMillis()); // Set TimeStamp in milliseconds using four bytes
+
         pkg[4] = (byte) TimeStamp;
         pkg[5] = (byte) (TimeStamp >> 8);
         pkg[6] = (byte) (TimeStamp >> 16);
         pkg[7] = (byte) (TimeStamp >> 24);
         pkg[8] = Flags;
+    }
 
-        for (int i = 9; i < payloadLength + 9; i++) {
-            pkg[i] = payload[i - 9];
+    /**
+     * Milliseconds since the device was created. Acknowledgements are matched by timestamp,
+     * so it never repeats, even for commands built within the same millisecond.
+     */
+    private synchronized int nextTimeStamp(long msgTime) {
+        int timeStamp = (int)msgTime - (int)initialTime;
+        if(timeStamp - lastTimeStamp <= 0) {
+            timeStamp = lastTimeStamp + 1;
         }
+        lastTimeStamp = timeStamp;
+        return timeStamp;
+    }
 
-        checksum = HuskyBaseUtils.checkSum(pkg);
-        pkg[pkg.length - 2] = (byte)checksum;
-        pkg[pkg.length - 1] = (byte)(checksum >> 8);
-
-        return pkg;
+    /**
+     * Starts tracking a command about to be written to the base, if acknowledgements are
+     * enabled, waiting for room among the commands in flight.
+     * @return: <code>false</code> if the command must not be written, as no room was made.
+     */
+    private boolean trackCommand(byte[] command) {
+        HuskyCommandTracker tracker = commandTracker;
+        if(tracker != null && command[HuskyPacket.FLAGS_OFFSET] != FLAG_ACK_SUPPRESSED) {
+            char messageType = (char) ((command[HuskyPacket.MESSAGE_TYPE_OFFSET] & 0xFF)
+                    | ((command[HuskyPacket.MESSAGE_TYPE_OFFSET + 1] & 0xFF) << 8));
+            boolean tracked = tracker.track(messageType,
+                    (command[HuskyPacket.TIMESTAMP_OFFSET] & 0xFF)
+                            | ((command[HuskyPacket.TIMESTAMP_OFFSET + 1] & 0xFF) << 8)
+                            | ((command[HuskyPacket.TIMESTAMP_OFFSET + 2] & 0xFF) << 16)
+                            | ((command[HuskyPacket.TIMESTAMP_OFFSET + 3] & 0xFF) << 24),
+                    command, messageType == VELOCITY_MESSAGE_TYPE, WINDOW_WAIT_NANOS, retransmitter);
+            if(!tracked) {
+                windowFullCommands.record(messageType);
+                return false;
+            }
+            tracker.checkTimeouts(System.nanoTime(), retransmitter);
+        }
+        return true;
     }
 
     /**
-     * Writes bytes to the underlying device
-     * @param command  Byte buffer
+     * Queues a one-shot command to be written to the underlying device, in order
+     * @param command  Byte buffer, handed over to the writer
      */
-    private void write(byte[] command) {
-        try {
-            port.write(command, 1000);
-        } catch(Throwable t) {
-            log.error("Exception writing command: " + HuskyBaseUtils.byteArrayToString(command), t);
+    private void writeCommand(byte[] command) {
+        if(!getCommandWriter().write(command)) {
+            droppedCommands.record((command[HuskyPacket.MESSAGE_TYPE_OFFSET] & 0xFF)
+                    | ((command[HuskyPacket.MESSAGE_TYPE_OFFSET + 1] & 0xFF) << 8));
         }
     }
 
@@ -0,0 +1,297 @@
+package com.ekumen.base_driver.husky;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks commands sent to the Husky with acknowledgements enabled. When the ACK-suppressed
+ * flag is clear, the base answers every command with a message of the same type and
+ * timestamp, whose 2-byte payload holds error flags (0 when the command was accepted).
+ *
+ * A bounded window of commands is kept in flight: when it is full, new commands wait for an
+ * acknowledgement or a timeout to make room before being written, and are not written at all
+ * if none does in time. Commands not acknowledged within the timeout are retransmitted,
+ * unchanged, up to a maximum number of retries. Commands that supersede earlier ones of their
+ * type, such as velocities, are never retransmitted, since that could write them after a newer
+ * one: they only time out, and stop being tracked once a newer one is written. Timeouts are
+ * checked by the device whenever it sends or receives data, and while waiting for room.
+ */
+public class HuskyCommandTracker {
+
+    // Bits of the error flags in an acknowledgement
+    public static final int ERROR_BAD_CHECKSUM = 0x01;
+    public static final int ERROR_TYPE_NOT_SUPPORTED = 0x02;
+    public static final int ERROR_BAD_FORMAT = 0x04;
+    public static final int ERROR_OUT_OF_RANGE = 0x08;
+    public static final int ERROR_SUBSCRIPTION_TOO_FAST = 0x10;
+    public static final int ERROR_COMMAND_TOO_FAST = 0x20;
+
+    /**
+     * Writes a tracked command again when it times out.
+     */
+    public interface Retransmitter {
+        void retransmit(byte[] command);
+    }
+
+    /**
+     * Notified of the outcome of every tracked command. Called while holding the tracker lock,
+     * so implementations should return quickly.
+     */
+    public interface AcknowledgementListener {
+        void onAcknowledged(char messageType, int timestamp, int errorFlags, long roundTripNanos);
+
+        void onTimeout(char messageType, int timestamp);
+    }
+
+    private final long timeoutNanos;
+    private final int maxRetries;
+    private AcknowledgementListener acknowledgementListener;
+
+    // Window slots, indexed circularly from the oldest command in flight
+    private final char[] messageTypes;
+    private final int[] timestamps;
+    private final long[] sentNanos;
+    private final int[] retries;
+    private final boolean[] superseding;
+    private final byte[][] commands;
+    private int oldest = 0;
+    private int inFlight = 0;
+
+    private long acknowledged = 0;
+    private long rejected = 0;
+    private long retransmitted = 0;
+    private long timedOut = 0;
+    private long windowFull = 0;
+    private long superseded = 0;
+    private int lastErrorFlags = 0;
+    private long lastRoundTripNanos = 0;
+    private long maxRoundTripNanos = 0;
+    private long totalRoundTripNanos = 0;
+
+    /**
+     * @param maxInFlight: Maximum number of commands waiting for an acknowledgement.
+     * @param timeoutMs: Time to wait for an acknowledgement before retransmitting.
+     * @param maxRetries: Number of retransmissions before giving up on a command.
+     */
+    public HuskyCommandTracker(int maxInFlight, long timeoutMs, int maxRetries) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("At least one command must be allowed in flight");
+        }
+        this.timeoutNanos = timeoutMs * 1000000L;
+        this.maxRetries = maxRetries;
+        messageTypes = new char[maxInFlight];
+        timestamps = new int[maxInFlight];
+        sentNanos = new long[maxInFlight];
+        retries = new int[maxInFlight];
+        superseding = new boolean[maxInFlight];
+        commands = new byte[maxInFlight][];
+    }
+
+    public synchronized void setAcknowledgementListener(AcknowledgementListener listener) {
+        acknowledgementListener = listener;
+    }
+
+    /**
+     * Starts tracking a command about to be written, first waiting for room in the window if it
+     * is full. Retransmissions of a command already in flight are left as they are.
+     * @param supersedes: Whether the command replaces the earlier ones of its type, which then
+     * stop being tracked. Such commands are never retransmitted.
+     * @param maxWaitNanos: Longest time to wait for room in the window.
+     * @param retransmitter: Used for the commands that time out while waiting.
+     * @return: <code>false</code> if the window stayed full, or the thread was interrupted. The
+     * command is not tracked and must not be written then.
+     */
+    public synchronized boolean track(char messageType, int timestamp, byte[] command, boolean supersedes,
+                                      long maxWaitNanos, Retransmitter retransmitter) {
+        for (int i = 0; i < inFlight; i++) {
+            int slot = slot(i);
+            if (timestamps[slot] == timestamp && messageTypes[slot] == messageType) {
+                return true;
+            }
+        }
+        if (supersedes) {
+            int i = 0;
+            while (i < inFlight) {
+                if (messageTypes[slot(i)] == messageType) {
+                    superseded++;
+                    remove(i);
+                } else {
+                    i++;
+                }
+            }
+        }
+        long now = System.nanoTime();
+        long deadline = now + maxWaitNanos;
+        while (inFlight == messageTypes.length) {
+            checkTimeouts(now, retransmitter);
+            if (inFlight < messageTypes.length) {
+                break;
+            }
+            long wait = deadline - now;
+            if (wait <= 0) {
+                windowFull++;
+                return false;
+            }
+            // Until the deadline or the next timeout, unless an acknowledgement comes first
+            for (int i = 0; i < inFlight; i++) {
+                wait = Math.min(wait, sentNanos[slot(i)] + timeoutNanos - now);
+            }
+            try {
+                TimeUnit.NANOSECONDS.timedWait(this, Math.max(wait, 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                windowFull++;
+                return false;
+            }
+            now = System.nanoTime();
+        }
+        int slot = slot(inFlight);
+        messageTypes[slot] = messageType;
+        timestamps[slot] = timestamp;
+        sentNanos[slot] = now;
+        retries[slot] = 0;
+        superseding[slot] = supersedes;
+        // Commands of a given type always have the same size, so slot buffers are reused
+        if (commands[slot] == null || commands[slot].length != command.length) {
+            commands[slot] = new byte[command.length];
+        }
+        System.arraycopy(command, 0, commands[slot], 0, command.length);
+        inFlight++;
+        return true;
+    }
+
+    /**
+     * Matches an acknowledgement received from the base with the command it answers.
+     * @return: <code>false</code> if no command in flight matches it.
+     */
+    public synchronized boolean acknowledge(char messageType, int timestamp, int errorFlags, long nowNanos) {
+        for (int i = 0; i < inFlight; i++) {
+            int slot = slot(i);
+            if (timestamps[slot] == timestamp && messageTypes[slot] == messageType) {
+                long roundTrip = nowNanos - sentNanos[slot];
+                lastRoundTripNanos = roundTrip;
+                maxRoundTripNanos = Math.max(maxRoundTripNanos, roundTrip);
+                totalRoundTripNanos += roundTrip;
+                acknowledged++;
+                lastErrorFlags = errorFlags;
+                if (errorFlags != 0) {
+                    rejected++;
+                }
+                remove(i);
+                if (acknowledgementListener != null) {
+                    acknowledgementListener.onAcknowledged(messageType, timestamp, errorFlags, roundTrip);
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Retransmits or gives up on every command whose acknowledgement is overdue. Superseding
+     * commands are given up on right away.
+     */
+    public synchronized void checkTimeouts(long nowNanos, Retransmitter retransmitter) {
+        int i = 0;
+        while (i < inFlight) {
+            int slot = slot(i);
+            if (nowNanos - sentNanos[slot] < timeoutNanos) {
+                i++;
+            } else if (!superseding[slot] && retries[slot] < maxRetries) {
+                retries[slot]++;
+                retransmitted++;
+                sentNanos[slot] = nowNanos;
+                retransmitter.retransmit(commands[slot]);
+                i++;
+            } else {
+                timedOut++;
+                if (acknowledgementListener != null) {
+                    acknowledgementListener.onTimeout(messageTypes[slot], timestamps[slot]);
+                }
+                remove(i);
+            }
+        }
+    }
+
+    private int slot(int position) {
+        return (oldest + position) % messageTypes.length;
+    }
+
+    /**
+     * Removes the command at the given position of the window, keeping the rest in order.
+     */
+    private void remove(int position) {
+        for (int i = position; i > 0; i--) {
+            int to = slot(i);
+            int from = slot(i - 1);
+            messageTypes[to] = messageTypes[from];
+            timestamps[to] = timestamps[from];
+            sentNanos[to] = sentNanos[from];
+            retries[to] = retries[from];
+            superseding[to] = superseding[from];
+            byte[] command = commands[to];
+            commands[to] = commands[from];
+            commands[from] = command;
+        }
+        oldest = slot(1);
+        inFlight--;
+        // Makes room for a command waiting in track()
+        notifyAll();
+    }
+
+    public synchronized int getInFlightCount() {
+        return inFlight;
+    }
+
+    public synchronized long getAcknowledgedCount() {
+        return acknowledged;
+    }
+
+    /**
+     * @return: Number of acknowledgements that reported errors.
+     */
+    public synchronized long getRejectedCount() {
+        return rejected;
+    }
+
+    public synchronized long getRetransmittedCount() {
+        return retransmitted;
+    }
+
+    /**
+     * @return: Number of commands given up on after all their retries.
+     */
+    public synchronized long getTimedOutCount() {
+        return timedOut;
+    }
+
+    /**
+     * @return: Number of commands not written because the window stayed full.
+     */
+    public synchronized long getWindowFullCount() {
+        return windowFull;
+    }
+
+    /**
+     * @return: Number of commands that stopped being tracked because a newer one of the same
+     * type replaced them.
+     */
+    public synchronized long getSupersededCount() {
+        return superseded;
+    }
+
+    public synchronized int getLastErrorFlags() {
+        return lastErrorFlags;
+    }
+
+    public synchronized long getLastRoundTripNanos() {
+        return lastRoundTripNanos;
+    }
+
+    public synchronized long getMaxRoundTripNanos() {
+        return maxRoundTripNanos;
+    }
+
+    public synchronized long getMeanRoundTripNanos() {
+        return acknowledged == 0 ? 0 : totalRoundTripNanos / acknowledged;
+    }
+}
@@ -0,0 +1,81 @@
+package com.ekumen.base_driver.husky;
+
+import java.util.Arrays;
+
+/**
+ * Routes received packets to handlers by Clearpath message type. Types are kept sorted in a
+ * primitive array and looked up by binary search, so dispatching neither locks nor allocates.
+ * Registering a handler replaces the tables as a whole.
+ */
+public class HuskyMessageDispatcher {
+
+    private static class Table {
+        final char[] types;
+        final HuskyMessageHandler[] handlers;
+
+        Table(char[] types, HuskyMessageHandler[] handlers) {
+            this.types = types;
+            this.handlers = handlers;
+        }
+    }
+
+    private volatile Table table = new Table(new char[0], new HuskyMessageHandler[0]);
+    private volatile HuskyMessageHandler defaultHandler;
+
+    /**
+     * Sets the handler for a message type, replacing the previous one if any.
+     */
+    public synchronized void register(char messageType, HuskyMessageHandler handler) {
+        Table current = table;
+        int index = Arrays.binarySearch(current.types, messageType);
+        if (index >= 0) {
+            HuskyMessageHandler[] handlers = current.handlers.clone();
+            handlers[index] = handler;
+            table = new Table(current.types, handlers);
+            return;
+        }
+        int insertion = -index - 1;
+        int size = current.types.length;
+        char[] types = new char[size + 1];
+        HuskyMessageHandler[] handlers = new HuskyMessageHandler[size + 1];
+        System.arraycopy(current.types, 0, types, 0, insertion);
+        System.arraycopy(current.handlers, 0, handlers, 0, insertion);
+        types[insertion] = messageType;
+        handlers[insertion] = handler;
+        System.arraycopy(current.types, insertion, types, insertion + 1, size - insertion);
+        System.arraycopy(current.handlers, insertion, handlers, insertion + 1, size - insertion);
+        table = new Table(types, handlers);
+    }
+
+    public synchronized void unregister(char messageType) {
+        Table current = table;
+        int index = Arrays.binarySearch(current.types, messageType);
+        if (index < 0) {
+            return;
+        }
+        int size = current.types.length;
+        char[] types = new char[size - 1];
+        HuskyMessageHandler[] handlers = new HuskyMessageHandler[size - 1];
+        System.arraycopy(current.types, 0, types, 0, index);
+        System.arraycopy(current.handlers, 0, handlers, 0, index);
+        System.arraycopy(current.types, index + 1, types, index, size - index - 1);
+        System.arraycopy(current.handlers, index + 1, handlers, index, size - index - 1);
+        table = new Table(types, handlers);
+    }
+
+    /**
+     * Sets the handler for messages of types without a registered handler.
+     */
+    public void setDefaultHandler(HuskyMessageHandler handler) {
+        defaultHandler = handler;
+    }
+
+    public void dispatch(HuskyPacket packet) {
+        Table current = table;
+        int index = Arrays.binarySearch(current.types, packet.getMessageType());
+        HuskyMessageHandler handler = index >= 0 ? current.handlers[index] : defaultHandler;
+        if (handler != null) {
+            handler.onMessage(packet);
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package com.ekumen.base_driver.husky;
+
+/**
+ * Handles one type of message received from the Husky.
+ */
+public interface HuskyMessageHandler {
+    /**
+     * Called from the serial reading thread.
+     * @param packet: Reused by the reader. Only valid during the call.
+     */
+    void onMessage(HuskyPacket packet);
+}
@@ -1,9 +1,7 @@
 package com.ekumen.base_driver.husky;
 
 import com.ekumen.base_driver.AbstractOdometryStatus;
-
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import com.ekumen.base_driver.DriverLog;
 
 /**
  * @author jcerruti@creativa77.com (Julian Cerruti)
@@ -13,34 +11,42 @@ public class HuskyOdometryStatus extends AbstractOdometryStatus {
     // TODO: Allow setting (and load from ROS param in node)
     private static final double WIDTH = 0.55;
 
+    private static final DriverLog log = new DriverLog(HuskyOdometryStatus.class);
+    private final DriverLog.Event wrongSizes = log.rateLimited(DriverLog.Level.ERROR, "Wrong size encoder data");
+
     public HuskyOdometryStatus() {
         super(WIDTH);
     }
 
-    public void update(byte[] encoderData) {
-        if(encoderData.length != 13) {
-            throw new RuntimeException("wrong size encoder data = " + encoderData.length);
+    public void update(HuskyPacket encoderData) {
+        update(encoderData, System.currentTimeMillis());
+    }
+
+    /**
+     * @param timestampMs: Time the base read the encoders, in milliseconds since the epoch.
+     */
+    public void update(HuskyPacket encoderData, long timestampMs) {
+        if(encoderData.getPayloadLength() != 13) {
+            wrongSizes.record(encoderData.getPayloadLength());
+            return;
         }
 
         // --------------------------------
-        // Parse buffer into encoder travels and speeds
+        // Parse payload into encoder travels and speeds
         // --------------------------------
-        ByteBuffer buffer = ByteBuffer.wrap(encoderData);
-        buffer.order(ByteOrder.LITTLE_ENDIAN);
-
         // Number of encoders
         // TODO: Verify it's two encoders
-        byte nEncoders = buffer.get();
+        byte nEncoders = encoderData.getPayloadByte(0);
         // Left encoder travel
-        int leftTravel = buffer.getInt(1);
+        int leftTravel = encoderData.getPayloadInt(1);
         // Right encoder travel
-        int rightTravel = buffer.getInt(5);
+        int rightTravel = encoderData.getPayloadInt(5);
         // Left encoder speed
-        short leftSpeed = buffer.getShort(9);
+        short leftSpeed = encoderData.getPayloadShort(9);
         // Right encoder speed
-        short rightSpeed = buffer.getShort(11);
+        short rightSpeed = encoderData.getPayloadShort(11);
 
         // Update the current estimated pose
-        calculateAndUpdate(leftTravel, rightTravel, rightSpeed, leftSpeed);
+        calculateAndUpdate(leftTravel, rightTravel, rightSpeed, leftSpeed, timestampMs);
     }
 }
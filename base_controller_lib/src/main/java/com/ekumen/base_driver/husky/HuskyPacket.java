@@ -2,53 +2,109 @@ package com.ekumen.base_driver.husky;
 
 import org.apache.commons.codec.binary.Hex;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
 /**
+ * A Clearpath protocol message. Instances are reused by {@link HuskyPacketReader} for every
+ * decoded message, so they are only valid during the listener call that receives them.
+ *
+ * Frame layout: SOH | Length | ~Length | Version | Timestamp (4) | Flags | Message type (2) |
+ * STX | Payload | CRC (2). All multi-byte fields are little-endian.
+ *
 * @author jcerruti@creativa77.com (Julian Cerruti)
 */
 public class HuskyPacket {
+    public static final char TYPE_SYSTEM_STATUS = (char)0x8004;
+    public static final char TYPE_POWER_STATUS = (char)0x8005;
+    public static final char TYPE_SAFETY_STATUS = (char)0x8010;
     public static final char TYPE_ENCODER_DATA = (char)0x8800;
     public static final char TYPE_ENCODER_DATA_RAW = (char)0x8801;
+    // Types below this are commands and requests, or acknowledgements of them
+    public static final char TYPE_DATA_MIN = (char)0x8000;
+    // Data of type T is requested with a message of type T - REQUEST_TYPE_OFFSET
+    public static final char REQUEST_TYPE_OFFSET = (char)0x4000;
+
+    static final byte SOH = (byte) 0xAA;
+    static final byte STX = (byte) 0x55;
+    static final int LENGTH_OFFSET = 1;
+    static final int LENGTH_COMPLEMENT_OFFSET = 2;
+    static final int VERSION_OFFSET = 3;
+    static final int TIMESTAMP_OFFSET = 4;
+    static final int FLAGS_OFFSET = 8;
+    static final int MESSAGE_TYPE_OFFSET = 9;
+    static final int STX_OFFSET = 11;
+    static final int PAYLOAD_OFFSET = 12;
+    static final int CRC_SIZE = 2;
+    // The length field counts the bytes following the length complement
+    static final int LENGTH_FIELD_OVERHEAD = 3;
+    static final int MIN_LENGTH = PAYLOAD_OFFSET + CRC_SIZE - LENGTH_FIELD_OVERHEAD;
+    static final int MAX_FRAME_SIZE = 255 + LENGTH_FIELD_OVERHEAD;
 
-    byte soh;
-    byte length;
-    byte lengthComplement;
-    byte version;
-    int timestamp;
-    byte flags;
-    char messageType;
-    byte stx;
-    byte[] payload;
-    char checksum;
+    final byte[] frame = new byte[MAX_FRAME_SIZE];
+    private final ByteBuffer frameBuffer = ByteBuffer.wrap(frame).order(ByteOrder.LITTLE_ENDIAN);
+    int frameLength;
 
     public byte getLength() {
-        return length;
+        return frame[LENGTH_OFFSET];
     }
 
     public int getTimestamp() {
-        return timestamp;
+        return frameBuffer.getInt(TIMESTAMP_OFFSET);
     }
 
     public byte getFlags() {
-        return flags;
+        return frame[FLAGS_OFFSET];
+    }
+
+    public char getMessageType() {
+        return frameBuffer.getChar(MESSAGE_TYPE_OFFSET);
+    }
+
+    public byte getVersion() {
+        return frame[VERSION_OFFSET];
+    }
+
+    public int getPayloadLength() {
+        return frameLength - PAYLOAD_OFFSET - CRC_SIZE;
+    }
+
+    public byte getPayloadByte(int index) {
+        return frame[PAYLOAD_OFFSET + index];
+    }
+
+    public short getPayloadShort(int index) {
+        return frameBuffer.getShort(PAYLOAD_OFFSET + index);
     }
 
+    public int getPayloadInt(int index) {
+        return frameBuffer.getInt(PAYLOAD_OFFSET + index);
+    }
+
+    /**
+     * @return: A copy of the payload. Allocates, meant for debugging.
+     */
     public byte[] getPayload() {
-        return payload;
+        return Arrays.copyOfRange(frame, PAYLOAD_OFFSET, PAYLOAD_OFFSET + getPayloadLength());
     }
 
-    public char getMessageType() {
-        return messageType;
+    /**
+     * @return: The buffer holding the whole frame, starting at the SOH byte.
+     */
+    public byte[] getFrame() {
+        return frame;
     }
 
-    public byte getVersion() {
-        return version;
+    public int getFrameLength() {
+        return frameLength;
     }
 
     @Override
     public String toString() {
         return "HuskyPacket{" +
-            Integer.toHexString(messageType) + ":" +
-            new String(Hex.encodeHex(payload)) +
+            Integer.toHexString(getMessageType()) + ":" +
+            new String(Hex.encodeHex(getPayload())) +
                 '}';
     }
 }
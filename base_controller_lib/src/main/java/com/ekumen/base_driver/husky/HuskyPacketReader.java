@@ -1,144 +1,127 @@
 package com.ekumen.base_driver.husky;
 
+import com.ekumen.base_driver.ByteRingBuffer;
+
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-
 /**
+ * Streaming decoder for the Clearpath protocol. Bytes are accumulated across calls, so
+ * messages split between USB reads are reassembled, and every complete message in a chunk is
+ * decoded. Frames with a bad SOH, length complement, STX or CRC are skipped by resynchronizing
+ * on the next byte.
+ *
  * @author jcerruti@creativa77.com (Julian Cerruti)
  */
 public class HuskyPacketReader {
-    public enum parserState {
-        READY, PARTIAL
-    };
-    private parserState curState;
-    private volatile byte[] stored;
-    private int storedSize;
 
-    private int storedIndex;
-    private HuskyPacket parsedPacket;
+    /**
+     * Receives every decoded packet, in order. The packet is reused for the next one.
+     */
+    public interface PacketListener {
+        void onPacket(HuskyPacket packet);
+    }
+
+    // Bytes received but not yet decoded. Fits several maximum-sized frames.
+    private final ByteRingBuffer ring = new ByteRingBuffer(1024);
+    private final HuskyPacket packet = new HuskyPacket();
+    private PacketListener packetListener;
+
+    private long packetCount = 0;
+    private long checksumErrors = 0;
+    private long framingErrors = 0;
 
     private static final Log log = LogFactory.getLog(HuskyPacketReader.class);
 
     public HuskyPacketReader() {
-        curState = parserState.READY;
+    }
 
-        stored = new byte[500]; // Should be big enough for the biggest packets
-        storedSize = 0;
-        storedIndex = 0;
+    public void setPacketListener(PacketListener listener) {
+        packetListener = listener;
     }
 
     /**
-     * Parses incoming bytes into HuskyPacket objects
-     * @return <code>null</code> if the packet is incomplete
+     * Parses incoming bytes, calling the packet listener for every complete packet.
+     * Incomplete packets are kept until the rest of their bytes arrive.
+     * @return: The number of packets decoded.
      */
-    public HuskyPacket parse(ByteBuffer buffer) throws HuskyParserException {
+    public int parse(byte[] data, int offset, int length) {
         // Samples:
         //  aa0df2000c030000000402550800de8f  (echo:out of range)
         //  aa0df20008040000000402550100d829
         //  aa0df200f7 | 030000000402550800ef4f (split message)
         //  aa0d | f200 d310 0000 0004 0255 0000 c42c
-
-        int bufferSize = buffer.array().length;
-        if(curState == parserState.READY) {
-            // Initialize a new buffer copy
-            buffer.get(stored, 0, bufferSize);
-            storedSize = bufferSize;
-            parsedPacket = new HuskyPacket();
-        } else {
-            // Add to the previous buffer and keep parsing
-            buffer.get(stored, storedSize, bufferSize);
-            storedSize += bufferSize;
+        int decoded = 0;
+        int consumed = 0;
+        while(consumed < length) {
+            consumed += ring.write(data, offset + consumed, length - consumed);
+            decoded += decodePackets();
         }
+        return decoded;
+    }
 
-        ByteBuffer bufferParse = ByteBuffer.wrap(stored);
-        bufferParse.order(ByteOrder.LITTLE_ENDIAN);
-        curState = parserState.PARTIAL;
-main:   while(storedIndex < storedSize) {
-            switch(storedIndex) {
-                case 0:     // SOH
-                    log.debug("Parsing SOH");
-                    parsedPacket.soh = bufferParse.get(storedIndex);
-                    if(parsedPacket.soh != (byte)0xAA) {
-                        // Reset state so that we can wait until the correct packet start.
-                        storedSize = 0;
-                        storedIndex = 0;
-                        curState = parserState.READY;
-                        throw new HuskyParserException("SOH byte doesn't match: " + parsedPacket.soh);
-                    }
-                    storedIndex += 1;
-                    break;
-                case 1:     // length
-                    log.debug("Parsing length");
-                    parsedPacket.length = bufferParse.get(storedIndex);
-                    storedIndex += 1;
-                    break;
-                case 2:     // length complement
-                    log.debug("Parsing length complement");
-                    parsedPacket.lengthComplement = bufferParse.get(storedIndex);
-                    // TODO: Verify complement against length
-                    storedIndex += 1;
-                    break;
-                case 3:     // version
-                    log.debug("Parsing version");
-                    parsedPacket.version = bufferParse.get(storedIndex);
-                    // TODO: Verify version
-                    storedIndex += 1;
-                    break;
-                case 4:     // timestamp
-                    log.debug("Parsing timestamp");
-                    // Make sure we have enough data to parse this otherwise skip
-                    if(storedSize - storedIndex < 4) {
-                        break main;
-                    }
-                    parsedPacket.timestamp = bufferParse.getInt(storedIndex);
-                    storedIndex += 4;
-                    break;
-                case 8:     // flags
-                    log.debug("Parsing flags");
-                    parsedPacket.flags = bufferParse.get(storedIndex);
-                    storedIndex += 1;
-                    break;
-                case 9:     // message type
-                    log.debug("Parsing message type");
-                    parsedPacket.messageType = bufferParse.getChar(storedIndex);
-                    if(storedSize - storedIndex < 2) {
-                        break main;
-                    }
-                    storedIndex += 2;
-                    break;
-                case 11:     // stx
-                    log.debug("Parsing STX");
-                    parsedPacket.stx = bufferParse.get(storedIndex);
-                    if(parsedPacket.stx != (byte)0x55) {
-                        throw new HuskyParserException("STX byte doesn't match: " + parsedPacket.stx);
-                    }
-                    storedIndex += 1;
-                    break;
-                case 12:     // payload and CRC
-                    log.debug("Parsing payload and CRC");
-                    int payloadAndCrcLength = parsedPacket.length - 9;
-                    if(storedSize - storedIndex < payloadAndCrcLength) {
-                        break main;
-                    }
-                    parsedPacket.payload = new byte[payloadAndCrcLength - 2];
-                    System.arraycopy(stored, 12, parsedPacket.payload, 0, parsedPacket.payload.length);
-                    bufferParse.getChar(storedIndex + parsedPacket.payload.length);
-                    // TODO: Verify checksum
-                    storedIndex = 0;
-                    curState = parserState.READY;
-                    break main;
+    private int decodePackets() {
+        int decoded = 0;
+        while(ring.available() > HuskyPacket.LENGTH_COMPLEMENT_OFFSET) {
+            int length = ring.peekUnsigned(HuskyPacket.LENGTH_OFFSET);
+            if(ring.peek(0) != HuskyPacket.SOH
+                    || (length ^ 0xFF) != ring.peekUnsigned(HuskyPacket.LENGTH_COMPLEMENT_OFFSET)
+                    || length < HuskyPacket.MIN_LENGTH) {
+                // Not the start of a packet, resync on the next byte
+                framingErrors++;
+                ring.skip(1);
+                continue;
             }
-        }
 
-        if(curState == parserState.READY) {
-            return parsedPacket;
-        } else {
-            return null;
+            int frameLength = length + HuskyPacket.LENGTH_FIELD_OVERHEAD;
+            if(ring.available() < frameLength) {
+                break; // Wait for the rest of the packet
+            }
+            if(ring.peek(HuskyPacket.STX_OFFSET) != HuskyPacket.STX) {
+                framingErrors++;
+                ring.skip(1);
+                continue;
+            }
+
+            byte[] frame = packet.frame;
+            ring.copyTo(0, frame, 0, frameLength);
+            int crcOffset = frameLength - HuskyPacket.CRC_SIZE;
+            char checksum = HuskyBaseUtils.checkSum(frame, 0, crcOffset);
+            char received = (char) ((frame[crcOffset] & 0xFF) | ((frame[crcOffset + 1] & 0xFF) << 8));
+            if(checksum != received) {
+                checksumErrors++;
+                ring.skip(1);
+                continue;
+            }
+
+            ring.skip(frameLength);
+            packet.frameLength = frameLength;
+            packetCount++;
+            decoded++;
+            if(packetListener != null) {
+                packetListener.onPacket(packet);
+            }
         }
+        return decoded;
+    }
+
+    public long getPacketCount() {
+        return packetCount;
+    }
+
+    /**
+     * @return: Number of times a frame with a matching header was dropped because of its CRC.
+     */
+    public long getChecksumErrorCount() {
+        return checksumErrors;
+    }
+
+    /**
+     * @return: Number of bytes skipped while looking for the start of a packet.
+     */
+    public long getFramingErrorCount() {
+        return framingErrors;
     }
 
     /**
@@ -146,16 +129,26 @@ main:   while(storedIndex < storedSize) {
      */
     public static void main(String args[]) throws java.lang.Exception {
         HuskyPacketReader reader = new HuskyPacketReader();
+        reader.setPacketListener(new PacketListener() {
+            @Override
+            public void onPacket(HuskyPacket packet) {
+                System.out.println("Packet = " + packet);
+            }
+        });
 
         // Try parsing entire packet in one shot (most common method)
-        HuskyPacket packet = tryParse(reader, "aa0df2000c030000000402550800de8f");
-        System.out.println("Packet = " + packet);
+        System.out.println("Parsed " + tryParse(reader, "aa0df2000c030000000402550800de8f"));
 
         // Try parsing packet in two passes
-        System.out.println("Packet 1/2 = " + tryParse(reader, "aa0df200f7"));
-        System.out.println("Packet 1/2 = " + tryParse(reader, "030000000402550800ef4f"));
+        System.out.println("Parsed 1/2 " + tryParse(reader, "aa0df200f7"));
+        System.out.println("Parsed 2/2 " + tryParse(reader, "030000000402550800ef4f"));
+
+        // Try parsing two packets in one pass
+        System.out.println("Parsed " + tryParse(reader,
+                "aa0df2000c030000000402550800de8faa0df20008040000000402550100d829"));
     }
-    private static HuskyPacket tryParse(HuskyPacketReader reader, String hexArrayString) throws java.lang.Exception {
-        return reader.parse(ByteBuffer.wrap(Hex.decodeHex(hexArrayString.toCharArray())));
+    private static int tryParse(HuskyPacketReader reader, String hexArrayString) throws java.lang.Exception {
+        byte[] data = Hex.decodeHex(hexArrayString.toCharArray());
+        return reader.parse(data, 0, data.length);
     }
 }
@@ -0,0 +1,64 @@
+package com.ekumen.base_driver.husky;
+
+/**
+ * Power system status message (0x8005): charge and capacity of each battery.
+ * Decoded in place from the serial thread and reused.
+ */
+public class HuskyPowerStatus {
+    private static final int MAX_BATTERIES = 4;
+
+    // Bits of the battery description
+    public static final int BATTERY_PRESENT = 0x80;
+    public static final int BATTERY_IN_USE = 0x40;
+    public static final int BATTERY_TYPE_MASK = 0x0F;
+
+    private int batteryCount;
+    private final double[] chargeEstimates = new double[MAX_BATTERIES];
+    private final int[] capacityEstimates = new int[MAX_BATTERIES];
+    private final int[] descriptions = new int[MAX_BATTERIES];
+
+    /**
+     * Payload: battery count n (u8) | charge estimates (n x s16, fraction x 1000) |
+     * capacity estimates (n x s16, Wh) | descriptions (n x u8).
+     * @return: <code>false</code> if the payload is malformed.
+     */
+    boolean decode(HuskyPacket packet) {
+        int length = packet.getPayloadLength();
+        if (length < 1) {
+            return false;
+        }
+        int count = packet.getPayloadByte(0) & 0xFF;
+        if (length < 1 + 5 * count) {
+            return false;
+        }
+        batteryCount = Math.min(count, MAX_BATTERIES);
+        for (int i = 0; i < batteryCount; i++) {
+            chargeEstimates[i] = packet.getPayloadShort(1 + 2 * i) / 1000.0;
+            capacityEstimates[i] = packet.getPayloadShort(1 + 2 * count + 2 * i);
+            descriptions[i] = packet.getPayloadByte(1 + 4 * count + i) & 0xFF;
+        }
+        return true;
+    }
+
+    public int getBatteryCount() {
+        return batteryCount;
+    }
+
+    /**
+     * @return: Estimated charge, from 0 (empty) to 1 (full).
+     */
+    public double getChargeEstimate(int battery) {
+        return chargeEstimates[battery];
+    }
+
+    /**
+     * @return: Estimated capacity in Wh.
+     */
+    public int getCapacityEstimate(int battery) {
+        return capacityEstimates[battery];
+    }
+
+    public int getDescription(int battery) {
+        return descriptions[battery];
+    }
+}
@@ -0,0 +1,31 @@
+package com.ekumen.base_driver.husky;
+
+/**
+ * Safety system status message (0x8010). Decoded in place from the serial thread and reused.
+ */
+public class HuskySafetyStatus {
+    // Bit of the flags set while the emergency stop is engaged
+    public static final int FLAG_EMERGENCY_STOP = 0x0008;
+
+    private volatile int flags;
+
+    /**
+     * Payload: flags (u16).
+     * @return: <code>false</code> if the payload is malformed.
+     */
+    boolean decode(HuskyPacket packet) {
+        if (packet.getPayloadLength() < 2) {
+            return false;
+        }
+        flags = packet.getPayloadShort(0) & 0xFFFF;
+        return true;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public boolean isEmergencyStopped() {
+        return (flags & FLAG_EMERGENCY_STOP) != 0;
+    }
+}
@@ -0,0 +1,99 @@
+package com.ekumen.base_driver.husky;
+
+/**
+ * System status message (0x8004): uptime and the voltages, currents and temperatures
+ * measured by the base. Decoded in place from the serial thread and reused.
+ */
+public class HuskySystemStatus {
+    // Enough for every measurement the Husky reports
+    private static final int MAX_MEASUREMENTS = 8;
+
+    private long uptimeMs;
+    private int voltageCount;
+    private int currentCount;
+    private int temperatureCount;
+    private final double[] voltages = new double[MAX_MEASUREMENTS];
+    private final double[] currents = new double[MAX_MEASUREMENTS];
+    private final double[] temperatures = new double[MAX_MEASUREMENTS];
+
+    /**
+     * Payload: uptime (u32, ms) | voltage count (u8) | voltages (s16, V x 100) |
+     * current count (u8) | currents (s16, A x 100) | temperature count (u8) |
+     * temperatures (s16, degrees C x 100).
+     * @return: <code>false</code> if the payload is malformed.
+     */
+    boolean decode(HuskyPacket packet) {
+        int length = packet.getPayloadLength();
+        int voltagesAt = 4;
+        int currentsAt = skipMeasurements(packet, voltagesAt, length);
+        int temperaturesAt = skipMeasurements(packet, currentsAt, length);
+        if (skipMeasurements(packet, temperaturesAt, length) < 0) {
+            return false;
+        }
+        uptimeMs = packet.getPayloadInt(0) & 0xFFFFFFFFL;
+        voltageCount = readMeasurements(packet, voltagesAt, voltages);
+        currentCount = readMeasurements(packet, currentsAt, currents);
+        temperatureCount = readMeasurements(packet, temperaturesAt, temperatures);
+        return true;
+    }
+
+    /**
+     * @return: The index after a count byte and its values, or -1 if they don't fit in the
+     * payload.
+     */
+    private static int skipMeasurements(HuskyPacket packet, int index, int length) {
+        if (index < 0 || index >= length) {
+            return -1;
+        }
+        int end = index + 1 + 2 * (packet.getPayloadByte(index) & 0xFF);
+        return end <= length ? end : -1;
+    }
+
+    /**
+     * @return: Number of values kept, which is capped by the size of the array.
+     */
+    private static int readMeasurements(HuskyPacket packet, int index, double[] values) {
+        int count = Math.min(packet.getPayloadByte(index) & 0xFF, values.length);
+        for (int i = 0; i < count; i++) {
+            values[i] = packet.getPayloadShort(index + 1 + 2 * i) / 100.0;
+        }
+        return count;
+    }
+
+    public long getUptimeMs() {
+        return uptimeMs;
+    }
+
+    public int getVoltageCount() {
+        return voltageCount;
+    }
+
+    /**
+     * @return: Voltage in V. On the Husky, 0 is the battery and 1 and 2 the motor drivers.
+     */
+    public double getVoltage(int index) {
+        return voltages[index];
+    }
+
+    public int getCurrentCount() {
+        return currentCount;
+    }
+
+    /**
+     * @return: Current in A.
+     */
+    public double getCurrent(int index) {
+        return currents[index];
+    }
+
+    public int getTemperatureCount() {
+        return temperatureCount;
+    }
+
+    /**
+     * @return: Temperature in degrees Celsius.
+     */
+    public double getTemperature(int index) {
+        return temperatures[index];
+    }
+}
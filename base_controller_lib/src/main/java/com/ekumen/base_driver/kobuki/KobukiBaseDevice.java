@@ -24,18 +24,14 @@ import android.hardware.usb.UsbDeviceConnection;
 
 import com.ekumen.base_driver.AbstractBaseDevice;
 import com.ekumen.base_driver.BaseStatus;
+import com.ekumen.base_driver.DeviceClockSync;
+import com.ekumen.base_driver.DriverLog;
+import com.ekumen.base_driver.InertialInformation;
 import com.ekumen.base_driver.OdometryStatus;
+import com.ekumen.base_driver.RawFrameListener;
 import com.hoho.android.usbserial.driver.UsbSerialPort;
-import com.hoho.android.usbserial.util.SerialInputOutputManager;
 
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
-import org.ros.exception.RosRuntimeException;
-
-import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 public class KobukiBaseDevice extends AbstractBaseDevice {
 
@@ -50,48 +46,81 @@ public class KobukiBaseDevice extends AbstractBaseDevice {
     private final KobukiPacketParser packetParser = new KobukiPacketParser();
     private BaseStatus baseStatus = new BaseStatus();
     private KobukiOdometryStatus odometryStatus = new KobukiOdometryStatus();
-
-    private static final Log log = LogFactory.getLog(KobukiBaseDevice.class);
-
-    private class BaseSpeedValues {
-        private final int linearSpeed;
-        private final int rotationRadius;
-
-        private BaseSpeedValues(int linearSpeed, int rotationRadius) {
-            this.linearSpeed = linearSpeed;
-            this.rotationRadius = rotationRadius;
-        }
-
-        public int getLinearSpeed() {
-            return linearSpeed;
-        }
-
-        public int getRotationRadius() {
-            return rotationRadius;
-        }
-    }
+    private final InertialInformation inertialInformation = new InertialInformation();
+    // Arrival time of the chunk being decoded
+    private long receivedTimeMs;
+    private long receivedNanos;
+    private final DeviceClockSync clockSync = new DeviceClockSync(16);
+
+    private static final DriverLog log = new DriverLog(KobukiBaseDevice.class);
+    private final DriverLog.Event writtenCommands =
+            log.rateLimited(DriverLog.Level.DEBUG, "Writing commands to USB Device");
+    private final DriverLog.Event droppedCommands =
+            log.rateLimited(DriverLog.Level.ERROR, "Command queue full, command dropped");
+
+    // Base control command, encoded in place. Re-encoded only when the speeds change, since
+    // the same twist is usually sent over and over.
+    private static final int BASE_CONTROL_PAYLOAD_SIZE = 6;
+    private final byte[] baseControlFrame = new byte[BASE_CONTROL_PAYLOAD_SIZE + 4];
+    private boolean baseControlEncoded = false;
+    private int encodedSpeed;
+    private int encodedRadius;
+    // Output of twistToBase
+    private int commandSpeed;
+    private int commandRadius;
 
     public KobukiBaseDevice(UsbSerialPort usbSerialPort, UsbDeviceConnection usbDeviceConnection) throws Exception {
-        super(usbSerialPort, usbDeviceConnection);
-
-        final ExecutorService executorService = Executors.newSingleThreadExecutor();
-
-        SerialInputOutputManager serialInputOutputManager;
-
-        final SerialInputOutputManager.Listener listener =
-            new SerialInputOutputManager.Listener() {
-                @Override
-                public void onRunError(Exception e) {
-                }
+        this(usbSerialPort, usbDeviceConnection, null);
+    }
 
+    /**
+     * @param ioExecutor: Runs the reading and writing loops of the device. If <code>null</code>,
+     *                  the device creates its own.
+     */
+    public KobukiBaseDevice(UsbSerialPort usbSerialPort, UsbDeviceConnection usbDeviceConnection,
+                            ExecutorService ioExecutor) throws Exception {
+        super(usbSerialPort, usbDeviceConnection, ioExecutor);
+        try {
+            // Every basic sensor frame decoded from a chunk goes through the parser and odometry,
+            // in the order the base sent them
+            packetReader.addListener(KobukiFeedback.BASIC_SENSOR_DATA,
+                new KobukiFeedbackListener<KobukiFeedback.BasicSensorData>() {
+                    @Override
+                    public void onFeedback(KobukiFeedback.BasicSensorData sensorData) {
+                        baseStatus = packetParser.parseBaseStatus(sensorData);
+                        baseStatus.setMeasuredTime(DeviceClockSync.toWallMillis(
+                                clockSync.toHostNanos(sensorData.getTimestamp(), receivedNanos)));
+                        odometryStatus.update(baseStatus);
+                        notifyOdometryListeners(odometryStatus);
+                        notifyBaseStatusListeners(baseStatus);
+                    }
+                });
+            packetReader.addListener(KobukiFeedback.INERTIAL_SENSOR_DATA,
+                new KobukiFeedbackListener<KobukiFeedback.InertialSensorData>() {
+                    @Override
+                    public void onFeedback(KobukiFeedback.InertialSensorData inertialData) {
+                        if (inertialListeners.isEmpty()) {
+                            return;
+                        }
+                        packetParser.parseInertialInformation(inertialData, inertialInformation);
+                        inertialInformation.setTimestamp(receivedTimeMs);
+                        notifyInertialListeners(inertialInformation);
+                    }
+                });
+
+            packetReader.setFrameListener(new RawFrameListener() {
                 @Override
-                public void onNewData(final byte[] data) {
-                    KobukiBaseDevice.this.updateReceivedData(data);
+                public void onRawFrame(byte[] frame, int length) {
+                    notifyRawFrameListeners(frame, length);
                 }
-            };
+            });
 
-        serialInputOutputManager = new SerialInputOutputManager(port, listener);
-        executorService.submit(serialInputOutputManager);
+            startReceiving();
+        } catch (Exception e) {
+            // Releases the port, and the I/O threads if they were started
+            close();
+            throw e;
+        }
     }
 
     @Override
@@ -109,11 +138,48 @@ public class KobukiBaseDevice extends AbstractBaseDevice {
         return odometryStatus;
     }
 
-    private void updateReceivedData(final byte[] bytes) {
-        int readBytes = bytes.length;
-        packetReader.newPacket(ByteBuffer.allocateDirect(readBytes).put(bytes, 0, readBytes));
-        baseStatus = packetParser.parseBaseStatus(packetReader.getSensorPacket());
-        odometryStatus.update(baseStatus);
+    /**
+     * @return: The mapping of the base's sample timestamps to the host clock.
+     */
+    public DeviceClockSync getClockSync() {
+        return clockSync;
+    }
+
+    /**
+     * @return: Number of feedback samples lost before reaching the odometry, either because
+     * the base skipped them or because their frame was corrupted.
+     */
+    public long getDroppedSampleCount() {
+        return odometryStatus.getDroppedSampleCount() + packetReader.getChecksumErrorCount();
+    }
+
+    /**
+     * @return: Number of repeated feedback samples merged into a previous one.
+     */
+    public long getMergedSampleCount() {
+        return odometryStatus.getMergedSampleCount();
+    }
+
+    /**
+     * Subscribes to a type of feedback sub-payload. Only subscribed types are decoded.
+     * Listeners are called from the serial reading thread.
+     */
+    public <T extends KobukiFeedback.SubPayload> void addFeedbackListener(
+            KobukiFeedback.Type<T> type, KobukiFeedbackListener<? super T> listener) {
+        packetReader.addListener(type, listener);
+    }
+
+    public <T extends KobukiFeedback.SubPayload> void removeFeedbackListener(
+            KobukiFeedback.Type<T> type, KobukiFeedbackListener<? super T> listener) {
+        packetReader.removeListener(type, listener);
+    }
+
+    @Override
+    protected void updateReceivedData(final byte[] bytes, int length) {
+        receivedTimeMs = System.currentTimeMillis();
+        receivedNanos = System.nanoTime();
+        // Decoded sub-payloads are handed to their listeners one at a time
+        packetReader.newPacket(bytes, 0, length);
     }
 
     public void initialize() {
@@ -122,11 +188,17 @@ public class KobukiBaseDevice extends AbstractBaseDevice {
     }
 
     public void move(double linearVelX, double angVelZ) {
-        BaseSpeedValues speeds = twistToBase(linearVelX, angVelZ);
-        sendMovementPackage(speeds);
+        synchronized (baseControlFrame) {
+            twistToBase(linearVelX, angVelZ);
+            sendMovementPackage(commandSpeed, commandRadius);
+        }
     }
 
-    private BaseSpeedValues twistToBase(double linearVelX, double angVelZ) {
+    /**
+     * Converts a twist to the speed and radius of the base control command, left in
+     * commandSpeed and commandRadius
+     */
+    private void twistToBase(double linearVelX, double angVelZ) {
         // vx: in m/s
         // wz: in rad/s
         final double epsilon = 0.0001;
@@ -138,7 +210,9 @@ public class KobukiBaseDevice extends AbstractBaseDevice {
         if (Math.abs(angVelZ) < epsilon) {
             radius = 0.0f;
             speed = 1000.0f * linearVelX;
-            return new BaseSpeedValues((int) speed, (int) radius);
+            commandSpeed = (int) speed;
+            commandRadius = (int) radius;
+            return;
         }
 
         radius = linearVelX * 1000.0f / angVelZ;
@@ -146,7 +220,9 @@ public class KobukiBaseDevice extends AbstractBaseDevice {
         if (Math.abs(linearVelX) < epsilon || Math.abs(radius) <= 1.0f) {
             speed = 1000.0f * bias * angVelZ / 2.0f;
             radius = 1.0f;
-            return new BaseSpeedValues((int) speed, (int) radius);
+            commandSpeed = (int) speed;
+            commandRadius = (int) radius;
+            return;
         }
 
         // General Case :
@@ -155,23 +231,36 @@ public class KobukiBaseDevice extends AbstractBaseDevice {
         } else {
             speed = (radius - 1000.0f * bias / 2.0f) * angVelZ;
         }
-        return new BaseSpeedValues((int) speed, (int) radius);
+        commandSpeed = (int) speed;
+        commandRadius = (int) radius;
     }
 
-    private void sendMovementPackage(BaseSpeedValues speeds) {
-        int linearSpeed = speeds.getLinearSpeed();
-        int rotationRadius = speeds.getRotationRadius();
-
-        byte[] baseControlMsg = new byte[]{
-                BaseControl,
-                (byte) 0x04,
-                (byte) linearSpeed,
-                (byte) (linearSpeed >> 8),
-                (byte) rotationRadius,
-                (byte) (rotationRadius >> 8),
-        };
+    private void sendMovementPackage(int linearSpeed, int rotationRadius) {
+        if (!baseControlEncoded || linearSpeed != encodedSpeed || rotationRadius != encodedRadius) {
+            encodeBaseControl(linearSpeed, rotationRadius, baseControlFrame);
+            encodedSpeed = linearSpeed;
+            encodedRadius = rotationRadius;
+            baseControlEncoded = true;
+        }
+        // Copied by the writer, so the frame can be reused right away
+        getCommandWriter().writeVelocity(baseControlFrame);
+    }
 
-        write(buildPackage(baseControlMsg));
+    /**
+     * Encodes a complete base control frame into the given buffer, which must have room for
+     * 10 bytes.
+     */
+    void encodeBaseControl(int linearSpeed, int rotationRadius, byte[] frame) {
+        frame[0] = Header0;
+        frame[1] = Header1;
+        frame[2] = (byte) BASE_CONTROL_PAYLOAD_SIZE;
+        frame[3] = BaseControl;
+        frame[4] = (byte) 0x04;
+        frame[5] = (byte) linearSpeed;
+        frame[6] = (byte) (linearSpeed >> 8);
+        frame[7] = (byte) rotationRadius;
+        frame[8] = (byte) (rotationRadius >> 8);
+        frame[9] = checkSum(frame);
     }
 
     private void sendSoundPackage(int sound) {
@@ -208,11 +297,9 @@ public class KobukiBaseDevice extends AbstractBaseDevice {
     }
 
     private void write(byte[] command) {
-        try {
-            log.info("Writing a command to USB Device.");
-            port.write(command, 1000);
-        } catch (IOException e) {
-            throw new RosRuntimeException(e);
+        writtenCommands.record();
+        if (!getCommandWriter().write(command)) {
+            droppedCommands.record();
         }
     }
 }
\ No newline at end of file
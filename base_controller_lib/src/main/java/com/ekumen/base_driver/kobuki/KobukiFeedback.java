@@ -0,0 +1,387 @@
+/*
+ * Copyright 2017 Ekumen, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ekumen.base_driver.kobuki;
+
+/**
+ * Typed views over the sub-payloads of a Kobuki feedback frame, as documented in the
+ * Kobuki protocol specification. Views are flyweights: they read straight from the frame
+ * buffer of the {@link KobukiPacketReader} and are reused for every frame, so they are only
+ * valid during the {@link KobukiFeedbackListener} call that receives them.
+ */
+public final class KobukiFeedback {
+
+    public static final Type<BasicSensorData> BASIC_SENSOR_DATA = new Type<BasicSensorData>(1, 15) {
+        @Override
+        BasicSensorData newView() {
+            return new BasicSensorData();
+        }
+    };
+    public static final Type<DockingIr> DOCKING_IR = new Type<DockingIr>(3, 3) {
+        @Override
+        DockingIr newView() {
+            return new DockingIr();
+        }
+    };
+    public static final Type<InertialSensorData> INERTIAL_SENSOR_DATA = new Type<InertialSensorData>(4, 4) {
+        @Override
+        InertialSensorData newView() {
+            return new InertialSensorData();
+        }
+    };
+    public static final Type<Cliff> CLIFF = new Type<Cliff>(5, 6) {
+        @Override
+        Cliff newView() {
+            return new Cliff();
+        }
+    };
+    public static final Type<Current> CURRENT = new Type<Current>(6, 2) {
+        @Override
+        Current newView() {
+            return new Current();
+        }
+    };
+    public static final Type<Version> HARDWARE_VERSION = new Type<Version>(10, 3) {
+        @Override
+        Version newView() {
+            return new Version();
+        }
+    };
+    public static final Type<Version> FIRMWARE_VERSION = new Type<Version>(11, 3) {
+        @Override
+        Version newView() {
+            return new Version();
+        }
+    };
+    public static final Type<RawGyroData> RAW_GYRO_DATA = new Type<RawGyroData>(13, 2) {
+        @Override
+        RawGyroData newView() {
+            return new RawGyroData();
+        }
+    };
+    public static final Type<GeneralPurposeInput> GENERAL_PURPOSE_INPUT = new Type<GeneralPurposeInput>(16, 10) {
+        @Override
+        GeneralPurposeInput newView() {
+            return new GeneralPurposeInput();
+        }
+    };
+    public static final Type<UniqueDeviceId> UNIQUE_DEVICE_ID = new Type<UniqueDeviceId>(19, 12) {
+        @Override
+        UniqueDeviceId newView() {
+            return new UniqueDeviceId();
+        }
+    };
+    public static final Type<ControllerInfo> CONTROLLER_INFO = new Type<ControllerInfo>(21, 13) {
+        @Override
+        ControllerInfo newView() {
+            return new ControllerInfo();
+        }
+    };
+
+    private KobukiFeedback() {
+    }
+
+    /**
+     * Identifies a sub-payload by its header id and knows which view decodes it.
+     */
+    public static abstract class Type<T extends SubPayload> {
+        private final int id;
+        private final int minLength;
+
+        private Type(int id, int minLength) {
+            this.id = id;
+            this.minLength = minLength;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        /**
+         * @return: Number of data bytes the view reads. Shorter sub-payloads are discarded.
+         */
+        int getMinLength() {
+            return minLength;
+        }
+
+        abstract T newView();
+    }
+
+    /**
+     * Base flyweight: a window over the data bytes of one sub-payload (without its header
+     * and length bytes). All multi-byte fields are little-endian.
+     */
+    public static abstract class SubPayload {
+        private byte[] buffer;
+        private int offset;
+        private int length;
+
+        void wrap(byte[] buffer, int offset, int length) {
+            this.buffer = buffer;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * @return: Number of data bytes in the sub-payload.
+         */
+        public int getLength() {
+            return length;
+        }
+
+        protected int u8(int index) {
+            return buffer[offset + index] & 0xFF;
+        }
+
+        protected int s8(int index) {
+            return buffer[offset + index];
+        }
+
+        protected int u16(int index) {
+            return (buffer[offset + index] & 0xFF) | ((buffer[offset + index + 1] & 0xFF) << 8);
+        }
+
+        protected short s16(int index) {
+            return (short) u16(index);
+        }
+
+        protected long u32(int index) {
+            return (u16(index) | ((long) u16(index + 2) << 16));
+        }
+    }
+
+    /**
+     * Sub-payload 1, sent at 50 Hz.
+     */
+    public static final class BasicSensorData extends SubPayload {
+        /** @return: Milliseconds, wraps around at 65535. */
+        public int getTimestamp() {
+            return u16(0);
+        }
+
+        public int getBumper() {
+            return u8(2);
+        }
+
+        public int getWheelDrop() {
+            return u8(3);
+        }
+
+        public int getCliff() {
+            return u8(4);
+        }
+
+        /** @return: Accumulated encoder ticks, wraps around at 65535. */
+        public int getLeftEncoder() {
+            return u16(5);
+        }
+
+        /** @return: Accumulated encoder ticks, wraps around at 65535. */
+        public int getRightEncoder() {
+            return u16(7);
+        }
+
+        public int getLeftPwm() {
+            return s8(9);
+        }
+
+        public int getRightPwm() {
+            return s8(10);
+        }
+
+        public int getButton() {
+            return u8(11);
+        }
+
+        public int getCharger() {
+            return u8(12);
+        }
+
+        /** @return: Battery voltage in 0.1 V. */
+        public int getBattery() {
+            return u8(13);
+        }
+
+        public int getOvercurrentFlags() {
+            return u8(14);
+        }
+    }
+
+    /**
+     * Sub-payload 3: signals seen by the docking IR receivers.
+     */
+    public static final class DockingIr extends SubPayload {
+        public int getRightSignal() {
+            return u8(0);
+        }
+
+        public int getCentralSignal() {
+            return u8(1);
+        }
+
+        public int getLeftSignal() {
+            return u8(2);
+        }
+    }
+
+    /**
+     * Sub-payload 4: calibrated heading from the on-board gyro.
+     */
+    public static final class InertialSensorData extends SubPayload {
+        /** @return: Heading in hundredths of a degree. */
+        public short getAngle() {
+            return s16(0);
+        }
+
+        /** @return: Angular velocity in hundredths of a degree per second. */
+        public short getAngleRate() {
+            return s16(2);
+        }
+    }
+
+    /**
+     * Sub-payload 5: raw ADC readings of the cliff sensors.
+     */
+    public static final class Cliff extends SubPayload {
+        public int getRightSensor() {
+            return u16(0);
+        }
+
+        public int getCentralSensor() {
+            return u16(2);
+        }
+
+        public int getLeftSensor() {
+            return u16(4);
+        }
+    }
+
+    /**
+     * Sub-payload 6: wheel motor currents.
+     */
+    public static final class Current extends SubPayload {
+        /** @return: Current in 10 mA. */
+        public int getLeftMotor() {
+            return u8(0);
+        }
+
+        /** @return: Current in 10 mA. */
+        public int getRightMotor() {
+            return u8(1);
+        }
+    }
+
+    /**
+     * Sub-payloads 10 (hardware) and 11 (firmware), sent in response to a version request.
+     */
+    public static final class Version extends SubPayload {
+        public int getPatch() {
+            return u8(0);
+        }
+
+        public int getMinor() {
+            return u8(1);
+        }
+
+        public int getMajor() {
+            return u8(2);
+        }
+    }
+
+    /**
+     * Sub-payload 13: raw samples of the 3-axis gyro, taken at 1 kHz and sent in batches.
+     */
+    public static final class RawGyroData extends SubPayload {
+        /** Scale of the raw readings in degrees per second per digit. */
+        public static final double DEGREES_PER_SECOND_PER_DIGIT = 0.00875;
+
+        public int getFrameId() {
+            return u8(0);
+        }
+
+        public int getSampleCount() {
+            return Math.min(u8(1) / 3, (getLength() - 2) / 6);
+        }
+
+        public short getX(int sample) {
+            return s16(2 + sample * 6);
+        }
+
+        public short getY(int sample) {
+            return s16(4 + sample * 6);
+        }
+
+        public short getZ(int sample) {
+            return s16(6 + sample * 6);
+        }
+    }
+
+    /**
+     * Sub-payload 16: state of the digital and analog inputs of the expansion port.
+     */
+    public static final class GeneralPurposeInput extends SubPayload {
+        public int getDigitalInput() {
+            return u16(0);
+        }
+
+        /** @return: 12 bit ADC reading of the given analog channel (0 to 3). */
+        public int getAnalogInput(int channel) {
+            return u16(2 + channel * 2);
+        }
+    }
+
+    /**
+     * Sub-payload 19: unique identifier of the base, sent in response to a request.
+     */
+    public static final class UniqueDeviceId extends SubPayload {
+        public long getUdid0() {
+            return u32(0);
+        }
+
+        public long getUdid1() {
+            return u32(4);
+        }
+
+        public long getUdid2() {
+            return u32(8);
+        }
+    }
+
+    /**
+     * Sub-payload 21: wheel controller gains, sent in response to a request.
+     */
+    public static final class ControllerInfo extends SubPayload {
+        /** @return: 0 for the factory default gains, 1 for user configured ones. */
+        public int getType() {
+            return u8(0);
+        }
+
+        /** @return: Proportional gain multiplied by 1000. */
+        public long getProportionalGain() {
+            return u32(1);
+        }
+
+        /** @return: Integral gain multiplied by 1000. */
+        public long getIntegralGain() {
+            return u32(5);
+        }
+
+        /** @return: Derivative gain multiplied by 1000. */
+        public long getDerivativeGain() {
+            return u32(9);
+        }
+    }
+}
@@ -11,7 +11,12 @@ import org.apache.commons.logging.LogFactory;
  */
 public class KobukiOdometryStatus extends AbstractOdometryStatus {
     private short lastTimestamp;
+    private boolean haveLastTimestamp = false;
+    private long droppedSamples = 0;
+    private long mergedSamples = 0;
     private static final double WIDTH = 0.280; // in m
+    // The base sends basic sensor data at 50 Hz
+    private static final int SAMPLE_PERIOD_MS = 20;
 
     Log log = LogFactory.getLog(KobukiOdometryStatus.class);
 
@@ -23,19 +28,43 @@ public class KobukiOdometryStatus extends AbstractOdometryStatus {
         //log.info("Updating odometry. Left Ticks = " + baseStatus.getLeftDistance() +
         //        ", Right Ticks = " + baseStatus.getRightDistance());
 
-        if (baseStatus.getTimestamp() == lastTimestamp) {
+        if (haveLastTimestamp && baseStatus.getTimestamp() == lastTimestamp) {
+            // Same sample seen twice: nothing new to integrate
+            mergedSamples++;
             return;
         }
 
-        // Approximate speed using last known distance and time lapsed
-        int timeLapsed = baseStatus.getTimestamp() - lastTimestamp;
-        double leftSpeed = haveLastTravel ? (baseStatus.getLeftDistance() - lastLeftTravel) / timeLapsed : 0;
-        double rightSpeed = haveLastTravel ? (baseStatus.getRightDistance() - lastRightTravel) / timeLapsed : 0;
+        // The timestamp is a 16 bit millisecond counter that wraps around
+        int timeLapsed = (baseStatus.getTimestamp() - lastTimestamp) & 0xFFFF;
+        if (haveLastTimestamp && timeLapsed > SAMPLE_PERIOD_MS * 3 / 2) {
+            droppedSamples += (timeLapsed + SAMPLE_PERIOD_MS / 2) / SAMPLE_PERIOD_MS - 1;
+        }
+
+        // Approximate speed (in mm/s) using last known distance and time lapsed
+        double leftSpeed = haveLastTravel ? (baseStatus.getLeftDistance() - lastLeftTravel) * 1000.0 / timeLapsed : 0;
+        double rightSpeed = haveLastTravel ? (baseStatus.getRightDistance() - lastRightTravel) * 1000.0 / timeLapsed : 0;
 
-        // Calculate new robot pose
+        // Calculate new robot pose, as of when the base took the sample
         calculateAndUpdate(baseStatus.getLeftDistance(), baseStatus.getRightDistance(),
-                leftSpeed, rightSpeed);
+                leftSpeed, rightSpeed, baseStatus.getMeasuredTime());
 
         lastTimestamp = baseStatus.getTimestamp();
+        haveLastTimestamp = true;
+    }
+
+    /**
+     * @return: Number of samples the base produced that never reached the odometry, estimated
+     * from gaps in the sample timestamps.
+     */
+    public long getDroppedSampleCount() {
+        return droppedSamples;
+    }
+
+    /**
+     * @return: Number of samples received more than once, which were merged into the
+     * previous one.
+     */
+    public long getMergedSampleCount() {
+        return mergedSamples;
     }
 }
@@ -25,21 +25,8 @@ import com.ekumen.base_driver.InertialInformation;
 
 public class KobukiPacketParser {
 
-    private final int TIMESTAMP = 0;
-    private final int BUMPER = 2;
-    private final int WHEEL_DROP = 3;
-    private final int CLIFF = 4;
-    private final int BUTTON = 11;
-    private final int CHARGER = 12;
-    private final int BATTERY = 13;
-
-    private final int ANGLE = 0;
-    private final int ANGLE_RATE = 2;
-
-    private final int LEFT_ENC = 5;
-    private final int RIGHT_ENC = 7;
-
     private final double TICKS_TO_MM = 11.7;
+    private static final double CENTIDEGREES_TO_DEGREES = 0.01;
 
     private int prevLeftEncoder;
     private int prevRightEncoder;
@@ -47,21 +34,17 @@ public class KobukiPacketParser {
     private short rightLoops = 0;
     private boolean firstPkg = true;
 
-    private void updateOdometry(byte[] sensorPacket, BaseStatus baseStatus) {
+    private void updateOdometry(KobukiFeedback.BasicSensorData sensorData, BaseStatus baseStatus) {
         final int MAX_ODOM = 65535;
         final int lowMark = (MAX_ODOM / 4);
         final int highMark = (MAX_ODOM - lowMark);
-        short leftEncoder;
-        short rightEncoder;
         int currLeftEncoder;
         int currRightEncoder;
         int acumLeftEncoder;
         int acumRightEncoder;
 
-        leftEncoder = ((short) ((sensorPacket[LEFT_ENC+1] << 8) | (sensorPacket[LEFT_ENC] & 0xFF)));
-        rightEncoder = ((short) ((sensorPacket[RIGHT_ENC+1] << 8) | (sensorPacket[RIGHT_ENC] & 0xFF)));
-        currLeftEncoder = (int) (leftEncoder & 0x0000ffffL);
-        currRightEncoder = (int) (rightEncoder & 0x0000ffffL);
+        currLeftEncoder = sensorData.getLeftEncoder();
+        currRightEncoder = sensorData.getRightEncoder();
 
         if (firstPkg) {
             prevLeftEncoder = currLeftEncoder;
@@ -93,26 +76,36 @@ public class KobukiPacketParser {
         prevRightEncoder = currRightEncoder;
     }
 
-    public BaseStatus parseBaseStatus(byte[] sensorPacket) {
+    public BaseStatus parseBaseStatus(KobukiFeedback.BasicSensorData sensorData) {
         BaseStatus baseStatus = new BaseStatus();
-        baseStatus.setBumper(sensorPacket[BUMPER]);
+        baseStatus.setBumper((byte) sensorData.getBumper());
 
-        baseStatus.setTimeStamp((short) (sensorPacket[TIMESTAMP + 1] << 8 | sensorPacket[TIMESTAMP]));
-        baseStatus.setWheelDrop(sensorPacket[WHEEL_DROP]);
-        baseStatus.setCliff(sensorPacket[CLIFF]);
-        baseStatus.setButton(sensorPacket[BUTTON]);
-        baseStatus.setCharger(sensorPacket[CHARGER]);
-        baseStatus.setBattery(sensorPacket[BATTERY]);
+        baseStatus.setTimeStamp((short) sensorData.getTimestamp());
+        baseStatus.setWheelDrop((byte) sensorData.getWheelDrop());
+        baseStatus.setCliff((byte) sensorData.getCliff());
+        baseStatus.setButton((byte) sensorData.getButton());
+        baseStatus.setCharger((byte) sensorData.getCharger());
+        baseStatus.setBattery((byte) sensorData.getBattery());
 
-        updateOdometry(sensorPacket, baseStatus);
+        updateOdometry(sensorData, baseStatus);
         return baseStatus;
     }
 
-    public InertialInformation getInertialInformation (byte[] imuPacket) {
+    public InertialInformation getInertialInformation (KobukiFeedback.InertialSensorData inertialData) {
         InertialInformation inertialInformation = new InertialInformation();
-        inertialInformation.setAngle((short) ((imuPacket[ANGLE+1] << 8)|(imuPacket[ANGLE] & 0xff)));
-        inertialInformation.setAngleRate((short) ((imuPacket[ANGLE_RATE + 1] << 8) | (imuPacket[ANGLE_RATE] & 0xff)));
+        parseInertialInformation(inertialData, inertialInformation);
         return inertialInformation;
     }
 
+    /**
+     * Fills the given inertial information with the raw values and their conversion to radians.
+     */
+    public void parseInertialInformation(KobukiFeedback.InertialSensorData inertialData,
+                                         InertialInformation inertialInformation) {
+        inertialInformation.setAngle(inertialData.getAngle());
+        inertialInformation.setAngleRate(inertialData.getAngleRate());
+        inertialInformation.setHeading(Math.toRadians(inertialData.getAngle() * CENTIDEGREES_TO_DEGREES));
+        inertialInformation.setAngularVelocity(Math.toRadians(inertialData.getAngleRate() * CENTIDEGREES_TO_DEGREES));
+    }
+
 }
@@ -5,6 +5,9 @@
 */
 
 package com.ekumen.base_driver.kobuki;
+import com.ekumen.base_driver.ByteRingBuffer;
+import com.ekumen.base_driver.RawFrameListener;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -15,165 +18,207 @@ public class KobukiPacketReader {
 
     Log log = LogFactory.getLog(KobukiPacketReader.class);
 
-    //kobuki sensors read from here to update. Accessible fields
-	private byte[] sensorPacket = new byte[15];
-	private byte[] inertialSensorPacket = new byte[4];
-	private byte[] dockingIRPacket = new byte[3];
-	private byte[] wheelCurrentPacket = new byte[4];
-	private enum parserState {
-		INIT, PARTIAL, COMPLETE;
-	}
-	//Fields for class
-	private parserState curState;
-	private volatile byte[] stored;
-	private int bytesStillNeeded;
-	private int totalSize;
-	private int bytesStoredIndex;
-
-	public KobukiPacketReader() {
-		curState = parserState.INIT;
-		stored = new byte[500]; // Should be big enough for the biggest packets
-		bytesStillNeeded = 0;
-		totalSize = 0;
-		bytesStoredIndex = 0;
-	}
+	// Frame layout: Header0 | Header1 | Length | Payload (Length bytes) | Checksum
+	private static final byte HEADER_0 = (byte) 0xAA;
+	private static final byte HEADER_1 = (byte) 0x55;
+	private static final int HEADER_SIZE = 3;
+	private static final int MAX_PAYLOAD_SIZE = 255;
+
+	// Bytes received but not yet framed. Persists across calls, so headers and frames split
+	// between USB reads are reassembled. Several maximum-sized frames fit in it.
+	private final ByteRingBuffer ring = new ByteRingBuffer(1024);
+	// Frame being decoded, copied out of the ring so it is contiguous
+	private final byte[] frame = new byte[HEADER_SIZE + MAX_PAYLOAD_SIZE + 1];
+	// Used to drain direct (non array-backed) buffers
+	private final byte[] scratch = new byte[256];
+
+	// Views and listeners of each subscribed sub-payload type, indexed by id. Replaced as a
+	// whole when listeners change, so the reading thread never needs to lock.
+	private volatile Subscription<?>[] subscriptions = new Subscription<?>[256];
+	private long checksumErrors = 0;
+	private RawFrameListener frameListener;
+
+	private static class Subscription<T extends KobukiFeedback.SubPayload> {
+		final T view;
+		final int minLength;
+		final KobukiFeedbackListener<? super T>[] listeners;
+
+		Subscription(T view, int minLength, KobukiFeedbackListener<? super T>[] listeners) {
+			this.view = view;
+			this.minLength = minLength;
+			this.listeners = listeners;
+		}
 
-	public final void newPacket(ByteBuffer buff) { // look for main headers in buffer
-		if(curState == parserState.INIT || curState == parserState.COMPLETE) {
-			for(int i=0; i < buff.array().length-2; i++){ // currently ignoring -86|85 split case... should be rare
-				if(buff.array()[i] == -86 && buff.array()[i+1] == 85) { // Header 0 and Header 1 means packet
-					curState = parserState.PARTIAL;
-					if((buff.array().length-i) >= (buff.array()[i+2]+4)) { // Whole packet is in the buffer. +3 accounts for headers and size. Don't think this is right. Change(+4 for checksum)
-						byte[] packet = new byte[byteToInt(buff.array()[i+2])+2]; // make byte array of proper size. +1 just in case!!!! Needs to be + 2 to account for checksum and length
-						//If x + 2 is the length of the payload, the length of payload + length + check sum = length of payload + 2
-						System.arraycopy(buff.array(), i + 2, packet, 0, byteToInt(buff.array()[i+2]) + 2); //copy in data needed
-						if(verifyChecksum(byteToInt(buff.array()[i+2]) + 2, packet)) {
-							System.arraycopy(packet, 1, packet, 0, packet.length - 1);
-							goodPacket(byteToInt(buff.array()[i+2]) ,packet); // send goodPacket the array and length of array.  At this point, the packet contains ONLY the payload...
-						} else {
-							//packet not valid
-						}
-						curState = parserState.COMPLETE;
-					} else {
-						System.arraycopy(buff.array(), i+2, stored, 0, (buff.array().length-(i+2))); //Copy the partial packet into the stored array (only for partial packets)
-						bytesStillNeeded = (buff.array()[i+2] + 2) - (buff.array().length-(i+2));
-						totalSize = buff.array()[i+2] + 2;  //This is the payload length + 2.  This accounts for both the length of the payload byte as well as the checksum byte
-						bytesStoredIndex = buff.array().length - (i+2); //Basically, in the case of a partial packet, this variable stores the length of the partial packet
-					}
-				}
+		void dispatch(byte[] packet, int offset, int length) {
+			// Views read straight from the payload buffer: nothing is copied per sub-payload
+			view.wrap(packet, offset, length);
+			for(KobukiFeedbackListener<? super T> listener : listeners) {
+				listener.onFeedback(view);
 			}
-		} else {
-			System.arraycopy(buff.array(), 0, stored, bytesStoredIndex, bytesStillNeeded);  //Copy in the "rest" of the packet
-			if(verifyChecksum(totalSize, stored)) {
-				System.arraycopy(stored, 1, stored, 0, stored.length - 1);  //Get the array without the checksum or length
-				goodPacket(totalSize - 2, stored);
-			} else {
-				//packet not valid
-			}
-			curState = parserState.COMPLETE;
 		}
 	}
 
-	private final boolean verifyChecksum(int length, byte[] packet) { //Method for verifying checksum
-
-		byte checksum = 0;
+	@SuppressWarnings("unchecked")
+	private static <T extends KobukiFeedback.SubPayload> KobukiFeedbackListener<? super T>[] newListeners(int length) {
+		return (KobukiFeedbackListener<? super T>[]) new KobukiFeedbackListener<?>[length];
+	}
 
-		for(int i = 0; i < length - 1; i++) {  //length - 1 so that checksum is not included in total!
+	/**
+	 * @return: The subscription to the given type, or <code>null</code>.
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T extends KobukiFeedback.SubPayload> Subscription<T> subscription(
+			Subscription<?>[] subscriptions, KobukiFeedback.Type<T> type) {
+		// Only subscriptions of the type's own view are stored under its id
+		return (Subscription<T>) subscriptions[type.getId()];
+	}
 
-			checksum ^= packet[i];   //XOR's all values in packet EXCEPT: HEADERS AND CHECKSUM
-		}
+	public KobukiPacketReader() {
+	}
 
-		if(packet[length - 1] == checksum) { //Ensures that calculated checksum is equal to the checksum found in the packet
-			return true;
+	/**
+	 * Registers a listener for one type of sub-payload. Only sub-payload types with at least
+	 * one listener are decoded.
+	 */
+	public synchronized <T extends KobukiFeedback.SubPayload> void addListener(
+			KobukiFeedback.Type<T> type, KobukiFeedbackListener<? super T> listener) {
+		Subscription<?>[] updated = subscriptions.clone();
+		Subscription<T> current = subscription(updated, type);
+		KobukiFeedbackListener<? super T>[] listeners;
+		if(current == null) {
+			listeners = newListeners(1);
+			listeners[0] = listener;
+			updated[type.getId()] = new Subscription<T>(type.newView(), type.getMinLength(), listeners);
 		} else {
-			return false;
+			listeners = Arrays.copyOf(current.listeners, current.listeners.length + 1);
+			listeners[listeners.length - 1] = listener;
+			updated[type.getId()] = new Subscription<T>(current.view, current.minLength, listeners);
 		}
+		subscriptions = updated;
 	}
 
-	private final void goodPacket(int length ,byte[] packet) { // Without first 2 headers, length, or checksum!
-		//header
-		//size
-		//payload
-
-		int curPlace = 0;
-		byte[] toSend = new byte[100];
-		System.arraycopy(packet, 0, toSend, 0, (packet[1]+2));
-		curPlace = packet[1] + 2;
-		sortParts(toSend);
-
-		for(int i = 0; i < 6; i++) { // seven total packets six left
-			 Arrays.fill(toSend, (byte)0);
-			 //Changed from curPlace + 1 to curPlace. Changed last field from curPlace + 2 to packet[curPlace + 1]
-			 System.arraycopy(packet, curPlace, toSend, 0, packet[curPlace+1] + 2); //Curplace is current index that needs to be accessed. packet[curPlace + 1] + 2 accounts for the size of the payload AND the index + payload size bytes
-			 curPlace = curPlace + packet[curPlace+1] + 2; //Essentially, the index of the element we just accessed. + the length of the payload + 2 for the index and payload size
-			 sortParts(toSend);  //Sorts packet array into individual packets (see method)
+	public synchronized <T extends KobukiFeedback.SubPayload> void removeListener(
+			KobukiFeedback.Type<T> type, KobukiFeedbackListener<? super T> listener) {
+		Subscription<T> current = subscription(subscriptions, type);
+		if(current == null) {
+			return;
 		}
-	}
-
-	private final void sortParts(byte[] packet){
-		switch(packet[0]){ // Sort by packet[0] (The index of the packet. See kobuki driver page for more info).
-			case 1:
-				sensorPacket(packet); // Sorts sensor packet
-				break;
-			case 3:
-				dockingIRPacket(packet); //sorts dockingIR packet
-				break;
-			case 4:
-				inertialSensorPacket(packet); //Sorts inertial sensor packet
-				break;
-			case 6:
-				wheelCurrentPacket(packet); //Sorts wheel current packet
-				break;
-			default:
-				break;
+		int index = Arrays.asList(current.listeners).indexOf(listener);
+		if(index < 0) {
+			return;
 		}
+		Subscription<?>[] updated = subscriptions.clone();
+		if(current.listeners.length == 1) {
+			updated[type.getId()] = null;
+		} else {
+			KobukiFeedbackListener<? super T>[] listeners = newListeners(current.listeners.length - 1);
+			System.arraycopy(current.listeners, 0, listeners, 0, index);
+			System.arraycopy(current.listeners, index + 1, listeners, index, listeners.length - index);
+			updated[type.getId()] = new Subscription<T>(current.view, current.minLength, listeners);
+		}
+		subscriptions = updated;
 	}
 
-	private final int byteToInt(byte b) {
-		return b & 0xFF;
-	}
-
-	public final void sensorPacket(byte[] packet) { // Store sensor values from packet
-		System.arraycopy(packet, 2, sensorPacket, 0, 15); //Copy packet from incoming byte array
-	}
-
-	private final void inertialSensorPacket(byte[] packet) {
-		System.arraycopy(packet, 2, inertialSensorPacket, 0, 4); //Copy packet from incoming byte array
-	}
-
-	private final void dockingIRPacket(byte[] packet) {  //Sorts the IR docking packet
-		System.arraycopy(packet, 2, dockingIRPacket, 0, 3); //Copy packet from incoming byte array
-	}
-
-	private final void wheelCurrentPacket(byte[] packet) {  //Sorts wheel current data packet
-		System.arraycopy(packet, 2, wheelCurrentPacket, 0, 2); //Copy packet from incoming byte array
+	/**
+	 * Sets a listener called with every frame that passes its checksum, before it is decoded.
+	 */
+	public void setFrameListener(RawFrameListener listener) {
+		frameListener = listener;
 	}
 
 	/**
-	 * @return the sensorPacket
+	 * @return the number of frames discarded because of a checksum mismatch
 	 */
-	public final byte[] getSensorPacket() {
-		return sensorPacket;
+	public long getChecksumErrorCount() {
+		return checksumErrors;
 	}
 
 	/**
-	 * @return the inertialSensorPacket
+	 * Consumes the remaining bytes of the given buffer, decoding every complete frame found.
+	 * Incomplete frames are kept until the rest of the bytes arrive.
 	 */
-	public final byte[] getInertialSensorPacket() {
-		return inertialSensorPacket;
+	public final void newPacket(ByteBuffer buff) {
+		if(buff.hasArray()) {
+			newPacket(buff.array(), buff.arrayOffset() + buff.position(), buff.remaining());
+			buff.position(buff.limit());
+		} else {
+			while(buff.hasRemaining()) {
+				int count = Math.min(buff.remaining(), scratch.length);
+				buff.get(scratch, 0, count);
+				newPacket(scratch, 0, count);
+			}
+		}
 	}
 
 	/**
-	 * @return the dockingIRPacket
+	 * Consumes the given range of bytes, decoding every complete frame found. The chunk can
+	 * be of any size: it is fed to the ring in pieces if it doesn't fit at once.
 	 */
-	public final byte[] getDockingIRPacket() {
-		return dockingIRPacket;
+	public final void newPacket(byte[] data, int offset, int length) {
+		int consumed = 0;
+		while(consumed < length) {
+			consumed += ring.write(data, offset + consumed, length - consumed);
+			decodeFrames();
+		}
 	}
 
 	/**
-	 * @return the wheelCurrentPacket
+	 * Decodes frames from the ring until only an incomplete frame (or nothing) is left.
 	 */
-	public final byte[] getWheelCurrentPacket() {
-		return wheelCurrentPacket;
+	private void decodeFrames() {
+		while(ring.available() >= HEADER_SIZE) {
+			if(ring.peek(0) != HEADER_0 || ring.peek(1) != HEADER_1) {
+				ring.skip(1); // Not the start of a frame, resync on the next byte
+				continue;
+			}
+			int length = ring.peekUnsigned(2);
+			int frameSize = length + HEADER_SIZE + 1;
+			if(ring.available() < frameSize) {
+				return; // Wait for the rest of the frame
+			}
+			if(verifyChecksum(length)) {
+				ring.copyTo(0, frame, 0, frameSize);
+				ring.skip(frameSize);
+				if(frameListener != null) {
+					frameListener.onRawFrame(frame, frameSize);
+				}
+				goodPacket(frame, HEADER_SIZE, length);
+			} else {
+				// Bad frame, or a false header inside payload data: resync after the header
+				checksumErrors++;
+				ring.skip(1);
+			}
+		}
+	}
+
+	private final boolean verifyChecksum(int length) { //Method for verifying checksum
+		// XOR of the length byte and payload, compared to the byte right after the payload
+		byte checksum = 0;
+		for(int i = 2; i < length + HEADER_SIZE; i++) {
+			checksum ^= ring.peek(i);
+		}
+		return ring.peek(length + HEADER_SIZE) == checksum;
+	}
+
+	private final void goodPacket(byte[] packet, int offset, int length) { // Payload range, without headers, length, or checksum!
+		// The payload is a sequence of sub-payloads: Header | Length | Data (Length bytes)
+		Subscription<?>[] current = subscriptions;
+		int curPlace = offset;
+		int end = offset + length;
+		while(curPlace + 2 <= end) {
+			int subLength = byteToInt(packet[curPlace + 1]);
+			if(curPlace + 2 + subLength > end) {
+				break; // Truncated sub-payload
+			}
+			Subscription<?> subscription = current[byteToInt(packet[curPlace])];
+			if(subscription != null && subLength >= subscription.minLength) {
+				subscription.dispatch(packet, curPlace + 2, subLength);
+			}
+			curPlace += subLength + 2;
+		}
+	}
+
+	private final int byteToInt(byte b) {
+		return b & 0xFF;
 	}
 }